@@ -0,0 +1,132 @@
+/*
+ * Copyright © 2003 - 2024 The eFaps Team (-)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.efaps.ui;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.keycloak.representations.IDToken;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Benchmarks of the claim processing of the {@link KeycloakLoginProvider}:
+ * parsing the role and company claims, given as list or as string split
+ * by <code>|</code>, and the fingerprint deciding if a sync is needed.
+ * The lookups of roles and companies in eFaps are not part of it, as they
+ * need a running eFaps.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ClaimBenchmark
+{
+
+    /** Number of roles and companies in the claims. */
+    @Param({ "5", "50" })
+    private int size;
+
+    /** Give the companies as list instead of a string. */
+    @Param({ "false", "true" })
+    private boolean companiesAsList;
+
+    /** The token. */
+    private IDToken token;
+
+    /** The roles given via scope. */
+    private Set<String> scopeRoles;
+
+    /**
+     * Set up the token.
+     */
+    @Setup(Level.Trial)
+    public void setup()
+    {
+        final List<String> roles = new ArrayList<>();
+        final List<String> companies = new ArrayList<>();
+        for (int i = 0; i < this.size; i++) {
+            roles.add("Role" + i);
+            companies.add("Company" + i);
+        }
+        Collections.shuffle(roles);
+        this.token = new IDToken();
+        this.token.setGivenName("Given");
+        this.token.setFamilyName("Family");
+        this.token.getOtherClaims().put(KeycloakLoginProvider.ROLEKEY, roles);
+        this.token.getOtherClaims().put(KeycloakLoginProvider.COMPANIESKEY, this.companiesAsList ? companies
+                        : String.join("|", companies));
+        this.token.getOtherClaims().put(KeycloakLoginProvider.LOCALEKEY, "es-PE");
+        this.token.getOtherClaims().put(KeycloakLoginProvider.TZKEY, "America/Lima");
+        this.token.getOtherClaims().put(KeycloakLoginProvider.LANGKEY, "es");
+        this.scopeRoles = Collections.emptySet();
+    }
+
+    /**
+     * Parse the role and company claims.
+     *
+     * @param _blackhole the blackhole
+     */
+    @Benchmark
+    public void parseClaims(final Blackhole _blackhole)
+    {
+        final LoginContext loginContext = new LoginContext("bench", this.scopeRoles, this.token);
+        _blackhole.consume(loginContext.getRoleClaims());
+        _blackhole.consume(loginContext.getCompanyClaims());
+    }
+
+    /**
+     * Calculate the fingerprint of the claims.
+     *
+     * @return the fingerprint
+     */
+    @Benchmark
+    public String fingerprint()
+    {
+        return ClaimFingerprint.of(this.scopeRoles, this.token);
+    }
+
+    /**
+     * Parse the claims and check the fingerprint, as done on every login.
+     *
+     * @param _blackhole the blackhole
+     */
+    @Benchmark
+    public void loginClaims(final Blackhole _blackhole)
+    {
+        final LoginContext loginContext = new LoginContext("bench", this.scopeRoles, this.token);
+        _blackhole.consume(ClaimFingerprint.isUnchanged("bench", ClaimFingerprint.of(this.scopeRoles,
+                        this.token)));
+        _blackhole.consume(loginContext.getRoleClaims());
+        _blackhole.consume(loginContext.getCompanyClaims());
+    }
+}
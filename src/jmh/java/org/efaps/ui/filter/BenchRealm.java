@@ -0,0 +1,205 @@
+/*
+ * Copyright © 2003 - 2024 The eFaps Team (-)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.efaps.ui.filter;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.List;
+import java.util.UUID;
+
+import org.keycloak.common.crypto.CryptoIntegration;
+import org.keycloak.crypto.Algorithm;
+import org.keycloak.crypto.AsymmetricSignatureSignerContext;
+import org.keycloak.crypto.KeyType;
+import org.keycloak.crypto.KeyUse;
+import org.keycloak.crypto.KeyWrapper;
+import org.keycloak.jose.jws.JWSBuilder;
+import org.keycloak.representations.AccessToken;
+import org.keycloak.representations.IDToken;
+import org.keycloak.util.TokenUtil;
+
+/**
+ * A realm with a self-signed RSA key that issues tokens locally, so that
+ * tokens can be verified without a Keycloak server.
+ */
+public final class BenchRealm
+{
+
+    /** Name of the realm. */
+    public static final String REALM = "efaps";
+
+    /** Client id. */
+    public static final String CLIENT = "efaps-webapp";
+
+    /** The key pair. */
+    private final KeyPair keyPair;
+
+    /** The key used for signing. */
+    private final KeyWrapper key;
+
+    /** The url of the auth server. */
+    private final String authServerUrl;
+
+    /**
+     * Instantiates a new realm.
+     *
+     * @param _authServerUrl the url of the auth server
+     */
+    public BenchRealm(final String _authServerUrl)
+    {
+        CryptoIntegration.init(BenchRealm.class.getClassLoader());
+        try {
+            final KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+            generator.initialize(2048);
+            this.keyPair = generator.generateKeyPair();
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        this.authServerUrl = _authServerUrl;
+        this.key = new KeyWrapper();
+        this.key.setKid(UUID.randomUUID().toString());
+        this.key.setAlgorithm(Algorithm.RS256);
+        this.key.setType(KeyType.RSA);
+        this.key.setUse(KeyUse.SIG);
+        this.key.setPrivateKey(this.keyPair.getPrivate());
+        this.key.setPublicKey(this.keyPair.getPublic());
+    }
+
+    /**
+     * Gets the key pair.
+     *
+     * @return the key pair
+     */
+    public KeyPair getKeyPair()
+    {
+        return this.keyPair;
+    }
+
+    /**
+     * Gets the kid of the signing key.
+     *
+     * @return the kid
+     */
+    public String getKid()
+    {
+        return this.key.getKid();
+    }
+
+    /**
+     * Gets the issuer of the tokens.
+     *
+     * @return the issuer
+     */
+    public String getIssuer()
+    {
+        return this.authServerUrl + "/realms/" + REALM;
+    }
+
+    /**
+     * Content of a keycloak.json for a public client of the realm.
+     *
+     * @param _withPublicKey embed the public key, else it is fetched from
+     *            the JWKS endpoint
+     * @return the json
+     */
+    public String keycloakJson(final boolean _withPublicKey)
+    {
+        final StringBuilder bldr = new StringBuilder()
+                        .append("{\"realm\":\"").append(REALM).append("\",")
+                        .append("\"auth-server-url\":\"").append(this.authServerUrl).append("\",")
+                        .append("\"resource\":\"").append(CLIENT).append("\",")
+                        .append("\"public-client\":true,")
+                        .append("\"ssl-required\":\"none\"");
+        if (_withPublicKey) {
+            bldr.append(",\"realm-public-key\":\"")
+                .append(Base64.getEncoder().encodeToString(this.keyPair.getPublic().getEncoded())).append("\"");
+        }
+        return bldr.append("}").toString();
+    }
+
+    /**
+     * Create an access token for a user.
+     *
+     * @param _userName the user name
+     * @param _lifespan lifespan in seconds
+     * @return the access token
+     */
+    public AccessToken accessToken(final String _userName,
+                                   final int _lifespan)
+    {
+        final long now = System.currentTimeMillis() / 1000;
+        final AccessToken ret = new AccessToken();
+        ret.id(UUID.randomUUID().toString());
+        ret.type(TokenUtil.TOKEN_TYPE_BEARER);
+        ret.issuer(getIssuer());
+        ret.subject(UUID.nameUUIDFromBytes(_userName.getBytes()).toString());
+        ret.issuedFor(CLIENT);
+        ret.iat(now);
+        ret.exp(now + _lifespan);
+        ret.setPreferredUsername(_userName);
+        ret.setSessionId(UUID.randomUUID().toString());
+        return ret;
+    }
+
+    /**
+     * Create an id token for a user with the eFaps claims.
+     *
+     * @param _userName the user name
+     * @param _lifespan lifespan in seconds
+     * @param _roles the roles
+     * @param _companies the companies
+     * @return the id token
+     */
+    public IDToken idToken(final String _userName,
+                           final int _lifespan,
+                           final List<String> _roles,
+                           final String _companies)
+    {
+        final long now = System.currentTimeMillis() / 1000;
+        final IDToken ret = new IDToken();
+        ret.id(UUID.randomUUID().toString());
+        ret.type(TokenUtil.TOKEN_TYPE_ID);
+        ret.issuer(getIssuer());
+        ret.subject(UUID.nameUUIDFromBytes(_userName.getBytes()).toString());
+        ret.issuedFor(CLIENT);
+        ret.audience(CLIENT);
+        ret.iat(now);
+        ret.exp(now + _lifespan);
+        ret.setPreferredUsername(_userName);
+        ret.setGivenName("Given " + _userName);
+        ret.setFamilyName("Family " + _userName);
+        ret.getOtherClaims().put("eFapsRoles", _roles);
+        ret.getOtherClaims().put("eFapsCompanies", _companies);
+        ret.getOtherClaims().put("eFapsLocale", "es-PE");
+        ret.getOtherClaims().put("eFapsTimeZone", "America/Lima");
+        ret.getOtherClaims().put("eFapsLanguage", "es");
+        return ret;
+    }
+
+    /**
+     * Sign a token.
+     *
+     * @param _token the token
+     * @return the encoded token
+     */
+    public String sign(final Object _token)
+    {
+        return new JWSBuilder().kid(this.key.getKid()).type("JWT").jsonContent(_token)
+                        .sign(new AsymmetricSignatureSignerContext(this.key));
+    }
+}
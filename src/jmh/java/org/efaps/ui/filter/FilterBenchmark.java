@@ -0,0 +1,248 @@
+/*
+ * Copyright © 2003 - 2024 The eFaps Team (-)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.efaps.ui.filter;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpSession;
+
+import org.keycloak.KeycloakPrincipal;
+import org.keycloak.adapters.KeycloakDeployment;
+import org.keycloak.adapters.RefreshableKeycloakSecurityContext;
+import org.keycloak.adapters.servlet.OIDCFilterSessionStore.SerializableKeycloakAccount;
+import org.keycloak.adapters.spi.KeycloakAccount;
+import org.keycloak.representations.AccessToken;
+import org.keycloak.representations.IDToken;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Benchmarks of {@link KeycloakFilter#doFilter} for the main kinds of
+ * requests. The filter runs against a locally configured deployment with
+ * an embedded realm key, so no Keycloak server is contacted.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FilterBenchmark
+{
+
+    /** Path of the requests. */
+    private static final String PATH = "/servlet/app";
+
+    /** The realm. */
+    private BenchRealm realm;
+
+    /** The filter. */
+    private BenchFilter filter;
+
+    /** Session with an authenticated account. */
+    private HttpSession session;
+
+    /** Signed access token for bearer requests. */
+    private String bearerToken;
+
+    /**
+     * Set up the filter and an authenticated session.
+     *
+     * @throws ServletException on error
+     */
+    @Setup(Level.Trial)
+    public void setup()
+        throws ServletException
+    {
+        this.realm = new BenchRealm("http://localhost:1");
+        this.filter = new BenchFilter();
+        this.filter.init(ServletStubs.filterConfig(this.realm.keycloakJson(true), Map.of(
+                        BearerTokenCache.ACTIVATE, "true")));
+
+        final KeycloakDeployment deployment = this.filter.getDeployment();
+        final AccessToken accessToken = this.realm.accessToken("bench", 3600);
+        final IDToken idToken = this.realm.idToken("bench", 3600, List.of("Admin"), "Company");
+        final RefreshableKeycloakSecurityContext securityContext = new RefreshableKeycloakSecurityContext(
+                        deployment, null, this.realm.sign(accessToken), accessToken, this.realm.sign(idToken),
+                        idToken, null);
+        final SerializableKeycloakAccount account = new SerializableKeycloakAccount(Set.of("Admin"),
+                        new KeycloakPrincipal<>("bench", securityContext), securityContext);
+        this.session = ServletStubs.session("bench-session");
+        this.session.setAttribute(KeycloakAccount.class.getName(), account);
+        this.filter.mapSession("bench", this.session.getId());
+
+        this.bearerToken = this.realm.sign(this.realm.accessToken("bearer", 3600));
+    }
+
+    /**
+     * Stop the background threads of the filter.
+     */
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        this.filter.destroy();
+    }
+
+    /**
+     * Request of a session with an active account.
+     *
+     * @param _blackhole the blackhole
+     * @throws IOException on error
+     * @throws ServletException on error
+     */
+    @Benchmark
+    public void authenticatedSession(final Blackhole _blackhole)
+        throws IOException, ServletException
+    {
+        this.filter.doFilter(ServletStubs.request(PATH, null, Map.of(), this.session), ServletStubs.response(),
+                        chain(_blackhole));
+    }
+
+    /**
+     * Request with a verified and cached bearer token.
+     *
+     * @param _blackhole the blackhole
+     * @throws IOException on error
+     * @throws ServletException on error
+     */
+    @Benchmark
+    public void bearer(final Blackhole _blackhole)
+        throws IOException, ServletException
+    {
+        this.filter.doFilter(ServletStubs.request(PATH, null, Map.of("Authorization", "Bearer "
+                        + this.bearerToken), null), ServletStubs.response(), chain(_blackhole));
+    }
+
+    /**
+     * Unauthenticated request that is redirected to the login page.
+     *
+     * @param _blackhole the blackhole
+     * @throws IOException on error
+     * @throws ServletException on error
+     */
+    @Benchmark
+    public void unauthenticatedRedirect(final Blackhole _blackhole)
+        throws IOException, ServletException
+    {
+        this.filter.doFilter(ServletStubs.request(PATH, null, Map.of(), null), ServletStubs.response(),
+                        chain(_blackhole));
+    }
+
+    /**
+     * Unauthenticated request with a query string, answered with a page
+     * setting the top location.
+     *
+     * @param _blackhole the blackhole
+     * @throws IOException on error
+     * @throws ServletException on error
+     */
+    @Benchmark
+    public void unauthenticatedTopLocation(final Blackhole _blackhole)
+        throws IOException, ServletException
+    {
+        this.filter.doFilter(ServletStubs.request(PATH, "0-1.IBehaviorListener.0-", Map.of(), null),
+                        ServletStubs.response(), chain(_blackhole));
+    }
+
+    /**
+     * Unauthenticated AJAX request, answered with an ajax response setting
+     * the top location.
+     *
+     * @param _blackhole the blackhole
+     * @throws IOException on error
+     * @throws ServletException on error
+     */
+    @Benchmark
+    public void unauthenticatedAjax(final Blackhole _blackhole)
+        throws IOException, ServletException
+    {
+        this.filter.doFilter(ServletStubs.request(PATH, "0-1.IBehaviorListener.0-", Map.of("Wicket-Ajax",
+                        "true"), null), ServletStubs.response(), chain(_blackhole));
+    }
+
+    /**
+     * Request that bypasses the authentication.
+     *
+     * @param _blackhole the blackhole
+     * @throws IOException on error
+     * @throws ServletException on error
+     */
+    @Benchmark
+    public void bypass(final Blackhole _blackhole)
+        throws IOException, ServletException
+    {
+        this.filter.doFilter(ServletStubs.request("/wicket/resource/style.css", null, Map.of(), null),
+                        ServletStubs.response(), chain(_blackhole));
+    }
+
+    /**
+     * Chain that hands the request to the blackhole.
+     *
+     * @param _blackhole the blackhole
+     * @return the chain
+     */
+    private static FilterChain chain(final Blackhole _blackhole)
+    {
+        return (_request, _response) -> _blackhole.consume(_request);
+    }
+
+    /**
+     * Filter giving the benchmark access to its deployment and mapper.
+     */
+    private static final class BenchFilter
+        extends KeycloakFilter
+    {
+
+        /**
+         * Gets the deployment.
+         *
+         * @return the deployment
+         */
+        private KeycloakDeployment getDeployment()
+        {
+            return deploymentContext.resolveDeployment(null);
+        }
+
+        /**
+         * Map a session.
+         *
+         * @param _principal the principal
+         * @param _session the session id
+         */
+        private void mapSession(final String _principal,
+                                final String _session)
+        {
+            idMapper.map(null, _principal, _session);
+        }
+    }
+}
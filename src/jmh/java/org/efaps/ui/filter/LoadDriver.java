@@ -0,0 +1,470 @@
+/*
+ * Copyright © 2003 - 2024 The eFaps Team (-)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.efaps.ui.filter;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpSession;
+
+import org.efaps.ui.filter.ServletStubs.ResponseRecord;
+
+/**
+ * Load driver for the whole OIDC code flow through the
+ * {@link KeycloakFilter} against a {@link StandInKeycloak}, all in one
+ * process and offline. The browser side is simulated with the
+ * {@link ServletStubs}; the adapter talks via http to the stand-in as it
+ * would to Keycloak. Reports throughput and latency percentiles for the
+ * phases login, browse, refresh and back-channel logout.
+ *
+ * <pre>
+ * mvn -Pjmh test-compile exec:java -Dexec.mainClass=org.efaps.ui.filter.LoadDriver \
+ *     -Dexec.classpathScope=test -Dexec.args="users=500 threads=32 browse=30"
+ * </pre>
+ */
+public final class LoadDriver
+{
+
+    /** Path of the page requested. */
+    private static final String PATH = "/servlet/app";
+
+    /** Number of users. */
+    private final int users;
+
+    /** Number of threads. */
+    private final int threads;
+
+    /** Duration of the browse phase in seconds. */
+    private final int browseSeconds;
+
+    /** The stand-in. */
+    private final StandInKeycloak keycloak;
+
+    /** The filter. */
+    private final KeycloakFilter filter;
+
+    /** The http client of the browser side. */
+    private final HttpClient httpClient = HttpClient.newBuilder().followRedirects(HttpClient.Redirect.NEVER)
+                    .build();
+
+    /** The executor. */
+    private final ExecutorService executor;
+
+    /**
+     * Instantiates a new load driver.
+     *
+     * @param _users number of users
+     * @param _threads number of threads
+     * @param _browseSeconds duration of the browse phase in seconds
+     * @throws IOException on error
+     * @throws ServletException on error
+     */
+    private LoadDriver(final int _users,
+                       final int _threads,
+                       final int _browseSeconds)
+        throws IOException, ServletException
+    {
+        this.users = _users;
+        this.threads = _threads;
+        this.browseSeconds = _browseSeconds;
+        this.keycloak = new StandInKeycloak(Math.max(4, _threads / 2));
+        this.filter = new KeycloakFilter();
+        // refresh on the request thread, so that the refresh phase measures it
+        this.filter.init(ServletStubs.filterConfig(this.keycloak.getRealm().keycloakJson(false), Map.of(
+                        TokenRefresher.REFRESHAHEAD, "0")));
+        this.executor = Executors.newFixedThreadPool(_threads);
+    }
+
+    /**
+     * Run all phases and print the report.
+     *
+     * @throws Exception on error
+     */
+    private void run()
+        throws Exception
+    {
+        System.out.printf("users=%d threads=%d browse=%ds%n%n", this.users, this.threads, this.browseSeconds);
+        System.out.println(Stats.HEADER);
+
+        final List<Browser> browsers = new ArrayList<>();
+        for (int i = 0; i < this.users; i++) {
+            browsers.add(new Browser("user" + i));
+        }
+        System.out.println(runEach("login", browsers, Browser::login));
+        System.out.println(browse(browsers));
+
+        // a second cohort with short lived tokens, so that its next request
+        // must refresh the token
+        this.keycloak.setAccessLifespan(2);
+        final List<Browser> refreshers = new ArrayList<>();
+        for (int i = 0; i < this.users; i++) {
+            refreshers.add(new Browser("refresh" + i));
+        }
+        runEach("login (short tokens)", refreshers, Browser::login);
+        TimeUnit.MILLISECONDS.sleep(2500);
+        System.out.println(runEach("refresh", refreshers, Browser::browse));
+
+        System.out.println(runEach("back-channel logout", browsers, Browser::backchannelLogout));
+        final Stats verify = runEach("after logout", browsers, _browser -> !_browser.browse());
+        System.out.println(verify);
+
+        System.out.println();
+        System.out.println("stand-in requests: " + this.keycloak.getRequests());
+    }
+
+    /**
+     * Run an action once for each browser.
+     *
+     * @param _name name of the phase
+     * @param _browsers the browsers
+     * @param _action the action, returning true on success
+     * @return the stats
+     * @throws InterruptedException on interrupt
+     * @throws ExecutionException on error
+     */
+    private Stats runEach(final String _name,
+                          final List<Browser> _browsers,
+                          final Action _action)
+        throws InterruptedException, ExecutionException
+    {
+        final Stats ret = new Stats(_name);
+        final List<Callable<Void>> tasks = new ArrayList<>();
+        for (final Browser browser : _browsers) {
+            tasks.add(() -> {
+                ret.time(() -> _action.run(browser));
+                return null;
+            });
+        }
+        final long start = System.nanoTime();
+        for (final Future<Void> future : this.executor.invokeAll(tasks)) {
+            future.get();
+        }
+        ret.finish(System.nanoTime() - start);
+        return ret;
+    }
+
+    /**
+     * Steady state browsing of random logged in users.
+     *
+     * @param _browsers the browsers
+     * @return the stats
+     * @throws InterruptedException on interrupt
+     * @throws ExecutionException on error
+     */
+    private Stats browse(final List<Browser> _browsers)
+        throws InterruptedException, ExecutionException
+    {
+        final Stats ret = new Stats("browse");
+        final long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(this.browseSeconds);
+        final List<Callable<Void>> tasks = new ArrayList<>();
+        for (int i = 0; i < this.threads; i++) {
+            tasks.add(() -> {
+                while (System.nanoTime() < end) {
+                    final Browser browser = _browsers.get(ThreadLocalRandom.current().nextInt(_browsers.size()));
+                    ret.time(browser::browse);
+                }
+                return null;
+            });
+        }
+        final long start = System.nanoTime();
+        for (final Future<Void> future : this.executor.invokeAll(tasks)) {
+            future.get();
+        }
+        ret.finish(System.nanoTime() - start);
+        return ret;
+    }
+
+    /**
+     * Stop everything.
+     */
+    private void stop()
+    {
+        this.executor.shutdownNow();
+        this.filter.destroy();
+        this.keycloak.stop();
+    }
+
+    /**
+     * The main method.
+     *
+     * @param _args arguments as key=value: users, threads, browse
+     * @throws Exception on error
+     */
+    public static void main(final String[] _args)
+        throws Exception
+    {
+        final Map<String, String> args = new HashMap<>();
+        for (final String arg : _args) {
+            final int idx = arg.indexOf('=');
+            if (idx > 0) {
+                args.put(arg.substring(0, idx), arg.substring(idx + 1));
+            }
+        }
+        final LoadDriver driver = new LoadDriver(Integer.parseInt(args.getOrDefault("users", "200")),
+                        Integer.parseInt(args.getOrDefault("threads", "16")),
+                        Integer.parseInt(args.getOrDefault("browse", "20")));
+        try {
+            driver.run();
+        } finally {
+            driver.stop();
+        }
+    }
+
+    /**
+     * Action of a browser.
+     */
+    @FunctionalInterface
+    private interface Action
+    {
+
+        /**
+         * Run the action.
+         *
+         * @param _browser the browser
+         * @return true on success
+         * @throws Exception on error
+         */
+        boolean run(Browser _browser)
+            throws Exception;
+    }
+
+    /**
+     * A simulated browser of one user with its cookies and http session.
+     */
+    private final class Browser
+    {
+
+        /** The user name. */
+        private final String userName;
+
+        /** The cookies. */
+        private final Map<String, String> cookies = new ConcurrentHashMap<>();
+
+        /** Holder of the http session. */
+        private final HttpSession[] session = new HttpSession[1];
+
+        /**
+         * Instantiates a new browser.
+         *
+         * @param _userName the user name
+         */
+        private Browser(final String _userName)
+        {
+            this.userName = _userName;
+        }
+
+        /**
+         * Run the code flow: request the page, follow the redirect to the
+         * stand-in, return with the code and request the page again.
+         *
+         * @return true if the user is logged in
+         * @throws Exception on error
+         */
+        private boolean login()
+            throws Exception
+        {
+            final ResponseRecord challenge = new ResponseRecord();
+            request("GET", PATH, null, null, challenge);
+            final String loginUrl = challenge.getHeader("Location");
+            boolean ret = false;
+            if (challenge.getStatus() == 302 && loginUrl != null) {
+                final HttpResponse<Void> response = LoadDriver.this.httpClient.send(HttpRequest.newBuilder(
+                                URI.create(loginUrl + "&login_hint=" + URLEncoder.encode(this.userName,
+                                                StandardCharsets.UTF_8))).build(),
+                                HttpResponse.BodyHandlers.discarding());
+                final URI callback = URI.create(response.headers().firstValue("Location").orElseThrow());
+                final ResponseRecord codeResponse = new ResponseRecord();
+                request("GET", callback.getPath().substring(ServletStubs.CONTEXTPATH.length()),
+                                callback.getRawQuery(), null, codeResponse);
+                ret = browse();
+            }
+            return ret;
+        }
+
+        /**
+         * Request the page.
+         *
+         * @return true if the request reached the application authenticated
+         * @throws Exception on error
+         */
+        private boolean browse()
+            throws Exception
+        {
+            return request("GET", PATH, null, null, new ResponseRecord());
+        }
+
+        /**
+         * Send the back-channel logout of the user to the filter.
+         *
+         * @return true if the filter accepted the logout
+         * @throws Exception on error
+         */
+        private boolean backchannelLogout()
+            throws Exception
+        {
+            final String action = LoadDriver.this.keycloak.backchannelLogout(this.userName);
+            boolean ret = false;
+            if (action != null) {
+                final ResponseRecord record = new ResponseRecord();
+                final HttpServletRequest request = ServletStubs.request("POST", "/k_logout", null, Map.of(
+                                "Content-Type", "text/plain"), Map.of(), new HttpSession[1],
+                                action.getBytes(StandardCharsets.UTF_8));
+                LoadDriver.this.filter.doFilter(request, ServletStubs.response(record), (_req, _res) -> { });
+                ret = record.getStatus() < 300;
+            }
+            return ret;
+        }
+
+        /**
+         * Send a request through the filter.
+         *
+         * @param _method the http method
+         * @param _path the path
+         * @param _query the query
+         * @param _body the body
+         * @param _record the record of the response
+         * @return true if the request reached the application authenticated
+         * @throws Exception on error
+         */
+        private boolean request(final String _method,
+                                final String _path,
+                                final String _query,
+                                final byte[] _body,
+                                final ResponseRecord _record)
+            throws Exception
+        {
+            final boolean[] authenticated = { false };
+            final HttpServletRequest request = ServletStubs.request(_method, _path, _query, Map.of(),
+                            Map.copyOf(this.cookies), this.session, _body);
+            LoadDriver.this.filter.doFilter(request, ServletStubs.response(_record), (_req, _res) -> {
+                authenticated[0] = ((HttpServletRequest) _req).getUserPrincipal() != null;
+            });
+            _record.applyCookies(this.cookies);
+            return authenticated[0];
+        }
+    }
+
+    /**
+     * Latencies and errors of a phase.
+     */
+    private static final class Stats
+    {
+
+        /** Header of the report. */
+        private static final String HEADER = String.format("%-22s %8s %7s %10s %9s %9s %9s %9s",
+                        "phase", "count", "errors", "ops/s", "p50 ms", "p90 ms", "p99 ms", "max ms");
+
+        /** The name. */
+        private final String name;
+
+        /** The latencies in nanoseconds. */
+        private final List<Long> latencies = Collections.synchronizedList(new ArrayList<>());
+
+        /** The errors. */
+        private final LongAdder errors = new LongAdder();
+
+        /** The duration in nanoseconds. */
+        private long duration;
+
+        /**
+         * Instantiates new stats.
+         *
+         * @param _name the name
+         */
+        private Stats(final String _name)
+        {
+            this.name = _name;
+        }
+
+        /**
+         * Time an action.
+         *
+         * @param _action the action
+         */
+        private void time(final Callable<Boolean> _action)
+        {
+            final long start = System.nanoTime();
+            boolean ok;
+            try {
+                ok = _action.call();
+            } catch (final Exception e) {
+                ok = false;
+            }
+            this.latencies.add(System.nanoTime() - start);
+            if (!ok) {
+                this.errors.increment();
+            }
+        }
+
+        /**
+         * Finish the phase.
+         *
+         * @param _duration the duration in nanoseconds
+         */
+        private void finish(final long _duration)
+        {
+            this.duration = _duration;
+        }
+
+        @Override
+        public String toString()
+        {
+            final long[] all;
+            synchronized (this.latencies) {
+                all = this.latencies.stream().mapToLong(Long::longValue).sorted().toArray();
+            }
+            return String.format("%-22s %8d %7d %10.1f %9.2f %9.2f %9.2f %9.2f", this.name, all.length,
+                            this.errors.sum(), all.length / (this.duration / 1e9), percentile(all, 0.5),
+                            percentile(all, 0.9), percentile(all, 0.99), all.length == 0 ? 0
+                                            : all[all.length - 1] / 1e6);
+        }
+
+        /**
+         * Gets a percentile in milliseconds.
+         *
+         * @param _sorted the sorted latencies
+         * @param _quantile the quantile
+         * @return the percentile
+         */
+        private static double percentile(final long[] _sorted,
+                                         final double _quantile)
+        {
+            return _sorted.length == 0 ? 0 : _sorted[(int) Math.min(_sorted.length - 1, Math.ceil(_quantile
+                            * _sorted.length) - 1)] / 1e6;
+        }
+    }
+}
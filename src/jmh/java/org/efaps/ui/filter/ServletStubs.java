@@ -0,0 +1,544 @@
+/*
+ * Copyright © 2003 - 2024 The eFaps Team (-)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.efaps.ui.filter;
+
+import java.io.ByteArrayInputStream;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.servlet.FilterConfig;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+
+/**
+ * Minimal servlet objects for the benchmarks, built as dynamic proxies so
+ * that no mocking library is needed. Methods that are not used by the
+ * filter return the default value of their return type.
+ */
+public final class ServletStubs
+{
+
+    /** Server name of the stub requests. */
+    public static final String HOST = "localhost";
+
+    /** Server port of the stub requests. */
+    public static final int PORT = 8080;
+
+    /** Context path of the stub requests. */
+    public static final String CONTEXTPATH = "/efaps";
+
+    /**
+     * Utility class.
+     */
+    private ServletStubs()
+    {
+    }
+
+    /**
+     * Create a filter config.
+     *
+     * @param _keycloakJson the content of the keycloak.json
+     * @param _initParams the init parameters of the filter
+     * @return the filter config
+     */
+    public static FilterConfig filterConfig(final String _keycloakJson,
+                                            final Map<String, String> _initParams)
+    {
+        final ServletContext servletContext = proxy(ServletContext.class, (_method, _args) -> {
+            Object ret = null;
+            if ("getResourceAsStream".equals(_method)) {
+                ret = new ByteArrayInputStream(_keycloakJson.getBytes(StandardCharsets.UTF_8));
+            } else if ("getContextPath".equals(_method)) {
+                ret = CONTEXTPATH;
+            }
+            return ret;
+        });
+        return proxy(FilterConfig.class, (_method, _args) -> {
+            Object ret = null;
+            if ("getServletContext".equals(_method)) {
+                ret = servletContext;
+            } else if ("getInitParameter".equals(_method)) {
+                ret = _initParams.get(_args[0]);
+            } else if ("getInitParameterNames".equals(_method)) {
+                ret = Collections.enumeration(_initParams.keySet());
+            } else if ("getFilterName".equals(_method)) {
+                ret = "KeycloakFilter";
+            }
+            return ret;
+        });
+    }
+
+    /**
+     * Create a session.
+     *
+     * @param _id the id
+     * @return the session
+     */
+    public static HttpSession session(final String _id)
+    {
+        final Map<String, Object> attributes = new ConcurrentHashMap<>();
+        return proxy(HttpSession.class, (_method, _args) -> {
+            Object ret = null;
+            switch (_method) {
+                case "getId":
+                    ret = _id;
+                    break;
+                case "getAttribute":
+                    ret = attributes.get(_args[0]);
+                    break;
+                case "setAttribute":
+                    if (_args[1] == null) {
+                        attributes.remove(_args[0]);
+                    } else {
+                        attributes.put((String) _args[0], _args[1]);
+                    }
+                    break;
+                case "removeAttribute":
+                    attributes.remove(_args[0]);
+                    break;
+                case "getAttributeNames":
+                    ret = Collections.enumeration(attributes.keySet());
+                    break;
+                case "invalidate":
+                    attributes.clear();
+                    break;
+                default:
+                    break;
+            }
+            return ret;
+        });
+    }
+
+    /**
+     * Create a GET request.
+     *
+     * @param _path the path below the context path
+     * @param _query the query string, may be null
+     * @param _headers the headers
+     * @param _session the session, may be null. A new session is created on
+     *            demand but not kept for the next request.
+     * @return the request
+     */
+    public static HttpServletRequest request(final String _path,
+                                             final String _query,
+                                             final Map<String, String> _headers,
+                                             final HttpSession _session)
+    {
+        return request("GET", _path, _query, _headers, Map.of(), new HttpSession[] { _session }, null);
+    }
+
+    /**
+     * Create a request.
+     *
+     * @param _httpMethod the http method
+     * @param _path the path below the context path
+     * @param _query the query string, may be null
+     * @param _headers the headers
+     * @param _cookies the cookies by name
+     * @param _session holder of the session. A session created on demand
+     *            is put into it, so it can be used for the next request.
+     * @param _body the body, may be null
+     * @return the request
+     */
+    @SuppressWarnings("checkstyle:methodlength")
+    public static HttpServletRequest request(final String _httpMethod,
+                                             final String _path,
+                                             final String _query,
+                                             final Map<String, String> _headers,
+                                             final Map<String, String> _cookies,
+                                             final HttpSession[] _session,
+                                             final byte[] _body)
+    {
+        final Map<String, Object> attributes = new HashMap<>();
+        final HttpSession[] session = _session;
+        final ServletInputStream in = inputStream(_body == null ? new byte[0] : _body);
+        return proxy(HttpServletRequest.class, (_method, _args) -> {
+            Object ret = null;
+            switch (_method) {
+                case "getScheme":
+                    ret = "http";
+                    break;
+                case "getServerName":
+                    ret = HOST;
+                    break;
+                case "getServerPort":
+                case "getLocalPort":
+                    ret = PORT;
+                    break;
+                case "getContextPath":
+                    ret = CONTEXTPATH;
+                    break;
+                case "getRequestURI":
+                    ret = CONTEXTPATH + _path;
+                    break;
+                case "getServletPath":
+                    ret = _path;
+                    break;
+                case "getRequestURL":
+                    ret = new StringBuffer("http://" + HOST + ":" + PORT + CONTEXTPATH + _path);
+                    break;
+                case "getQueryString":
+                    ret = _query;
+                    break;
+                case "getMethod":
+                    ret = _httpMethod;
+                    break;
+                case "getInputStream":
+                    ret = in;
+                    break;
+                case "getContentLength":
+                    ret = _body == null ? -1 : _body.length;
+                    break;
+                case "getCookies":
+                    ret = _cookies.isEmpty() ? null : _cookies.entrySet().stream()
+                                    .map(_entry -> new Cookie(_entry.getKey(), _entry.getValue()))
+                                    .toArray(Cookie[]::new);
+                    break;
+                case "getProtocol":
+                    ret = "HTTP/1.1";
+                    break;
+                case "getRemoteAddr":
+                    ret = "127.0.0.1";
+                    break;
+                case "getHeader":
+                    ret = _headers.get(_args[0]);
+                    break;
+                case "getHeaders":
+                    ret = _headers.containsKey(_args[0])
+                                    ? Collections.enumeration(Collections.singleton(_headers.get(_args[0])))
+                                    : Collections.emptyEnumeration();
+                    break;
+                case "getHeaderNames":
+                    ret = Collections.enumeration(_headers.keySet());
+                    break;
+                case "getParameter":
+                    ret = parameter(_query, (String) _args[0]);
+                    break;
+                case "getAttribute":
+                    ret = attributes.get(_args[0]);
+                    break;
+                case "setAttribute":
+                    attributes.put((String) _args[0], _args[1]);
+                    break;
+                case "removeAttribute":
+                    attributes.remove(_args[0]);
+                    break;
+                case "getSession":
+                    if (session[0] == null && (_args == null || (Boolean) _args[0])) {
+                        session[0] = session(UUID.randomUUID().toString());
+                    }
+                    ret = session[0];
+                    break;
+                default:
+                    break;
+            }
+            return ret;
+        });
+    }
+
+    /**
+     * Create a response that discards everything written to it.
+     *
+     * @return the response
+     */
+    public static HttpServletResponse response()
+    {
+        return response(null);
+    }
+
+    /**
+     * Create a response that records status, headers and cookies and
+     * discards the body.
+     *
+     * @param _record the record, may be null
+     * @return the response
+     */
+    public static HttpServletResponse response(final ResponseRecord _record)
+    {
+        final ServletOutputStream out = new ServletOutputStream()
+        {
+
+            @Override
+            public boolean isReady()
+            {
+                return true;
+            }
+
+            @Override
+            public void setWriteListener(final WriteListener _writeListener)
+            {
+                // not used
+            }
+
+            @Override
+            public void write(final int _byte)
+            {
+                // discard
+            }
+
+            @Override
+            public void write(final byte[] _bytes,
+                              final int _off,
+                              final int _len)
+            {
+                // discard
+            }
+        };
+        final PrintWriter writer = new PrintWriter(Writer.nullWriter());
+        return proxy(HttpServletResponse.class, (_method, _args) -> {
+            Object ret = null;
+            if ("getOutputStream".equals(_method)) {
+                ret = out;
+            } else if ("getWriter".equals(_method)) {
+                ret = writer;
+            } else if ("getCharacterEncoding".equals(_method)) {
+                ret = "UTF-8";
+            } else if (_record != null) {
+                _record.record(_method, _args);
+            }
+            return ret;
+        });
+    }
+
+    /**
+     * Create an input stream.
+     *
+     * @param _bytes the content
+     * @return the input stream
+     */
+    private static ServletInputStream inputStream(final byte[] _bytes)
+    {
+        final ByteArrayInputStream in = new ByteArrayInputStream(_bytes);
+        return new ServletInputStream()
+        {
+
+            @Override
+            public boolean isFinished()
+            {
+                return in.available() == 0;
+            }
+
+            @Override
+            public boolean isReady()
+            {
+                return true;
+            }
+
+            @Override
+            public void setReadListener(final ReadListener _readListener)
+            {
+                // not used
+            }
+
+            @Override
+            public int read()
+            {
+                return in.read();
+            }
+        };
+    }
+
+    /**
+     * Gets a parameter of a query string.
+     *
+     * @param _query the query
+     * @param _name the name
+     * @return the value
+     */
+    private static String parameter(final String _query,
+                                    final String _name)
+    {
+        String ret = null;
+        if (_query != null) {
+            for (final String pair : _query.split("&")) {
+                final int idx = pair.indexOf('=');
+                final String key = idx < 0 ? pair : pair.substring(0, idx);
+                if (key.equals(_name)) {
+                    ret = idx < 0 ? "" : pair.substring(idx + 1);
+                    break;
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Create a proxy.
+     *
+     * @param <T> the type
+     * @param _clazz the interface
+     * @param _handler the handler
+     * @return the proxy
+     */
+    private static <T> T proxy(final Class<T> _clazz,
+                               final Handler _handler)
+    {
+        return _clazz.cast(Proxy.newProxyInstance(ServletStubs.class.getClassLoader(), new Class<?>[] { _clazz },
+                        (_proxy, _method, _args) -> {
+                            final Object ret;
+                            if ("hashCode".equals(_method.getName())) {
+                                ret = System.identityHashCode(_proxy);
+                            } else if ("equals".equals(_method.getName())) {
+                                ret = _proxy == _args[0];
+                            } else if ("toString".equals(_method.getName())) {
+                                ret = _clazz.getSimpleName() + "Stub";
+                            } else {
+                                final Object value = _handler.invoke(_method.getName(), _args);
+                                ret = value == null ? defaultValue(_method.getReturnType()) : value;
+                            }
+                            return ret;
+                        }));
+    }
+
+    /**
+     * Gets the default value for a type.
+     *
+     * @param _type the type
+     * @return the default value
+     */
+    private static Object defaultValue(final Class<?> _type)
+    {
+        final Object ret;
+        if (_type == boolean.class) {
+            ret = false;
+        } else if (_type == int.class) {
+            ret = 0;
+        } else if (_type == long.class) {
+            ret = 0L;
+        } else if (_type == java.util.Enumeration.class) {
+            ret = Collections.emptyEnumeration();
+        } else {
+            ret = null;
+        }
+        return ret;
+    }
+
+    /**
+     * Status, headers and cookies written to a response.
+     */
+    public static final class ResponseRecord
+    {
+
+        /** The status. */
+        private int status = 200;
+
+        /** The headers. */
+        private final Map<String, String> headers = new HashMap<>();
+
+        /** The cookies, a null value for a removed cookie. */
+        private final Map<String, String> cookies = new HashMap<>();
+
+        /**
+         * Record a call of the response.
+         *
+         * @param _method the method
+         * @param _args the arguments
+         */
+        private void record(final String _method,
+                            final Object[] _args)
+        {
+            switch (_method) {
+                case "setStatus":
+                case "sendError":
+                    this.status = (Integer) _args[0];
+                    break;
+                case "sendRedirect":
+                    this.status = 302;
+                    this.headers.put("Location", (String) _args[0]);
+                    break;
+                case "setHeader":
+                case "addHeader":
+                    this.headers.put((String) _args[0], (String) _args[1]);
+                    break;
+                case "addCookie":
+                    final Cookie cookie = (Cookie) _args[0];
+                    this.cookies.put(cookie.getName(), cookie.getMaxAge() == 0 ? null : cookie.getValue());
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        /**
+         * Gets the status.
+         *
+         * @return the status
+         */
+        public int getStatus()
+        {
+            return this.status;
+        }
+
+        /**
+         * Gets a header.
+         *
+         * @param _name the name
+         * @return the header
+         */
+        public String getHeader(final String _name)
+        {
+            return this.headers.get(_name);
+        }
+
+        /**
+         * Apply the cookies to a cookie jar.
+         *
+         * @param _jar the jar
+         */
+        public void applyCookies(final Map<String, String> _jar)
+        {
+            for (final Map.Entry<String, String> entry : this.cookies.entrySet()) {
+                if (entry.getValue() == null) {
+                    _jar.remove(entry.getKey());
+                } else {
+                    _jar.put(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+    }
+
+    /**
+     * Handler of the proxy methods.
+     */
+    @FunctionalInterface
+    private interface Handler
+    {
+
+        /**
+         * Invoke a method.
+         *
+         * @param _method the name of the method
+         * @param _args the arguments
+         * @return the result, null for the default value
+         */
+        Object invoke(String _method,
+                      Object[] _args);
+    }
+}
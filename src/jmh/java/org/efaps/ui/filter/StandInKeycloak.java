@@ -0,0 +1,475 @@
+/*
+ * Copyright © 2003 - 2024 The eFaps Team (-)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.efaps.ui.filter;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import org.keycloak.jose.jwk.JSONWebKeySet;
+import org.keycloak.jose.jwk.JWK;
+import org.keycloak.jose.jwk.JWKBuilder;
+import org.keycloak.jose.jws.JWSInput;
+import org.keycloak.jose.jws.JWSInputException;
+import org.keycloak.representations.AccessToken;
+import org.keycloak.representations.AccessTokenResponse;
+import org.keycloak.representations.IDToken;
+import org.keycloak.representations.JsonWebToken;
+import org.keycloak.representations.adapters.action.LogoutAction;
+import org.keycloak.util.JsonSerialization;
+import org.keycloak.util.TokenUtil;
+
+/**
+ * Embedded stand-in for a Keycloak realm. It serves the discovery
+ * document, the JWKS, the authorization, token (code and refresh) and
+ * logout endpoints and issues tokens signed by a {@link BenchRealm} that
+ * carry the eFaps claims. The authorization endpoint logs in the user
+ * given by the <code>login_hint</code> parameter without a login page.
+ * Back-channel logouts are created as signed {@link LogoutAction} for the
+ * adapter sessions registered during the code exchange.
+ */
+public class StandInKeycloak
+{
+
+    /** Path prefix of the realm. */
+    private static final String REALMPATH = "/realms/" + BenchRealm.REALM;
+
+    /** Path prefix of the OIDC endpoints. */
+    private static final String OIDCPATH = REALMPATH + "/protocol/openid-connect";
+
+    /** Lifespan of a refresh token in seconds. */
+    private static final int REFRESHLIFESPAN = 1800;
+
+    /** The server. */
+    private final HttpServer server;
+
+    /** The executor of the server. */
+    private final ExecutorService executor;
+
+    /** The realm. */
+    private final BenchRealm realm;
+
+    /** Pending codes, user session by code. */
+    private final Map<String, UserSession> codes = new ConcurrentHashMap<>();
+
+    /** User sessions by session id. */
+    private final Map<String, UserSession> sessions = new ConcurrentHashMap<>();
+
+    /** Number of requests by endpoint. */
+    private final Map<String, LongAdder> requests = new ConcurrentHashMap<>();
+
+    /** Lifespan of the access tokens in seconds. */
+    private volatile int accessLifespan = 300;
+
+    /**
+     * Start a stand-in on a free port of the loopback interface.
+     *
+     * @param _threads number of threads serving requests
+     * @throws IOException on error
+     */
+    public StandInKeycloak(final int _threads)
+        throws IOException
+    {
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 128);
+        this.realm = new BenchRealm("http://127.0.0.1:" + this.server.getAddress().getPort());
+        this.executor = Executors.newFixedThreadPool(_threads);
+        this.server.setExecutor(this.executor);
+        this.server.createContext(REALMPATH, this::handle);
+        this.server.start();
+    }
+
+    /**
+     * Gets the realm.
+     *
+     * @return the realm
+     */
+    public BenchRealm getRealm()
+    {
+        return this.realm;
+    }
+
+    /**
+     * Set the lifespan of the access tokens issued from now on.
+     *
+     * @param _seconds the lifespan in seconds
+     */
+    public void setAccessLifespan(final int _seconds)
+    {
+        this.accessLifespan = _seconds;
+    }
+
+    /**
+     * Gets the number of requests by endpoint.
+     *
+     * @return the requests
+     */
+    public Map<String, Long> getRequests()
+    {
+        final Map<String, Long> ret = new LinkedHashMap<>();
+        this.requests.forEach((_key, _value) -> ret.put(_key, _value.sum()));
+        return ret;
+    }
+
+    /**
+     * Create the body of a back-channel logout for all sessions of a user,
+     * as Keycloak sends it to the admin url of the adapter.
+     *
+     * @param _userName the user name
+     * @return the signed logout action, null if the user has no session
+     */
+    public String backchannelLogout(final String _userName)
+    {
+        final List<String> adapterSessionIds = new ArrayList<>();
+        final List<String> sessionIds = new ArrayList<>();
+        for (final UserSession session : this.sessions.values()) {
+            if (session.userName.equals(_userName)) {
+                adapterSessionIds.addAll(session.adapterSessionIds);
+                sessionIds.add(session.id);
+            }
+        }
+        String ret = null;
+        if (!sessionIds.isEmpty()) {
+            sessionIds.forEach(this.sessions::remove);
+            final int expiration = (int) (System.currentTimeMillis() / 1000) + 30;
+            ret = this.realm.sign(new LogoutAction(UUID.randomUUID().toString(), expiration, BenchRealm.CLIENT,
+                            adapterSessionIds, 0, sessionIds));
+        }
+        return ret;
+    }
+
+    /**
+     * Stop the server.
+     */
+    public void stop()
+    {
+        this.server.stop(0);
+        this.executor.shutdownNow();
+    }
+
+    /**
+     * Handle a request.
+     *
+     * @param _exchange the exchange
+     * @throws IOException on error
+     */
+    private void handle(final HttpExchange _exchange)
+        throws IOException
+    {
+        final String path = _exchange.getRequestURI().getPath();
+        this.requests.computeIfAbsent(path, _key -> new LongAdder()).increment();
+        try {
+            switch (path) {
+                case REALMPATH + "/.well-known/openid-configuration":
+                    sendJson(_exchange, 200, discovery());
+                    break;
+                case OIDCPATH + "/certs":
+                    sendJson(_exchange, 200, jwks());
+                    break;
+                case OIDCPATH + "/auth":
+                    authorize(_exchange);
+                    break;
+                case OIDCPATH + "/token":
+                    token(_exchange);
+                    break;
+                case OIDCPATH + "/logout":
+                    logout(_exchange);
+                    break;
+                default:
+                    send(_exchange, 404, null, new byte[0]);
+                    break;
+            }
+        } catch (final RuntimeException e) {
+            send(_exchange, 500, "text/plain", String.valueOf(e).getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * The discovery document.
+     *
+     * @return the document
+     */
+    private Map<String, Object> discovery()
+    {
+        final String base = this.realm.getIssuer() + "/protocol/openid-connect";
+        final Map<String, Object> ret = new LinkedHashMap<>();
+        ret.put("issuer", this.realm.getIssuer());
+        ret.put("authorization_endpoint", base + "/auth");
+        ret.put("token_endpoint", base + "/token");
+        ret.put("end_session_endpoint", base + "/logout");
+        ret.put("jwks_uri", base + "/certs");
+        ret.put("userinfo_endpoint", base + "/userinfo");
+        ret.put("introspection_endpoint", base + "/token/introspect");
+        ret.put("response_types_supported", List.of("code"));
+        ret.put("id_token_signing_alg_values_supported", List.of("RS256"));
+        return ret;
+    }
+
+    /**
+     * The JWKS.
+     *
+     * @return the key set
+     */
+    private JSONWebKeySet jwks()
+    {
+        final JWK jwk = JWKBuilder.create().kid(this.realm.getKid()).algorithm("RS256")
+                        .rsa(this.realm.getKeyPair().getPublic());
+        final JSONWebKeySet ret = new JSONWebKeySet();
+        ret.setKeys(new JWK[] { jwk });
+        return ret;
+    }
+
+    /**
+     * Authorization endpoint. Logs in the user without a login page and
+     * redirects back with a code.
+     *
+     * @param _exchange the exchange
+     * @throws IOException on error
+     */
+    private void authorize(final HttpExchange _exchange)
+        throws IOException
+    {
+        final Map<String, String> params = parse(_exchange.getRequestURI().getRawQuery());
+        final String userName = params.getOrDefault("login_hint", "user");
+        final UserSession session = new UserSession(userName);
+        this.sessions.put(session.id, session);
+        final String code = UUID.randomUUID().toString();
+        this.codes.put(code, session);
+        final String redirectUri = params.get("redirect_uri");
+        final String location = redirectUri + (redirectUri.contains("?") ? "&" : "?")
+                        + "state=" + encode(params.get("state"))
+                        + "&session_state=" + session.id
+                        + "&code=" + code;
+        _exchange.getResponseHeaders().set("Location", location);
+        send(_exchange, 302, null, new byte[0]);
+    }
+
+    /**
+     * Token endpoint for the code and the refresh grant.
+     *
+     * @param _exchange the exchange
+     * @throws IOException on error
+     */
+    private void token(final HttpExchange _exchange)
+        throws IOException
+    {
+        final Map<String, String> params = parse(new String(_exchange.getRequestBody().readAllBytes(),
+                        StandardCharsets.UTF_8));
+        UserSession session = null;
+        if ("authorization_code".equals(params.get("grant_type"))) {
+            session = this.codes.remove(params.get("code"));
+            if (session != null && params.containsKey("client_session_state")) {
+                session.adapterSessionIds.add(params.get("client_session_state"));
+            }
+        } else if ("refresh_token".equals(params.get("grant_type"))) {
+            session = this.sessions.get(sessionOf(params.get("refresh_token")));
+        }
+        if (session == null) {
+            sendJson(_exchange, 400, Map.of("error", "invalid_grant"));
+        } else {
+            sendJson(_exchange, 200, tokenResponse(session));
+        }
+    }
+
+    /**
+     * Logout endpoint, called by the adapter with the refresh token.
+     *
+     * @param _exchange the exchange
+     * @throws IOException on error
+     */
+    private void logout(final HttpExchange _exchange)
+        throws IOException
+    {
+        final Map<String, String> params = parse(new String(_exchange.getRequestBody().readAllBytes(),
+                        StandardCharsets.UTF_8));
+        final String sessionId = sessionOf(params.get("refresh_token"));
+        if (sessionId != null) {
+            this.sessions.remove(sessionId);
+        }
+        send(_exchange, 204, null, new byte[0]);
+    }
+
+    /**
+     * Issue the tokens for a session.
+     *
+     * @param _session the session
+     * @return the token response
+     */
+    private AccessTokenResponse tokenResponse(final UserSession _session)
+    {
+        final AccessToken accessToken = this.realm.accessToken(_session.userName, this.accessLifespan);
+        accessToken.setSessionId(_session.id);
+        final IDToken idToken = this.realm.idToken(_session.userName, this.accessLifespan, List.of("Admin_User",
+                        "Sales_Manager"), "Company A|Company B");
+        idToken.setSessionId(_session.id);
+
+        final long now = System.currentTimeMillis() / 1000;
+        final JsonWebToken refreshToken = new JsonWebToken();
+        refreshToken.id(UUID.randomUUID().toString());
+        refreshToken.type(TokenUtil.TOKEN_TYPE_REFRESH);
+        refreshToken.issuer(this.realm.getIssuer());
+        refreshToken.subject(accessToken.getSubject());
+        refreshToken.issuedFor(BenchRealm.CLIENT);
+        refreshToken.iat(now);
+        refreshToken.exp(now + REFRESHLIFESPAN);
+        refreshToken.getOtherClaims().put("sid", _session.id);
+
+        final AccessTokenResponse ret = new AccessTokenResponse();
+        ret.setToken(this.realm.sign(accessToken));
+        ret.setIdToken(this.realm.sign(idToken));
+        ret.setRefreshToken(this.realm.sign(refreshToken));
+        ret.setExpiresIn(this.accessLifespan);
+        ret.setRefreshExpiresIn(REFRESHLIFESPAN);
+        ret.setTokenType(TokenUtil.TOKEN_TYPE_BEARER);
+        ret.setSessionState(_session.id);
+        ret.setScope("openid");
+        return ret;
+    }
+
+    /**
+     * Gets the session id of a refresh token.
+     *
+     * @param _refreshToken the refresh token
+     * @return the session id, null if the token can not be read
+     */
+    private String sessionOf(final String _refreshToken)
+    {
+        String ret = null;
+        if (_refreshToken != null) {
+            try {
+                final JsonWebToken token = new JWSInput(_refreshToken).readJsonContent(JsonWebToken.class);
+                ret = (String) token.getOtherClaims().get("sid");
+            } catch (final JWSInputException e) {
+                ret = null;
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Send a json response.
+     *
+     * @param _exchange the exchange
+     * @param _status the status
+     * @param _content the content
+     * @throws IOException on error
+     */
+    private static void sendJson(final HttpExchange _exchange,
+                                 final int _status,
+                                 final Object _content)
+        throws IOException
+    {
+        send(_exchange, _status, "application/json", JsonSerialization.writeValueAsBytes(_content));
+    }
+
+    /**
+     * Send a response.
+     *
+     * @param _exchange the exchange
+     * @param _status the status
+     * @param _contentType the content type, may be null
+     * @param _body the body
+     * @throws IOException on error
+     */
+    private static void send(final HttpExchange _exchange,
+                             final int _status,
+                             final String _contentType,
+                             final byte[] _body)
+        throws IOException
+    {
+        if (_contentType != null) {
+            _exchange.getResponseHeaders().set("Content-Type", _contentType);
+        }
+        _exchange.sendResponseHeaders(_status, _body.length == 0 ? -1 : _body.length);
+        try (OutputStream out = _exchange.getResponseBody()) {
+            out.write(_body);
+        }
+    }
+
+    /**
+     * Parse url encoded parameters.
+     *
+     * @param _encoded the encoded parameters, may be null
+     * @return the parameters
+     */
+    private static Map<String, String> parse(final String _encoded)
+    {
+        final Map<String, String> ret = new HashMap<>();
+        if (_encoded != null && !_encoded.isEmpty()) {
+            for (final String pair : _encoded.split("&")) {
+                final int idx = pair.indexOf('=');
+                if (idx > 0) {
+                    ret.put(URLDecoder.decode(pair.substring(0, idx), StandardCharsets.UTF_8),
+                                    URLDecoder.decode(pair.substring(idx + 1), StandardCharsets.UTF_8));
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Url encode a value.
+     *
+     * @param _value the value
+     * @return the encoded value
+     */
+    private static String encode(final String _value)
+    {
+        return _value == null ? "" : URLEncoder.encode(_value, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * A session of a user in the realm.
+     */
+    private static final class UserSession
+    {
+
+        /** The id. */
+        private final String id = UUID.randomUUID().toString();
+
+        /** The user name. */
+        private final String userName;
+
+        /** Ids of the http sessions of the adapter. */
+        private final Set<String> adapterSessionIds = ConcurrentHashMap.newKeySet();
+
+        /**
+         * Instantiates a new user session.
+         *
+         * @param _userName the user name
+         */
+        private UserSession(final String _userName)
+        {
+            this.userName = _userName;
+        }
+    }
+}
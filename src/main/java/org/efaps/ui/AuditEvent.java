@@ -0,0 +1,114 @@
+/*
+ * Copyright © 2003 - 2024 The eFaps Team (-)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.efaps.ui;
+
+import java.time.Instant;
+
+/**
+ * Immutable audit event of a SSO login, written as one line of JSON by
+ * the {@link AuditLog}.
+ */
+public final class AuditEvent
+{
+
+    /** Time of the event in milliseconds. */
+    private final long time;
+
+    /** The type. */
+    private final Type type;
+
+    /** The user name. */
+    private final String user;
+
+    /** The detail, may be null. */
+    private final String detail;
+
+    /**
+     * Instantiates a new audit event.
+     *
+     * @param _type the type
+     * @param _user the user name
+     * @param _detail the detail, may be null
+     */
+    public AuditEvent(final Type _type,
+                      final String _user,
+                      final String _detail)
+    {
+        this.time = System.currentTimeMillis();
+        this.type = _type;
+        this.user = _user;
+        this.detail = _detail;
+    }
+
+    /**
+     * Gets the time of the event in ISO-8601.
+     *
+     * @return the time
+     */
+    public String getTime()
+    {
+        return Instant.ofEpochMilli(this.time).toString();
+    }
+
+    /**
+     * Gets the type.
+     *
+     * @return the type
+     */
+    public Type getType()
+    {
+        return this.type;
+    }
+
+    /**
+     * Gets the user name.
+     *
+     * @return the user name
+     */
+    public String getUser()
+    {
+        return this.user;
+    }
+
+    /**
+     * Gets the detail.
+     *
+     * @return the detail, may be null
+     */
+    public String getDetail()
+    {
+        return this.detail;
+    }
+
+    /**
+     * The types of events.
+     */
+    public enum Type
+    {
+        /** Login succeeded. */
+        LOGIN_SUCCESS,
+        /** Login failed. */
+        LOGIN_FAILURE,
+        /** Person was created. */
+        PERSON_CREATED,
+        /** Attributes of the person changed. */
+        ATTRIBUTES_CHANGED,
+        /** Roles of the person changed. */
+        ROLES_CHANGED,
+        /** Companies of the person changed. */
+        COMPANIES_CHANGED;
+    }
+}
@@ -0,0 +1,298 @@
+/*
+ * Copyright © 2003 - 2024 The eFaps Team (-)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.efaps.ui;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.keycloak.util.JsonSerialization;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Asynchronous audit log of the SSO logins. Events are published to a
+ * bounded lock-free ring buffer and written in batches by a background
+ * thread to a daily rolling file in the audit directory, one JSON object
+ * per line. Publishing never blocks: if the buffer is full the event is
+ * dropped and counted. Once stopped, no new audit log is created.
+ */
+public final class AuditLog
+{
+
+    /** Size of the ring buffer, must be a power of two. */
+    static final int CAPACITY = 8192;
+
+    /** Max number of events written at once. */
+    private static final int BATCHSIZE = 512;
+
+    /** Interval of the writer in milliseconds. */
+    private static final long INTERVAL = 1000;
+
+    /** Number of days the files are kept. */
+    private static final int KEEPDAYS = 30;
+
+    /** Prefix of the files. */
+    private static final String PREFIX = "sso-audit-";
+
+    /**
+     * Logger for this class.
+     */
+    private static final Logger LOG = LoggerFactory.getLogger(AuditLog.class);
+
+    /** The instance. */
+    private static volatile AuditLog INSTANCE;
+
+    /** Stopped, the instance is not created again. */
+    private static boolean STOPPED;
+
+    /** Slots of the ring buffer, null if free. */
+    private final AtomicReferenceArray<AuditEvent> slots = new AtomicReferenceArray<>(CAPACITY);
+
+    /** Sequence of the next slot to be claimed by a publisher. */
+    private final AtomicLong head = new AtomicLong();
+
+    /** Sequence of the next slot to be read, only advanced by the writer. */
+    private final AtomicLong tail = new AtomicLong();
+
+    /** Events dropped because the buffer was full. */
+    private final LongAdder dropped = new LongAdder();
+
+    /** The writer, null if not scheduled. */
+    private final ScheduledExecutorService writer;
+
+    /** The audit directory. */
+    private volatile String directory;
+
+    /** Dropped events already reported, only used by the writer. */
+    private long reportedDropped;
+
+    /** Date of the current file, only used by the writer. */
+    private LocalDate currentDate;
+
+    /**
+     * Instantiates a new audit log.
+     *
+     * @param _directory the audit directory
+     * @param _schedule start the writer, else {@link #drain()} must be
+     *            called explicitly
+     */
+    AuditLog(final String _directory,
+             final boolean _schedule)
+    {
+        this.directory = _directory;
+        if (_schedule) {
+            this.writer = Executors.newSingleThreadScheduledExecutor(_runnable -> {
+                final Thread thread = new Thread(_runnable, "eFaps-Keycloak-AuditWriter");
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.writer.scheduleWithFixedDelay(this::drain, INTERVAL, INTERVAL, TimeUnit.MILLISECONDS);
+        } else {
+            this.writer = null;
+        }
+    }
+
+    /**
+     * Publish an event. Never blocks.
+     *
+     * @param _event the event
+     * @return true, if published, false if dropped
+     */
+    public boolean publish(final AuditEvent _event)
+    {
+        boolean ret = false;
+        long claimed = this.head.get();
+        while (!ret && claimed - this.tail.get() < CAPACITY) {
+            if (this.head.compareAndSet(claimed, claimed + 1)) {
+                this.slots.lazySet((int) (claimed & (CAPACITY - 1)), _event);
+                ret = true;
+            } else {
+                claimed = this.head.get();
+            }
+        }
+        if (!ret) {
+            this.dropped.increment();
+        }
+        return ret;
+    }
+
+    /**
+     * Move the published events to a batch. A slot that was claimed but is
+     * not yet filled ends the batch, it is read on the next run.
+     *
+     * @param _batch the batch
+     */
+    void poll(final List<AuditEvent> _batch)
+    {
+        long sequence = this.tail.get();
+        while (_batch.size() < BATCHSIZE) {
+            final int index = (int) (sequence & (CAPACITY - 1));
+            final AuditEvent event = this.slots.get(index);
+            if (event == null) {
+                break;
+            }
+            this.slots.lazySet(index, null);
+            sequence++;
+            this.tail.lazySet(sequence);
+            _batch.add(event);
+        }
+    }
+
+    /**
+     * Write all published events. Runs in the writer thread.
+     */
+    void drain()
+    {
+        try {
+            final List<AuditEvent> batch = new ArrayList<>(BATCHSIZE);
+            do {
+                batch.clear();
+                poll(batch);
+                if (!batch.isEmpty()) {
+                    write(batch);
+                }
+            } while (batch.size() == BATCHSIZE);
+            final long droppedNow = this.dropped.sum();
+            if (droppedNow > this.reportedDropped) {
+                LOG.warn("Audit buffer full, {} events dropped", droppedNow - this.reportedDropped);
+                this.reportedDropped = droppedNow;
+            }
+        } catch (final RuntimeException e) {
+            LOG.error("Could not write the audit events", e);
+        }
+    }
+
+    /**
+     * Append a batch to the file of the day.
+     *
+     * @param _batch the batch
+     */
+    private void write(final List<AuditEvent> _batch)
+    {
+        final Path dir = Paths.get(this.directory);
+        final LocalDate today = LocalDate.now();
+        try {
+            if (!today.equals(this.currentDate)) {
+                Files.createDirectories(dir);
+                purge(dir, today);
+                this.currentDate = today;
+            }
+            try (BufferedWriter out = Files.newBufferedWriter(dir.resolve(PREFIX + today + ".log"),
+                            StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+                for (final AuditEvent event : _batch) {
+                    out.write(JsonSerialization.mapper.writeValueAsString(event));
+                    out.newLine();
+                }
+            }
+        } catch (final IOException e) {
+            LOG.error("Could not write {} audit events to {}", _batch.size(), dir, e);
+        }
+    }
+
+    /**
+     * Delete the files older than {@link #KEEPDAYS}.
+     *
+     * @param _dir the directory
+     * @param _today the current date
+     */
+    private void purge(final Path _dir,
+                       final LocalDate _today)
+    {
+        final String oldest = PREFIX + _today.minusDays(KEEPDAYS) + ".log";
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(_dir, PREFIX + "*.log")) {
+            for (final Path file : files) {
+                // ISO dates sort like the days
+                if (file.getFileName().toString().compareTo(oldest) < 0) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        } catch (final IOException e) {
+            LOG.warn("Could not purge the audit directory {}", _dir, e);
+        }
+    }
+
+    /**
+     * Gets the number of dropped events.
+     *
+     * @return the dropped events
+     */
+    public long getDropped()
+    {
+        return this.dropped.sum();
+    }
+
+    /**
+     * Gets the audit log writing to a directory. The writer is started on
+     * first use.
+     *
+     * @param _directory the audit directory
+     * @return the audit log, null if stopped
+     */
+    public static AuditLog get(final String _directory)
+    {
+        AuditLog ret = INSTANCE;
+        if (ret == null) {
+            synchronized (AuditLog.class) {
+                ret = INSTANCE;
+                if (ret == null && !STOPPED) {
+                    ret = new AuditLog(_directory, true);
+                    INSTANCE = ret;
+                }
+            }
+        }
+        if (ret != null && !_directory.equals(ret.directory)) {
+            ret.directory = _directory;
+        }
+        return ret;
+    }
+
+    /**
+     * Stop the writer after writing the pending events.
+     */
+    public static void stop()
+    {
+        synchronized (AuditLog.class) {
+            STOPPED = true;
+            final AuditLog current = INSTANCE;
+            if (current != null) {
+                INSTANCE = null;
+                current.writer.shutdown();
+                try {
+                    if (current.writer.awaitTermination(5, TimeUnit.SECONDS)) {
+                        current.drain();
+                    }
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+}
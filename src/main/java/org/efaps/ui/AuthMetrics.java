@@ -0,0 +1,509 @@
+/*
+ * Copyright © 2003 - 2024 The eFaps Team (-)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.efaps.ui;
+
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Timers for the phases of the authentication in the filter, of the login
+ * and of the provisioning, and counters for the outcomes of the filter. Recording a phase
+ * costs two calls of {@link System#nanoTime()} and a few atomic
+ * increments. The values are published via JMX under {@link #NAME}.
+ */
+public final class AuthMetrics
+    implements AuthMetricsMXBean
+{
+
+    /** Name of the MBean. */
+    public static final String NAME = "org.efaps.keycloak:type=AuthMetrics";
+
+    /** Length of an interval for the percentiles. */
+    private static final long INTERVAL = TimeUnit.MINUTES.toNanos(1);
+
+    /**
+     * Logger for this class.
+     */
+    private static final Logger LOG = LoggerFactory.getLogger(AuthMetrics.class);
+
+    /** The single instance. */
+    private static final AuthMetrics INSTANCE = new AuthMetrics();
+
+    /** The timers. */
+    private final Map<Phase, Timer> timers = new EnumMap<>(Phase.class);
+
+    /** The counters. */
+    private final Map<Outcome, LongAdder> outcomes = new EnumMap<>(Outcome.class);
+
+    /**
+     * Singleton.
+     */
+    private AuthMetrics()
+    {
+        for (final Phase phase : Phase.values()) {
+            this.timers.put(phase, new Timer());
+        }
+        for (final Outcome outcome : Outcome.values()) {
+            this.outcomes.put(outcome, new LongAdder());
+        }
+    }
+
+    /**
+     * Record the duration of a phase.
+     *
+     * @param _phase the phase
+     * @param _start the start as given by {@link System#nanoTime()}
+     * @return the end, to be used as start of the next phase
+     */
+    public long record(final Phase _phase,
+                       final long _start)
+    {
+        final long ret = System.nanoTime();
+        this.timers.get(_phase).record(ret, ret - _start);
+        return ret;
+    }
+
+    /**
+     * Count an outcome of the filter.
+     *
+     * @param _outcome the outcome
+     */
+    public void count(final Outcome _outcome)
+    {
+        this.outcomes.get(_outcome).increment();
+    }
+
+    @Override
+    public Map<String, PhaseStats> getPhases()
+    {
+        final Map<String, PhaseStats> ret = new LinkedHashMap<>();
+        for (final Map.Entry<Phase, Timer> entry : this.timers.entrySet()) {
+            ret.put(entry.getKey().name(), entry.getValue().getStats());
+        }
+        return ret;
+    }
+
+    @Override
+    public Map<String, Long> getOutcomes()
+    {
+        final Map<String, Long> ret = new LinkedHashMap<>();
+        for (final Map.Entry<Outcome, LongAdder> entry : this.outcomes.entrySet()) {
+            ret.put(entry.getKey().name(), entry.getValue().sum());
+        }
+        return ret;
+    }
+
+    @Override
+    public double getLoginP99()
+    {
+        return this.timers.get(Phase.LOGIN).getInterval().getPercentile(0.99);
+    }
+
+    @Override
+    public double getFilterP99()
+    {
+        return this.timers.get(Phase.FILTER).getInterval().getPercentile(0.99);
+    }
+
+    @Override
+    public int getSyncQueueDepth()
+    {
+        return SyncExecutor.get().getQueueDepth();
+    }
+
+    @Override
+    public long getSyncLastLag()
+    {
+        return SyncExecutor.get().getLastLag();
+    }
+
+    @Override
+    public long getSyncMaxLag()
+    {
+        return SyncExecutor.get().getMaxLag();
+    }
+
+    @Override
+    public long getSyncSubmitted()
+    {
+        return SyncExecutor.get().getSubmitted();
+    }
+
+    @Override
+    public long getSyncCoalesced()
+    {
+        return SyncExecutor.get().getCoalesced();
+    }
+
+    @Override
+    public long getSyncRejected()
+    {
+        return SyncExecutor.get().getRejected();
+    }
+
+    @Override
+    public long getSyncExecuted()
+    {
+        return SyncExecutor.get().getExecuted();
+    }
+
+    @Override
+    public long getSyncFailed()
+    {
+        return SyncExecutor.get().getFailed();
+    }
+
+    @Override
+    public void reset()
+    {
+        for (final Timer timer : this.timers.values()) {
+            timer.reset();
+        }
+        for (final LongAdder counter : this.outcomes.values()) {
+            counter.reset();
+        }
+    }
+
+    /**
+     * Gets the single instance.
+     *
+     * @return the auth metrics
+     */
+    public static AuthMetrics get()
+    {
+        return INSTANCE;
+    }
+
+    /**
+     * Register the MBean, if not done yet.
+     */
+    public static void register()
+    {
+        try {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            final ObjectName name = new ObjectName(NAME);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(INSTANCE, name);
+            }
+        } catch (final JMException e) {
+            LOG.warn("Could not register the MBean {}", NAME, e);
+        }
+    }
+
+    /**
+     * Unregister the MBean.
+     */
+    public static void unregister()
+    {
+        try {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            final ObjectName name = new ObjectName(NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+        } catch (final JMException e) {
+            LOG.warn("Could not unregister the MBean {}", NAME, e);
+        }
+    }
+
+    /**
+     * The phases.
+     */
+    public enum Phase
+    {
+        /** Authentication in the filter, without the chain. */
+        FILTER,
+        /** Resolution of the deployment. */
+        FILTER_DEPLOYMENT,
+        /** PreAuthActionsHandler. */
+        FILTER_PREAUTH,
+        /** Check of the current token of the session. */
+        FILTER_CHECKTOKEN,
+        /** Authentication by the request authenticator. */
+        FILTER_AUTHENTICATE,
+        /** AuthenticatedActionsHandler. */
+        FILTER_ACTIONS,
+        /** Check of the permission against Authorization Services. */
+        FILTER_AUTHZ,
+        /** The rest of the chain. */
+        FILTER_CHAIN,
+        /** The whole login. */
+        LOGIN,
+        /** Validation or creation of the person. */
+        LOGIN_VALIDATEPERSON,
+        /** Sync of the attributes. */
+        LOGIN_SYNCATTRIBUTES,
+        /** Sync of the roles. */
+        LOGIN_SYNCROLES,
+        /** Sync of the companies. */
+        LOGIN_SYNCCOMPANIES,
+        /** Writing the registered changes. */
+        LOGIN_FLUSH,
+        /** Commit. */
+        LOGIN_COMMIT,
+        /** Rollback. */
+        LOGIN_ROLLBACK,
+        /** The whole background sync. */
+        LOGIN_BACKGROUNDSYNC,
+        /** Provisioning of one batch of users. */
+        PROVISION_BATCH,
+        /** Validation or creation of a provisioned person. */
+        PROVISION_VALIDATEPERSON,
+        /** Sync of the attributes of a provisioned person. */
+        PROVISION_SYNCATTRIBUTES,
+        /** Sync of the roles of a provisioned person. */
+        PROVISION_SYNCROLES,
+        /** Sync of the companies of a provisioned person. */
+        PROVISION_SYNCCOMPANIES,
+        /** Writing the registered changes of a provisioned person. */
+        PROVISION_FLUSH,
+        /** Commit of a batch. */
+        PROVISION_COMMIT,
+        /** Rollback of a batch. */
+        PROVISION_ROLLBACK;
+    }
+
+    /**
+     * The outcomes of the filter. A request counts one outcome, after its
+     * permission was checked.
+     */
+    public enum Outcome
+    {
+        /** Request bypassed the authentication. */
+        BYPASS,
+        /** Authenticated via the account of the session. */
+        SESSION,
+        /** Authenticated via a bearer token. */
+        BEARER,
+        /** Bearer token rejected. */
+        BEARER_REJECTED,
+        /** Handled by the PreAuthActionsHandler. */
+        PREAUTH,
+        /** Authenticated by the adapter pipeline. */
+        AUTHENTICATED,
+        /** Handled by the AuthenticatedActionsHandler. */
+        ACTIONS,
+        /** Challenge sent. */
+        CHALLENGE,
+        /** Html or ajax response setting the top location. */
+        REDIRECT_HTML,
+        /** Forbidden. */
+        FORBIDDEN,
+        /** Permission denied by Authorization Services. */
+        AUTHZ_DENIED;
+    }
+
+    /**
+     * Statistics of a phase.
+     */
+    public static final class PhaseStats
+    {
+
+        /** The count since start or reset. */
+        private final long count;
+
+        /** The mean of the interval. */
+        private final double mean;
+
+        /** The 50th percentile of the interval. */
+        private final double p50;
+
+        /** The 90th percentile of the interval. */
+        private final double p90;
+
+        /** The 99th percentile of the interval. */
+        private final double p99;
+
+        /** The max of the interval. */
+        private final double max;
+
+        /**
+         * Instantiates new phase stats.
+         *
+         * @param _count the count
+         * @param _interval the histogram of the interval
+         */
+        private PhaseStats(final long _count,
+                           final Histogram _interval)
+        {
+            this.count = _count;
+            this.mean = _interval.getMean();
+            this.p50 = _interval.getPercentile(0.5);
+            this.p90 = _interval.getPercentile(0.9);
+            this.p99 = _interval.getPercentile(0.99);
+            this.max = _interval.getMax();
+        }
+
+        /**
+         * Gets the count since start or reset.
+         *
+         * @return the count
+         */
+        public long getCount()
+        {
+            return this.count;
+        }
+
+        /**
+         * Gets the mean of the interval in milliseconds.
+         *
+         * @return the mean
+         */
+        public double getMean()
+        {
+            return this.mean;
+        }
+
+        /**
+         * Gets the 50th percentile of the interval in milliseconds.
+         *
+         * @return the percentile
+         */
+        public double getP50()
+        {
+            return this.p50;
+        }
+
+        /**
+         * Gets the 90th percentile of the interval in milliseconds.
+         *
+         * @return the percentile
+         */
+        public double getP90()
+        {
+            return this.p90;
+        }
+
+        /**
+         * Gets the 99th percentile of the interval in milliseconds.
+         *
+         * @return the percentile
+         */
+        public double getP99()
+        {
+            return this.p99;
+        }
+
+        /**
+         * Gets the max of the interval in milliseconds.
+         *
+         * @return the max
+         */
+        public double getMax()
+        {
+            return this.max;
+        }
+    }
+
+    /**
+     * Timer of a phase. The histogram is replaced every interval, so that
+     * the percentiles follow the current load. Until the first interval is
+     * completed the current histogram is reported.
+     */
+    private static final class Timer
+    {
+
+        /** Count since start or reset. */
+        private final LongAdder count = new LongAdder();
+
+        /** Histogram of the running interval. */
+        private volatile Histogram current = new Histogram();
+
+        /** Histogram of the last completed interval. */
+        private volatile Histogram last;
+
+        /** Start of the running interval. */
+        private volatile long start = System.nanoTime();
+
+        /**
+         * Record a duration.
+         *
+         * @param _now the current time in nanoseconds
+         * @param _nanos the duration in nanoseconds
+         */
+        private void record(final long _now,
+                            final long _nanos)
+        {
+            if (_now - this.start > INTERVAL) {
+                rotate(_now);
+            }
+            this.count.increment();
+            this.current.record(_nanos / 1000);
+        }
+
+        /**
+         * Start a new interval.
+         *
+         * @param _now the current time in nanoseconds
+         */
+        private synchronized void rotate(final long _now)
+        {
+            if (_now - this.start > INTERVAL) {
+                // an interval without any record is empty
+                this.last = _now - this.start > 2 * INTERVAL ? new Histogram() : this.current;
+                this.current = new Histogram();
+                this.start = _now;
+            }
+        }
+
+        /**
+         * Gets the histogram to report.
+         *
+         * @return the histogram
+         */
+        private Histogram getInterval()
+        {
+            final long now = System.nanoTime();
+            if (now - this.start > INTERVAL) {
+                rotate(now);
+            }
+            final Histogram ret = this.last;
+            return ret == null ? this.current : ret;
+        }
+
+        /**
+         * Gets the stats.
+         *
+         * @return the stats
+         */
+        private PhaseStats getStats()
+        {
+            return new PhaseStats(this.count.sum(), getInterval());
+        }
+
+        /**
+         * Reset.
+         */
+        private synchronized void reset()
+        {
+            this.count.reset();
+            this.last = null;
+            this.current = new Histogram();
+            this.start = System.nanoTime();
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright © 2003 - 2024 The eFaps Team (-)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.efaps.ui;
+
+import java.util.Map;
+
+/**
+ * Management interface of the {@link AuthMetrics}. Percentiles are given in
+ * milliseconds for the last completed interval of one minute.
+ */
+public interface AuthMetricsMXBean
+{
+
+    /**
+     * Gets the statistics of all phases.
+     *
+     * @return the statistics by phase
+     */
+    Map<String, AuthMetrics.PhaseStats> getPhases();
+
+    /**
+     * Gets the counters of the outcomes of the filter.
+     *
+     * @return the counters by outcome
+     */
+    Map<String, Long> getOutcomes();
+
+    /**
+     * Gets the 99th percentile of the login.
+     *
+     * @return the percentile in milliseconds
+     */
+    double getLoginP99();
+
+    /**
+     * Gets the 99th percentile of the authentication in the filter.
+     *
+     * @return the percentile in milliseconds
+     */
+    double getFilterP99();
+
+    /**
+     * Gets the number of users with a pending background sync.
+     *
+     * @return the queue depth
+     */
+    int getSyncQueueDepth();
+
+    /**
+     * Gets the lag of the last background sync.
+     *
+     * @return the lag in milliseconds
+     */
+    long getSyncLastLag();
+
+    /**
+     * Gets the max lag of the background syncs.
+     *
+     * @return the lag in milliseconds
+     */
+    long getSyncMaxLag();
+
+    /**
+     * Gets the number of submitted background syncs.
+     *
+     * @return the number
+     */
+    long getSyncSubmitted();
+
+    /**
+     * Gets the number of coalesced background syncs.
+     *
+     * @return the number
+     */
+    long getSyncCoalesced();
+
+    /**
+     * Gets the number of rejected background syncs.
+     *
+     * @return the number
+     */
+    long getSyncRejected();
+
+    /**
+     * Gets the number of executed background syncs.
+     *
+     * @return the number
+     */
+    long getSyncExecuted();
+
+    /**
+     * Gets the number of failed background syncs.
+     *
+     * @return the number
+     */
+    long getSyncFailed();
+
+    /**
+     * Reset all timers and counters.
+     */
+    void reset();
+}
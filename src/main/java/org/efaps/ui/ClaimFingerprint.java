@@ -0,0 +1,260 @@
+/*
+ * Copyright © 2003 - 2024 The eFaps Team (-)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.efaps.ui;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.keycloak.representations.IDToken;
+
+/**
+ * Digest of the claims of an IDToken that are relevant for the
+ * synchronization of a Person. The last digest that was successfully
+ * synchronized is kept per user name, so that a login with unchanged
+ * claims can skip the sync completely. A digest is kept for at most
+ * {@link #TTL}, longer than the gap of a user logging in on each working
+ * day, and then synced again, so that changes made to a Person within
+ * eFaps are overwritten by the claims again. The number of digests is
+ * bounded by {@link #MAXENTRIES}, the least recently used digest is
+ * evicted first. The digests are dropped if the claims could resolve
+ * differently, that is on a change of the SSO configuration or of the
+ * names known to the {@link ClaimIndex}.
+ */
+public final class ClaimFingerprint
+{
+
+    /** Separator used between the values of the digest. */
+    private static final char SEPARATOR = '\u001F';
+
+    /** Time a fingerprint is kept, covers a weekend between two logins. */
+    private static final long TTL = TimeUnit.DAYS.toMillis(4);
+
+    /** Max number of fingerprints, about 150 bytes each. */
+    static final int MAXENTRIES = 50000;
+
+    /** Last synchronized fingerprint per user name, in the order of last use. */
+    private static final Map<String, Entry> STORE = new LinkedHashMap<>(1024, 0.75f, true)
+    {
+
+        /** Needed for serialization. */
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<String, Entry> _eldest)
+        {
+            return size() > MAXENTRIES;
+        }
+    };
+
+    /**
+     * Singleton.
+     */
+    private ClaimFingerprint()
+    {
+    }
+
+    /**
+     * Calculate the fingerprint for the given token.
+     *
+     * @param _roles the roles given via scope
+     * @param _token the token
+     * @return the fingerprint
+     */
+    public static String of(final Set<String> _roles,
+                            final IDToken _token)
+    {
+        final Map<String, Object> otherClaims = _token.getOtherClaims();
+        final StringBuilder bldr = new StringBuilder()
+                        .append(_token.getGivenName()).append(SEPARATOR)
+                        .append(_token.getFamilyName()).append(SEPARATOR)
+                        .append(sorted(_roles)).append(SEPARATOR)
+                        .append(sorted(otherClaims.get(KeycloakLoginProvider.ROLEKEY))).append(SEPARATOR)
+                        .append(sorted(otherClaims.get(KeycloakLoginProvider.COMPANIESKEY))).append(SEPARATOR)
+                        .append(otherClaims.get(KeycloakLoginProvider.LOCALEKEY)).append(SEPARATOR)
+                        .append(otherClaims.get(KeycloakLoginProvider.TZKEY)).append(SEPARATOR)
+                        .append(otherClaims.get(KeycloakLoginProvider.LANGKEY));
+        try {
+            final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return Base64.getEncoder().encodeToString(digest.digest(bldr.toString().getBytes(
+                            StandardCharsets.UTF_8)));
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Checks if the fingerprint was already synchronized for the user.
+     *
+     * @param _userName the user name
+     * @param _fingerprint the fingerprint
+     * @return true, if unchanged
+     */
+    public static boolean isUnchanged(final String _userName,
+                                      final String _fingerprint)
+    {
+        return isUnchanged(_userName, _fingerprint, System.currentTimeMillis());
+    }
+
+    /**
+     * Checks if the fingerprint was already synchronized for the user.
+     *
+     * @param _userName the user name
+     * @param _fingerprint the fingerprint
+     * @param _now the current time
+     * @return true, if unchanged
+     */
+    static boolean isUnchanged(final String _userName,
+                               final String _fingerprint,
+                               final long _now)
+    {
+        boolean ret = false;
+        synchronized (STORE) {
+            final Entry entry = STORE.get(_userName);
+            if (entry != null) {
+                if (entry.expires <= _now) {
+                    STORE.remove(_userName);
+                } else {
+                    ret = _fingerprint.equals(entry.fingerprint);
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Register the fingerprint as synchronized for the user. Must only be
+     * called after the sync was committed.
+     *
+     * @param _userName the user name
+     * @param _fingerprint the fingerprint
+     */
+    public static void store(final String _userName,
+                             final String _fingerprint)
+    {
+        store(_userName, _fingerprint, System.currentTimeMillis());
+    }
+
+    /**
+     * Register the fingerprint as synchronized for the user, evicting the
+     * least recently used fingerprint if the max size is reached.
+     *
+     * @param _userName the user name
+     * @param _fingerprint the fingerprint
+     * @param _now the current time
+     */
+    static void store(final String _userName,
+                      final String _fingerprint,
+                      final long _now)
+    {
+        synchronized (STORE) {
+            STORE.put(_userName, new Entry(_fingerprint, _now + TTL));
+        }
+    }
+
+    /**
+     * Remove the fingerprint for the user, forcing a sync on next login.
+     *
+     * @param _userName the user name
+     */
+    public static void invalidate(final String _userName)
+    {
+        synchronized (STORE) {
+            STORE.remove(_userName);
+        }
+    }
+
+    /**
+     * Remove all fingerprints.
+     */
+    public static void clear()
+    {
+        synchronized (STORE) {
+            STORE.clear();
+        }
+    }
+
+    /**
+     * Gets the number of fingerprints.
+     *
+     * @return the number of fingerprints
+     */
+    static int size()
+    {
+        synchronized (STORE) {
+            return STORE.size();
+        }
+    }
+
+    /**
+     * Sort the values of a claim so that the order given by Keycloak does not
+     * change the fingerprint. A String (e.g. the "|" separated companies) is
+     * used as it is.
+     *
+     * @param _claim the claim
+     * @return the string representation
+     */
+    private static String sorted(final Object _claim)
+    {
+        final String ret;
+        if (_claim instanceof Collection) {
+            final List<String> values = new ArrayList<>();
+            for (final Object obj : (Collection<?>) _claim) {
+                values.add(String.valueOf(obj));
+            }
+            Collections.sort(values);
+            ret = values.toString();
+        } else {
+            ret = String.valueOf(_claim);
+        }
+        return ret;
+    }
+
+    /**
+     * A synchronized fingerprint.
+     */
+    private static final class Entry
+    {
+
+        /** The fingerprint. */
+        private final String fingerprint;
+
+        /** Expiry in milliseconds. */
+        private final long expires;
+
+        /**
+         * Instantiates a new entry.
+         *
+         * @param _fingerprint the fingerprint
+         * @param _expires the expiry
+         */
+        private Entry(final String _fingerprint,
+                      final long _expires)
+        {
+            this.fingerprint = _fingerprint;
+            this.expires = _expires;
+        }
+    }
+}
@@ -0,0 +1,388 @@
+/*
+ * Copyright © 2003 - 2024 The eFaps Team (-)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.efaps.ui;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.efaps.admin.user.Company;
+import org.efaps.admin.user.Role;
+import org.efaps.ci.CIAdmin;
+import org.efaps.ci.CIAdminUser;
+import org.efaps.db.Context;
+import org.efaps.db.InstanceQuery;
+import org.efaps.db.MultiPrintQuery;
+import org.efaps.db.QueryBuilder;
+import org.efaps.util.EFapsException;
+import org.efaps.util.UUIDUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * In memory index used to resolve the role, company and language claims
+ * without touching the database. The index is loaded completely on first
+ * use. After {@link #MAXAGE} a new index is built in the background while
+ * the old one is still used, and then replaced as a whole. A reload of
+ * the eFaps cache is detected by {@link #checkReload()} and drops the
+ * index, as it holds the Role and Company objects of the old cache. The
+ * claim fingerprints are only dropped if a new index knows other names
+ * than the one before.
+ * Claims that can not be found in the index are resolved by the eFaps
+ * objects or the database directly and remembered as misses, at most
+ * {@link #MAXMISSES} per kind.
+ */
+public final class ClaimIndex
+{
+
+    /** Max age of an index before it is reloaded. */
+    private static final long MAXAGE = TimeUnit.MINUTES.toNanos(15);
+
+    /** Max number of remembered misses per kind, the claims come from the tokens of the users. */
+    static final int MAXMISSES = 1000;
+
+    /**
+     * Logger for this class.
+     */
+    private static final Logger LOG = LoggerFactory.getLogger(ClaimIndex.class);
+
+    /** The current snapshot. */
+    private static volatile Snapshot SNAPSHOT;
+
+    /** Hash of the names of the last loaded snapshot, 0 if none was loaded yet. */
+    private static volatile int NAMES;
+
+    /** Only one rebuild runs at a time. */
+    private static final AtomicBoolean REBUILDING = new AtomicBoolean();
+
+    /** Executor for the rebuild in the background. */
+    private static final ExecutorService REBUILDER = Executors.newSingleThreadExecutor(_runnable -> {
+        final Thread thread = new Thread(_runnable, "eFaps-Keycloak-ClaimIndex");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Singleton.
+     */
+    private ClaimIndex()
+    {
+    }
+
+    /**
+     * Gets the role for a claim.
+     *
+     * @param _claim name or UUID of the role
+     * @return the role, <code>null</code> if not found
+     * @throws EFapsException on error
+     */
+    public static Role getRole(final String _claim)
+        throws EFapsException
+    {
+        final Snapshot snapshot = getSnapshot();
+        Role ret = snapshot.roles.get(_claim);
+        if (ret == null && !snapshot.roleMisses.contains(_claim)) {
+            if (UUIDUtil.isUUID(_claim)) {
+                ret = Role.get(UUID.fromString(_claim));
+            } else {
+                ret = Role.get(_claim);
+            }
+            if (ret == null) {
+                addMiss(snapshot.roleMisses, _claim);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Gets the company for a claim.
+     *
+     * @param _claim name or UUID of the company
+     * @return the company, <code>null</code> if not found
+     * @throws EFapsException on error
+     */
+    public static Company getCompany(final String _claim)
+        throws EFapsException
+    {
+        final Snapshot snapshot = getSnapshot();
+        Company ret = snapshot.companies.get(_claim);
+        if (ret == null && !snapshot.companyMisses.contains(_claim)) {
+            if (UUIDUtil.isUUID(_claim)) {
+                ret = Company.get(UUID.fromString(_claim));
+            } else {
+                ret = Company.get(_claim);
+            }
+            if (ret == null) {
+                addMiss(snapshot.companyMisses, _claim);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Gets the id of the language for a claim.
+     *
+     * @param _claim the language e.g. "es"
+     * @return the id, <code>null</code> if not found
+     * @throws EFapsException on error
+     */
+    public static Long getLanguageId(final String _claim)
+        throws EFapsException
+    {
+        final Snapshot snapshot = getSnapshot();
+        Long ret = snapshot.languages.get(_claim);
+        if (ret == null && !snapshot.languageMisses.contains(_claim)) {
+            final QueryBuilder queryBldr = new QueryBuilder(CIAdmin.Language);
+            queryBldr.addWhereAttrEqValue(CIAdmin.Language.Language, _claim);
+            final InstanceQuery query = queryBldr.getQuery();
+            query.executeWithoutAccessCheck();
+            if (query.next()) {
+                ret = query.getCurrentValue().getId();
+            } else {
+                addMiss(snapshot.languageMisses, _claim);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Remember a claim that could not be resolved, unless
+     * {@link #MAXMISSES} claims are remembered already. Further misses are
+     * looked up again until the next snapshot.
+     *
+     * @param _misses the misses
+     * @param _claim the claim
+     */
+    static void addMiss(final Set<String> _misses,
+                        final String _claim)
+    {
+        if (_misses.size() < MAXMISSES) {
+            _misses.add(_claim);
+        }
+    }
+
+    /**
+     * Drop the current index. It will be reloaded on next use.
+     */
+    public static void reset()
+    {
+        SNAPSHOT = null;
+    }
+
+    /**
+     * Stop the background rebuild. An outdated snapshot is kept in use.
+     */
+    public static void stop()
+    {
+        REBUILDER.shutdownNow();
+    }
+
+    /**
+     * Replace the current snapshot. The claim fingerprints are dropped if
+     * the names that claims can resolve to changed, as a claim synced
+     * before might resolve to another or a new object now.
+     *
+     * @param _snapshot the new snapshot
+     */
+    private static void replace(final Snapshot _snapshot)
+    {
+        if (NAMES != 0 && NAMES != _snapshot.names) {
+            LOG.info("Names of the ClaimIndex changed, forcing sync on next logins");
+            ClaimFingerprint.clear();
+        }
+        NAMES = _snapshot.names;
+        SNAPSHOT = _snapshot;
+    }
+
+    /**
+     * Drop the index if the eFaps cache was reloaded since the index was
+     * loaded. The eFaps cache hands out the same Role object until it is
+     * reloaded, so a Role of the index that differs from the one of the
+     * cache means a reload. Called once per login, must be called within a
+     * Context.
+     *
+     * @throws EFapsException on error
+     */
+    public static void checkReload()
+        throws EFapsException
+    {
+        final Snapshot snapshot = SNAPSHOT;
+        if (snapshot != null && snapshot.sentinel != null
+                        && Role.get(snapshot.sentinel.getId()) != snapshot.sentinel) {
+            LOG.info("eFaps cache was reloaded, resetting the ClaimIndex");
+            reset();
+        }
+    }
+
+    /**
+     * Gets the snapshot. Only the first load is done by the calling thread,
+     * an outdated snapshot is rebuilt in the background and used until the
+     * new one is ready.
+     *
+     * @return the snapshot
+     * @throws EFapsException on error
+     */
+    private static Snapshot getSnapshot()
+        throws EFapsException
+    {
+        Snapshot ret = SNAPSHOT;
+        if (ret == null) {
+            synchronized (ClaimIndex.class) {
+                ret = SNAPSHOT;
+                if (ret == null) {
+                    ret = load();
+                    replace(ret);
+                }
+            }
+        } else if (System.nanoTime() - ret.loaded > MAXAGE && REBUILDING.compareAndSet(false, true)) {
+            try {
+                REBUILDER.execute(ClaimIndex::rebuild);
+            } catch (final RejectedExecutionException e) {
+                REBUILDING.set(false);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Build a new snapshot within its own Context and replace the current
+     * one with it. Runs in the background.
+     */
+    private static void rebuild()
+    {
+        try {
+            Context.begin();
+            try {
+                final Snapshot snapshot = load();
+                // a reset during the load drops the new snapshot as well
+                if (SNAPSHOT != null) {
+                    replace(snapshot);
+                }
+            } finally {
+                Context.rollback();
+            }
+        } catch (final EFapsException e) {
+            LOG.error("Could not rebuild the ClaimIndex, using the current one", e);
+        } finally {
+            REBUILDING.set(false);
+        }
+    }
+
+    /**
+     * Load a new snapshot from eFaps.
+     *
+     * @return the snapshot
+     * @throws EFapsException on error
+     */
+    private static Snapshot load()
+        throws EFapsException
+    {
+        LOG.debug("Loading ClaimIndex");
+        final Map<String, Role> roles = new HashMap<>();
+        final InstanceQuery roleQuery = new QueryBuilder(CIAdminUser.RoleAbstract).getQuery();
+        roleQuery.executeWithoutAccessCheck();
+        while (roleQuery.next()) {
+            final Role role = Role.get(roleQuery.getCurrentValue().getId());
+            if (role != null) {
+                roles.put(role.getName(), role);
+                roles.put(role.getUUID().toString(), role);
+            }
+        }
+        final Map<String, Company> companies = new HashMap<>();
+        final InstanceQuery companyQuery = new QueryBuilder(CIAdminUser.Company).getQuery();
+        companyQuery.executeWithoutAccessCheck();
+        while (companyQuery.next()) {
+            final Company company = Company.get(companyQuery.getCurrentValue().getId());
+            if (company != null) {
+                companies.put(company.getName(), company);
+                companies.put(company.getUUID().toString(), company);
+            }
+        }
+        final Map<String, Long> languages = new HashMap<>();
+        final MultiPrintQuery multi = new QueryBuilder(CIAdmin.Language).getPrint();
+        multi.addAttribute(CIAdmin.Language.Language);
+        multi.executeWithoutAccessCheck();
+        while (multi.next()) {
+            languages.put(multi.<String>getAttribute(CIAdmin.Language.Language), multi.getCurrentInstance().getId());
+        }
+        LOG.debug("Loaded ClaimIndex with {} Roles, {} Companies, {} Languages", roles.size(), companies.size(),
+                        languages.size());
+        return new Snapshot(roles, companies, languages, roles.isEmpty() ? null : roles.values().iterator().next());
+    }
+
+    /**
+     * Immutable content of the index.
+     */
+    private static final class Snapshot
+    {
+
+        /** Time of loading. */
+        private final long loaded = System.nanoTime();
+
+        /** Roles by name and UUID. */
+        private final Map<String, Role> roles;
+
+        /** Companies by name and UUID. */
+        private final Map<String, Company> companies;
+
+        /** Language ids by language. */
+        private final Map<String, Long> languages;
+
+        /** Role of the eFaps cache the index was loaded from, null if there is none. */
+        private final Role sentinel;
+
+        /** Hash of the names of roles, companies and languages, never 0. */
+        private final int names;
+
+        /** Role claims that could not be resolved. */
+        private final Set<String> roleMisses = ConcurrentHashMap.newKeySet();
+
+        /** Company claims that could not be resolved. */
+        private final Set<String> companyMisses = ConcurrentHashMap.newKeySet();
+
+        /** Language claims that could not be resolved. */
+        private final Set<String> languageMisses = ConcurrentHashMap.newKeySet();
+
+        /**
+         * Instantiates a new snapshot.
+         *
+         * @param _roles the roles
+         * @param _companies the companies
+         * @param _languages the languages
+         * @param _sentinel role of the eFaps cache, may be null
+         */
+        private Snapshot(final Map<String, Role> _roles,
+                         final Map<String, Company> _companies,
+                         final Map<String, Long> _languages,
+                         final Role _sentinel)
+        {
+            this.roles = Map.copyOf(_roles);
+            this.companies = Map.copyOf(_companies);
+            this.languages = Map.copyOf(_languages);
+            this.sentinel = _sentinel;
+            final int hash = Objects.hash(_roles.keySet(), _companies.keySet(), _languages.keySet());
+            this.names = hash == 0 ? 1 : hash;
+        }
+    }
+}
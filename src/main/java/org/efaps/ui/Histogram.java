@@ -0,0 +1,165 @@
+/*
+ * Copyright © 2003 - 2024 The eFaps Team (-)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.efaps.ui;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock free histogram of durations in microseconds. Every power of two is
+ * split into eight buckets, so a percentile is precise to 12.5 percent
+ * with a fixed footprint of 496 counters and no allocation on record.
+ */
+final class Histogram
+{
+
+    /** Number of bits for the sub buckets of a power of two. */
+    private static final int SUBBITS = 3;
+
+    /** Number of sub buckets of a power of two. */
+    private static final int SUBBUCKETS = 1 << SUBBITS;
+
+    /** Number of buckets. */
+    private static final int BUCKETS = (64 - SUBBITS + 1) * SUBBUCKETS;
+
+    /** The buckets. */
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+    /** The count. */
+    private final LongAdder count = new LongAdder();
+
+    /** The sum in microseconds. */
+    private final LongAdder sum = new LongAdder();
+
+    /** The max in microseconds. */
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Record a duration.
+     *
+     * @param _micros the duration in microseconds
+     */
+    void record(final long _micros)
+    {
+        final long value = Math.max(0, _micros);
+        this.buckets.incrementAndGet(index(value));
+        this.count.increment();
+        this.sum.add(value);
+        if (value > this.max.get()) {
+            this.max.accumulateAndGet(value, Math::max);
+        }
+    }
+
+    /**
+     * Gets the count.
+     *
+     * @return the count
+     */
+    long getCount()
+    {
+        return this.count.sum();
+    }
+
+    /**
+     * Gets the mean in milliseconds.
+     *
+     * @return the mean
+     */
+    double getMean()
+    {
+        final long cnt = this.count.sum();
+        return cnt == 0 ? 0 : this.sum.sum() / (double) cnt / 1000;
+    }
+
+    /**
+     * Gets the max in milliseconds.
+     *
+     * @return the max
+     */
+    double getMax()
+    {
+        return this.max.get() / 1000d;
+    }
+
+    /**
+     * Gets a percentile in milliseconds. The upper bound of the bucket
+     * containing the percentile is returned.
+     *
+     * @param _quantile the quantile, e.g. 0.99
+     * @return the percentile
+     */
+    double getPercentile(final double _quantile)
+    {
+        long total = 0;
+        final long[] snapshot = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = this.buckets.get(i);
+            total += snapshot[i];
+        }
+        double ret = 0;
+        if (total > 0) {
+            final long target = Math.max(1, (long) Math.ceil(_quantile * total));
+            long cumulative = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                cumulative += snapshot[i];
+                if (cumulative >= target) {
+                    ret = Math.min(upperBound(i), this.max.get()) / 1000d;
+                    break;
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Gets the index of the bucket for a value.
+     *
+     * @param _value the value
+     * @return the index
+     */
+    static int index(final long _value)
+    {
+        final int ret;
+        if (_value < SUBBUCKETS) {
+            ret = (int) _value;
+        } else {
+            final int msb = 63 - Long.numberOfLeadingZeros(_value);
+            final int sub = (int) (_value >>> (msb - SUBBITS)) & (SUBBUCKETS - 1);
+            ret = (msb - SUBBITS + 1) * SUBBUCKETS + sub;
+        }
+        return ret;
+    }
+
+    /**
+     * Gets the largest value of a bucket.
+     *
+     * @param _index the index of the bucket
+     * @return the upper bound
+     */
+    static long upperBound(final int _index)
+    {
+        final long ret;
+        if (_index < SUBBUCKETS) {
+            ret = _index;
+        } else {
+            final int shift = _index / SUBBUCKETS - 1;
+            final long lower = (long) (SUBBUCKETS + _index % SUBBUCKETS) << shift;
+            ret = lower + (1L << shift) - 1;
+        }
+        return ret;
+    }
+}
@@ -15,34 +15,24 @@
  */
 package org.efaps.ui;
 
-import java.util.Arrays;
-import java.util.Collection;
-import java.util.Collections;
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
-import java.util.Map;
 import java.util.Set;
 import java.util.TimeZone;
-import java.util.UUID;
 
 import javax.servlet.http.HttpSession;
 
-import org.apache.commons.collections.CollectionUtils;
 import org.apache.commons.lang3.StringUtils;
-import org.efaps.admin.EFapsSystemConfiguration;
 import org.efaps.admin.user.Company;
-import org.efaps.admin.user.JAASSystem;
 import org.efaps.admin.user.Person;
 import org.efaps.admin.user.Person.AttrName;
 import org.efaps.admin.user.Role;
 import org.efaps.api.ui.ILoginProvider;
-import org.efaps.ci.CIAdmin;
 import org.efaps.db.Context;
-import org.efaps.db.InstanceQuery;
-import org.efaps.db.QueryBuilder;
+import org.efaps.ui.AuthMetrics.Phase;
 import org.efaps.util.EFapsException;
-import org.efaps.util.UUIDUtil;
 import org.keycloak.adapters.servlet.OIDCFilterSessionStore.SerializableKeycloakAccount;
 import org.keycloak.adapters.spi.KeycloakAccount;
 import org.keycloak.representations.IDToken;
@@ -71,18 +61,6 @@ public class KeycloakLoginProvider
     /** The Constant COMPANIESKEY. */
     public static final String COMPANIESKEY = "eFapsCompanies";
 
-    /** The Constant PERMITROLEUPDATE. */
-    private static final String PERMITROLEUPDATE = "org.efaps.kernel.sso.PermitRoleUpdate";
-
-    /** The Constant PERMITCOMPANYUPDATE. */
-    private static final String PERMITCOMPANYUPDATE = "org.efaps.kernel.sso.PermitCompanyUpdate";
-
-    /** The Constant PERMITATTRIBUTEUPDATE. */
-    private static final String PERMITATTRIBUTEUPDATE = "org.efaps.kernel.sso.PermitAttributeUpdate";
-
-    /** The Constant PERMITCREATEPERSON. */
-    private static final String PERMITCREATEPERSON = "org.efaps.kernel.sso.PermitCreatePerson";
-
     /**
      * Logger for this class.
      */
@@ -96,6 +74,14 @@ public class KeycloakLoginProvider
         final SerializableKeycloakAccount account = (SerializableKeycloakAccount) _httpSession.getAttribute(
                         KeycloakAccount.class.getName());
         if (account != null) {
+            final AuthMetrics metrics = AuthMetrics.get();
+            final long start = System.nanoTime();
+            final String userName = account.getPrincipal().getName();
+            final IDToken token = account.getKeycloakSecurityContext().getIdToken();
+            final LoginContext loginContext = new LoginContext(userName, account.getRoles(), token);
+            // published once at the end, so the audit configuration is read once per login
+            final List<AuditEvent> auditEvents = new ArrayList<>();
+            String failure = null;
             try {
                 if (Context.isTMActive()) {
                     Context.getThreadContext();
@@ -103,19 +89,44 @@ public class KeycloakLoginProvider
                     Context.begin();
                 }
                 boolean ok = false;
-                final String userName = account.getPrincipal().getName();
+                String fingerprint = null;
+                Runnable deferred = null;
                 try {
-                    final IDToken token = account.getKeycloakSecurityContext().getIdToken();
-                    if (validatePerson(userName, token)) {
-                        syncAttributes(userName, token);
-                        syncRoles(userName, account.getRoles(), token);
-                        syncCompanies(userName, token);
-                        Person.reset(userName);
-                        ok = getPerson(userName) != null;
+                    ClaimIndex.checkReload();
+                    final long validateStart = System.nanoTime();
+                    final boolean valid = validatePerson(loginContext);
+                    metrics.record(Phase.LOGIN_VALIDATEPERSON, validateStart);
+                    if (valid) {
+                        final String current = ClaimFingerprint.of(account.getRoles(), token);
+                        if (ClaimFingerprint.isUnchanged(userName, current)) {
+                            LOG.debug("Claims unchanged for {}, skipping sync", userName);
+                            ok = true;
+                        } else if (SSOConfiguration.get().isAsyncSync() && !loginContext.isPersonCreated()) {
+                            LOG.debug("Deferring sync for {}", userName);
+                            final Set<String> scopeRoles = account.getRoles();
+                            deferred = () -> syncInBackground(new LoginContext(userName, scopeRoles, token),
+                                            current);
+                            ok = true;
+                        } else {
+                            sync(loginContext);
+                            ok = true;
+                            fingerprint = current;
+                        }
                     }
                 } finally {
+                    final long endStart = System.nanoTime();
                     if (ok && Context.isTMActive()) {
                         Context.commit();
+                        metrics.record(Phase.LOGIN_COMMIT, endStart);
+                        if (fingerprint != null) {
+                            ClaimFingerprint.store(userName, fingerprint);
+                        }
+                        auditEvents.addAll(loginContext.getAuditEvents());
+                        auditEvents.add(new AuditEvent(AuditEvent.Type.LOGIN_SUCCESS, userName,
+                                        deferred == null ? null : "sync deferred"));
+                        if (deferred != null && !SyncExecutor.get().submit(userName, deferred)) {
+                            deferred.run();
+                        }
                     } else {
                         if (Context.isTMMarkedRollback()) {
                             LOG.error("transaction is marked to roll back");
@@ -123,6 +134,7 @@ public class KeycloakLoginProvider
                             LOG.error("transaction manager in undefined status");
                         }
                         Context.rollback();
+                        metrics.record(Phase.LOGIN_ROLLBACK, endStart);
                     }
                     if (ok) {
                         ret = userName;
@@ -130,103 +142,168 @@ public class KeycloakLoginProvider
                 }
             } catch (final EFapsException e) {
                 LOG.error("could not verify person", e);
+                failure = e.getMessage();
+            } finally {
+                // only now the created person is visible to concurrent logins
+                loginContext.releaseCreationLock();
+                if (ret == null) {
+                    auditEvents.add(new AuditEvent(AuditEvent.Type.LOGIN_FAILURE, userName,
+                                    failure == null ? "rejected" : failure));
+                }
+                audit(auditEvents);
+                metrics.record(Phase.LOGIN, start);
             }
         }
         return ret;
     }
 
     /**
-     * Validate if a person exists in the eFaps-Database. If it does not exists
-     * and it is permitted via SytemConfiguration will create a basic Person.
-     * Update of Attributes etc. must be done on syncAttributes.
+     * Run all sync steps for the person within the current transaction.
+     * The durations are recorded as login or provisioning phases, depending
+     * on the login context.
      *
-     * @param _userName the user name
+     * @param _loginContext the login context
+     * @return true, if anything was written
      * @throws EFapsException on error
      */
-    private boolean validatePerson(final String _userName,
-                                   final IDToken _token)
+    boolean sync(final LoginContext _loginContext)
         throws EFapsException
     {
-        LOG.trace("Steping into validatePerson");
-        final Person person = getPerson(_userName);
-        boolean ret = false;
-        if (person != null) {
-            ret = true;
-        } else if (EFapsSystemConfiguration.get().getAttributeValueAsBoolean(PERMITCREATEPERSON)) {
-            LOG.debug("{} is activated", PERMITCREATEPERSON);
-            final String userName = UUIDUtil.isUUID(_userName) ? _token.getPreferredUsername() : _userName;
-            Person.createPerson(JAASSystem.getJAASSystem("eFaps"), userName, userName,
-                            UUIDUtil.isUUID(_userName) ? _userName : null, true);
-            ret = true;
+        final AuthMetrics metrics = AuthMetrics.get();
+        final boolean provisioning = _loginContext.isProvisioning();
+        long time = System.nanoTime();
+        syncAttributes(_loginContext);
+        time = metrics.record(provisioning ? Phase.PROVISION_SYNCATTRIBUTES : Phase.LOGIN_SYNCATTRIBUTES, time);
+        syncRoles(_loginContext);
+        time = metrics.record(provisioning ? Phase.PROVISION_SYNCROLES : Phase.LOGIN_SYNCROLES, time);
+        syncCompanies(_loginContext);
+        time = metrics.record(provisioning ? Phase.PROVISION_SYNCCOMPANIES : Phase.LOGIN_SYNCCOMPANIES, time);
+        final boolean ret = _loginContext.flush();
+        if (ret) {
+            Person.reset(_loginContext.getUserName());
         }
+        metrics.record(provisioning ? Phase.PROVISION_FLUSH : Phase.LOGIN_FLUSH, time);
         return ret;
     }
 
     /**
-     * Gets the person.
+     * Run all sync steps for the person in a transaction of its own. Used
+     * for the background sync.
      *
-     * @param _userName the user name
-     * @return the person
-     * @throws EFapsException the e faps exception
+     * @param _loginContext the login context
+     * @param _fingerprint the fingerprint of the claims
      */
-    private Person getPerson(final String _userName)
+    private void syncInBackground(final LoginContext _loginContext,
+                                  final String _fingerprint)
+    {
+        final long start = System.nanoTime();
+        try {
+            Context.begin();
+            boolean ok = false;
+            try {
+                if (_loginContext.getPerson() != null) {
+                    sync(_loginContext);
+                    ok = true;
+                }
+            } finally {
+                if (ok && Context.isTMActive()) {
+                    Context.commit();
+                    ClaimFingerprint.store(_loginContext.getUserName(), _fingerprint);
+                    audit(_loginContext.getAuditEvents());
+                } else {
+                    Context.rollback();
+                }
+            }
+        } catch (final EFapsException e) {
+            LOG.error("could not sync person {}", _loginContext.getUserName(), e);
+        } finally {
+            AuthMetrics.get().record(Phase.LOGIN_BACKGROUNDSYNC, start);
+        }
+    }
+
+    /**
+     * Publish audit events, if an audit directory is configured and the
+     * audit log is not stopped. The events are only handed to the
+     * {@link AuditLog}, they are written in the background. The
+     * configuration is read on each call, so the events of one login or
+     * batch are published at once.
+     *
+     * @param _events the events
+     */
+    static void audit(final List<AuditEvent> _events)
+    {
+        if (!_events.isEmpty()) {
+            try {
+                final String directory = SSOConfiguration.get().getAuditDirectory();
+                if (directory != null) {
+                    final AuditLog auditLog = AuditLog.get(directory);
+                    if (auditLog != null) {
+                        for (final AuditEvent event : _events) {
+                            auditLog.publish(event);
+                        }
+                    }
+                }
+            } catch (final EFapsException e) {
+                LOG.debug("Could not read the audit configuration", e);
+            }
+        }
+    }
+
+    /**
+     * Validate if a person exists in the eFaps-Database. If it does not exists
+     * and it is permitted via SytemConfiguration will create a basic Person.
+     * Update of Attributes etc. must be done on syncAttributes.
+     *
+     * @param _loginContext the login context
+     * @return true if the person exists
+     * @throws EFapsException on error
+     */
+    boolean validatePerson(final LoginContext _loginContext)
         throws EFapsException
     {
-        final Person person;
-        if (UUIDUtil.isUUID(_userName)) {
-            person = Person.get(UUID.fromString(_userName));
-        } else {
-            person = Person.get(_userName);
+        LOG.trace("Steping into validatePerson");
+        final Person person = _loginContext.getPerson();
+        boolean ret = false;
+        if (person != null) {
+            ret = true;
+        } else if (SSOConfiguration.get().isPermitCreatePerson()) {
+            LOG.debug("PermitCreatePerson is activated");
+            // concurrent first logins of the same user share one creation
+            if (_loginContext.lockCreation() != null) {
+                LOG.debug("Person was created by a concurrent login");
+                _loginContext.releaseCreationLock();
+            } else {
+                final String userName = _loginContext.isUUID() ? _loginContext.getToken().getPreferredUsername()
+                                : _loginContext.getUserName();
+                _loginContext.setCreatedPerson(Person.createPerson(_loginContext.getJAASSystem(), userName,
+                                userName, _loginContext.isUUID() ? _loginContext.getUserName() : null, true));
+            }
+            ret = true;
         }
-        return person;
+        return ret;
     }
 
     /**
      * Sync roles.
      *
-     * @param _userName the user name
-     * @param _roles set of roles
-     * @param _token the token
+     * @param _loginContext the login context
      * @throws EFapsException the e faps exception
      */
-    @SuppressWarnings("unchecked")
-    private void syncRoles(final String _userName,
-                           final Set<String> _roles,
-                           final IDToken _token)
+    private void syncRoles(final LoginContext _loginContext)
         throws EFapsException
     {
         LOG.trace("Steping into syncRoles");
-        if (EFapsSystemConfiguration.get().getAttributeValueAsBoolean(PERMITROLEUPDATE)) {
-            LOG.debug("{} is activated", PERMITROLEUPDATE);
-            final Collection<String> roleStrs;
-            if (CollectionUtils.isNotEmpty(_roles)) {
-                roleStrs = _roles;
-                LOG.debug("Roles via scope are assigned with: {}", ROLEKEY, roleStrs);
-            } else {
-                final Map<String, Object> otherClaims = _token.getOtherClaims();
-                if (otherClaims.containsKey(ROLEKEY)) {
-                    roleStrs = (Collection<String>) otherClaims.get(ROLEKEY);
-                    LOG.debug("{}: is is set with {}", ROLEKEY, roleStrs);
-                } else {
-                    roleStrs = Collections.emptyList();
-                }
-            }
-            final Person person = getPerson(_userName);
-            if (person != null) {
+        if (SSOConfiguration.get().isPermitRoleUpdate()) {
+            LOG.debug("PermitRoleUpdate is activated");
+            if (_loginContext.getPerson() != null) {
                 final Set<Role> roles = new HashSet<>();
-                for (final String roleStr : roleStrs) {
-                    final Role role;
-                    if (UUIDUtil.isUUID(roleStr)) {
-                        role = Role.get(UUID.fromString(roleStr));
-                    } else {
-                        role = Role.get(roleStr);
-                    }
+                for (final String roleStr : _loginContext.getRoleClaims()) {
+                    final Role role = ClaimIndex.getRole(roleStr);
                     if (role != null) {
                         roles.add(role);
                     }
                 }
-                final JAASSystem jaasSystem = JAASSystem.getJAASSystem("eFaps");
-                person.setRoles(jaasSystem, roles);
+                _loginContext.registerRoles(roles);
             }
         }
     }
@@ -234,46 +311,25 @@ public class KeycloakLoginProvider
     /**
      * Sync companies.
      *
-     * @param _userName the user name
-     * @param _token the token
-     * @throws EFapsException
+     * @param _loginContext the login context
+     * @throws EFapsException the e faps exception
      */
-    @SuppressWarnings("unchecked")
-    private void syncCompanies(final String _userName, final IDToken _token)
+    private void syncCompanies(final LoginContext _loginContext)
         throws EFapsException
     {
         LOG.trace("Steping into syncCompanies");
-        if (EFapsSystemConfiguration.get().getAttributeValueAsBoolean(PERMITCOMPANYUPDATE)) {
-            LOG.debug("{} is activated", PERMITCOMPANYUPDATE);
-            final Map<String, Object> otherClaims = _token.getOtherClaims();
-            if (otherClaims.containsKey(COMPANIESKEY)) {
-                final Object claimObject = otherClaims.get(COMPANIESKEY);
-                List<String> companyClaims = null;
-                if (claimObject instanceof List) {
-                    companyClaims = (List<String>) otherClaims.get(COMPANIESKEY);
-                    LOG.debug("{}: is is set with {}", COMPANIESKEY, companyClaims);
-                } else {
-                    final String companiesStr = (String) otherClaims.get(COMPANIESKEY);
-                    LOG.debug("{}: is is set with {}", COMPANIESKEY, companiesStr);
-                    companyClaims = Arrays.asList(StringUtils.split(companiesStr, "|"));
-                }
-                final Person person = getPerson(_userName);
-                if (person != null) {
-                    final Set<Company> companies = new HashSet<>();
-                    for (final String companyStr : companyClaims) {
-                        final Company company;
-                        if (UUIDUtil.isUUID(companyStr)) {
-                            company = Company.get(UUID.fromString(companyStr));
-                        } else {
-                            company = Company.get(companyStr);
-                        }
-                        if (company != null) {
-                            companies.add(company);
-                        }
+        if (SSOConfiguration.get().isPermitCompanyUpdate()) {
+            LOG.debug("PermitCompanyUpdate is activated");
+            final List<String> companyClaims = _loginContext.getCompanyClaims();
+            if (companyClaims != null && _loginContext.getPerson() != null) {
+                final Set<Company> companies = new HashSet<>();
+                for (final String companyStr : companyClaims) {
+                    final Company company = ClaimIndex.getCompany(companyStr);
+                    if (company != null) {
+                        companies.add(company);
                     }
-                    final JAASSystem jaasSystem = JAASSystem.getJAASSystem("eFaps");
-                    person.setCompanies(jaasSystem, companies);
                 }
+                _loginContext.registerCompanies(companies);
             }
         }
     }
@@ -281,60 +337,51 @@ public class KeycloakLoginProvider
     /**
      * Sync attributes.
      *
-     * @param _userName the user name
-     * @param _token the token
+     * @param _loginContext the login context
      * @throws EFapsException the e faps exception
      */
-    private void syncAttributes(final String _userName,
-                                final IDToken _token)
+    private void syncAttributes(final LoginContext _loginContext)
         throws EFapsException
     {
         LOG.trace("Steping into syncAttributes");
-        if (EFapsSystemConfiguration.get().getAttributeValueAsBoolean(PERMITATTRIBUTEUPDATE)) {
-            LOG.debug("{} is activated", PERMITATTRIBUTEUPDATE);
-            final Person person = getPerson(_userName);
+        if (SSOConfiguration.get().isPermitAttributeUpdate()) {
+            LOG.debug("PermitAttributeUpdate is activated");
+            final Person person = _loginContext.getPerson();
             if (person != null) {
-                boolean update = false;
-                if (!person.getFirstName().equals(_token.getGivenName())) {
-                    person.updateAttrValue(AttrName.FIRSTNAME, _token.getGivenName());
-                    update = true;
+                final IDToken token = _loginContext.getToken();
+                if (!person.getFirstName().equals(token.getGivenName())) {
+                    person.updateAttrValue(AttrName.FIRSTNAME, token.getGivenName());
+                    _loginContext.registerAttrUpdate(AttrName.FIRSTNAME);
                 }
-                if (!person.getLastName().equals(_token.getFamilyName())) {
-                    person.updateAttrValue(AttrName.LASTNAME, _token.getFamilyName());
-                    update = true;
+                if (!person.getLastName().equals(token.getFamilyName())) {
+                    person.updateAttrValue(AttrName.LASTNAME, token.getFamilyName());
+                    _loginContext.registerAttrUpdate(AttrName.LASTNAME);
                 }
-                final Map<String, Object> otherClaims = _token.getOtherClaims();
-                final String localeTag = (String) otherClaims.get(LOCALEKEY);
+                final String localeTag = _loginContext.getClaim(LOCALEKEY);
                 LOG.debug("{}: is is set with {}", LOCALEKEY, localeTag);
                 if (StringUtils.isNotEmpty(localeTag) && !person.getLocale().toLanguageTag().equals(localeTag)
                                 && Locale.forLanguageTag(localeTag) != null) {
                     person.updateAttrValue(AttrName.LOCALE, localeTag);
-                    update = true;
+                    _loginContext.registerAttrUpdate(AttrName.LOCALE);
                 }
-                final String tzStr = (String) otherClaims.get(TZKEY);
+                final String tzStr = _loginContext.getClaim(TZKEY);
                 if (StringUtils.isNotEmpty(tzStr)) {
                     LOG.debug("{}: is is set with {}", TZKEY, tzStr);
                     final TimeZone tz = TimeZone.getTimeZone(tzStr);
                     if (!person.getTimeZone().getID().equals(tzStr) && tz != null) {
                         person.updateAttrValue(AttrName.TIMZONE, tzStr);
-                        update = true;
+                        _loginContext.registerAttrUpdate(AttrName.TIMZONE);
                     }
                 }
-                final String lang = (String) otherClaims.get(LANGKEY);
+                final String lang = _loginContext.getClaim(LANGKEY);
                 if (StringUtils.isNotEmpty(lang) && !person.getLanguage().equals(lang)) {
                     LOG.debug("{}: is is set with {}", LANGKEY, lang);
-                    final QueryBuilder queryBldr = new QueryBuilder(CIAdmin.Language);
-                    queryBldr.addWhereAttrEqValue(CIAdmin.Language.Language, lang);
-                    final InstanceQuery query = queryBldr.getQuery();
-                    query.executeWithoutAccessCheck();
-                    if (query.next()) {
-                        person.updateAttrValue(AttrName.LANGUAGE, String.valueOf(query.getCurrentValue().getId()));
-                        update = true;
+                    final Long langId = ClaimIndex.getLanguageId(lang);
+                    if (langId != null) {
+                        person.updateAttrValue(AttrName.LANGUAGE, String.valueOf(langId));
+                        _loginContext.registerAttrUpdate(AttrName.LANGUAGE);
                     }
                 }
-                if (update) {
-                    person.commitAttrValuesInDB();
-                }
             }
         }
     }
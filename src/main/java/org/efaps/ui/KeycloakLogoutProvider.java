@@ -15,11 +15,8 @@
  */
 package org.efaps.ui;
 
-import java.util.UUID;
-
 import javax.servlet.http.HttpSession;
 
-import org.efaps.admin.common.SystemConfiguration;
 import org.efaps.api.ui.ILogoutProvider;
 import org.efaps.util.EFapsException;
 import org.keycloak.adapters.servlet.OIDCFilterSessionStore.SerializableKeycloakAccount;
@@ -45,9 +42,7 @@ public class KeycloakLogoutProvider
         logoutUrl.replaceQueryParam("id_token_hint", idTokenString);
 
         try {
-            // WebApp-Configuration
-            final var sysconf = SystemConfiguration.get(UUID.fromString("50a65460-2d08-4ea8-b801-37594e93dad5"));
-            final var redirectUri = sysconf.getAttributeValue("org.efaps.webapp.PostLogoutRedirectUri");
+            final var redirectUri = SSOConfiguration.get().getPostLogoutRedirectUri();
             if (redirectUri != null) {
                 logoutUrl.replaceQueryParam("post_logout_redirect_uri", redirectUri);
             }
@@ -0,0 +1,487 @@
+/*
+ * Copyright © 2003 - 2024 The eFaps Team (-)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.efaps.ui;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.function.ToLongFunction;
+
+import org.apache.commons.collections.CollectionUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.efaps.admin.user.Company;
+import org.efaps.admin.user.JAASSystem;
+import org.efaps.admin.user.Person;
+import org.efaps.admin.user.Role;
+import org.efaps.util.EFapsException;
+import org.efaps.util.UUIDUtil;
+import org.keycloak.representations.IDToken;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Login scoped context. Resolves the Person, the JAASSystem and the claims
+ * of the token once, so that all sync steps can share them. The sync steps
+ * only register their changes, which are written to the database together
+ * by {@link #flush()}.
+ */
+public class LoginContext
+{
+
+    /** Name of the JAASSystem the persons are assigned to. */
+    public static final String JAASSYSTEM = "eFaps";
+
+    /**
+     * Logger for this class.
+     */
+    private static final Logger LOG = LoggerFactory.getLogger(LoginContext.class);
+
+    /** The user name. */
+    private final String userName;
+
+    /** The token. */
+    private final IDToken token;
+
+    /** The roles given via scope. */
+    private final Set<String> scopeRoles;
+
+    /** The person. */
+    private Person person;
+
+    /** Is the person resolved. */
+    private boolean personResolved;
+
+    /** Was the person created during this login. */
+    private boolean personCreated;
+
+    /** Is the person provisioned in advance instead of logging in. */
+    private boolean provisioning;
+
+    /** Lock held for the creation of the person until the end of the transaction. */
+    private PersonCreationLocks.UserLock creationLock;
+
+    /** The JAASSystem. */
+    private JAASSystem jaasSystem;
+
+    /** The role claims. */
+    private Collection<String> roleClaims;
+
+    /** The company claims, <code>null</code> if not given. */
+    private List<String> companyClaims;
+
+    /** Are the claims parsed. */
+    private boolean claimsParsed;
+
+    /** Names of the updated attributes, empty if none. */
+    private final Set<String> attrUpdates = new TreeSet<>();
+
+    /** Audit events to be published once the transaction is committed. */
+    private final List<AuditEvent> auditEvents = new ArrayList<>();
+
+    /** Roles to be set, <code>null</code> if not to be synced. */
+    private Set<Role> roles;
+
+    /** Companies to be set, <code>null</code> if not to be synced. */
+    private Set<Company> companies;
+
+    /**
+     * Instantiates a new login context.
+     *
+     * @param _userName the user name
+     * @param _scopeRoles the roles given via scope
+     * @param _token the token
+     */
+    public LoginContext(final String _userName,
+                        final Set<String> _scopeRoles,
+                        final IDToken _token)
+    {
+        this.userName = _userName;
+        this.scopeRoles = _scopeRoles;
+        this.token = _token;
+    }
+
+    /**
+     * Getter method for the instance variable {@link #userName}.
+     *
+     * @return value of instance variable {@link #userName}
+     */
+    public String getUserName()
+    {
+        return this.userName;
+    }
+
+    /**
+     * Checks if the user name is an UUID.
+     *
+     * @return true, if is uuid
+     */
+    public boolean isUUID()
+    {
+        return UUIDUtil.isUUID(this.userName);
+    }
+
+    /**
+     * Getter method for the instance variable {@link #token}.
+     *
+     * @return value of instance variable {@link #token}
+     */
+    public IDToken getToken()
+    {
+        return this.token;
+    }
+
+    /**
+     * Getter method for the instance variable {@link #scopeRoles}.
+     *
+     * @return value of instance variable {@link #scopeRoles}
+     */
+    public Set<String> getScopeRoles()
+    {
+        return this.scopeRoles;
+    }
+
+    /**
+     * Gets the person. The lookup is only done once. With several tenants
+     * the user name is the id of the user, as the
+     * {@link org.efaps.ui.filter.TenantConfigResolver} only accepts
+     * configurations with that principal, because names of different
+     * realms would resolve to the same person.
+     *
+     * @return the person
+     * @throws EFapsException on error
+     */
+    public Person getPerson()
+        throws EFapsException
+    {
+        if (!this.personResolved) {
+            if (isUUID()) {
+                this.person = Person.get(UUID.fromString(this.userName));
+            } else {
+                this.person = Person.get(this.userName);
+            }
+            this.personResolved = true;
+        }
+        return this.person;
+    }
+
+    /**
+     * Acquire the lock for the creation of the person and look the person
+     * up again, as a concurrent login of the same user might have created
+     * it in the meantime. The lock must be released by
+     * {@link #releaseCreationLock()} after the transaction was committed
+     * or rolled back. When provisioning no lock is taken, as it would be
+     * held for a whole batch and block the logins of all its users.
+     *
+     * @return the person, <code>null</code> if it still does not exist
+     * @throws EFapsException on error or if the lock could not be acquired
+     *             in time, the login must fail then
+     */
+    public Person lockCreation()
+        throws EFapsException
+    {
+        if (this.creationLock == null) {
+            if (!this.provisioning) {
+                this.creationLock = PersonCreationLocks.acquire(this.userName);
+            }
+            Person.reset(this.userName);
+            this.personResolved = false;
+        }
+        return getPerson();
+    }
+
+    /**
+     * Release the lock for the creation of the person, if held.
+     */
+    public void releaseCreationLock()
+    {
+        if (this.creationLock != null) {
+            this.creationLock.release();
+            this.creationLock = null;
+        }
+    }
+
+    /**
+     * Set the person that was created during this login.
+     *
+     * @param _person the person
+     */
+    public void setCreatedPerson(final Person _person)
+    {
+        this.person = _person;
+        this.personResolved = true;
+        this.personCreated = true;
+        this.auditEvents.add(new AuditEvent(AuditEvent.Type.PERSON_CREATED, this.userName, null));
+    }
+
+    /**
+     * Mark the login context as provisioning in advance. No creation lock
+     * is taken and the sync is recorded as provisioning phases.
+     *
+     * @param _provisioning true, if provisioning
+     */
+    public void setProvisioning(final boolean _provisioning)
+    {
+        this.provisioning = _provisioning;
+    }
+
+    /**
+     * Checks if the person is provisioned in advance.
+     *
+     * @return true, if provisioning
+     */
+    public boolean isProvisioning()
+    {
+        return this.provisioning;
+    }
+
+    /**
+     * Checks if the person was created during this login.
+     *
+     * @return true, if created
+     */
+    public boolean isPersonCreated()
+    {
+        return this.personCreated;
+    }
+
+    /**
+     * Gets the JAASSystem.
+     *
+     * @return the JAASSystem
+     * @throws EFapsException on error
+     */
+    public JAASSystem getJAASSystem()
+        throws EFapsException
+    {
+        if (this.jaasSystem == null) {
+            this.jaasSystem = JAASSystem.getJAASSystem(JAASSYSTEM);
+        }
+        return this.jaasSystem;
+    }
+
+    /**
+     * Gets the role claims. The roles given via scope have priority over
+     * the {@link KeycloakLoginProvider#ROLEKEY} claim.
+     *
+     * @return the role claims
+     */
+    public Collection<String> getRoleClaims()
+    {
+        parseClaims();
+        return this.roleClaims;
+    }
+
+    /**
+     * Gets the company claims.
+     *
+     * @return the company claims, <code>null</code> if not given
+     */
+    public List<String> getCompanyClaims()
+    {
+        parseClaims();
+        return this.companyClaims;
+    }
+
+    /**
+     * Gets a string claim.
+     *
+     * @param _key the key
+     * @return the claim
+     */
+    public String getClaim(final String _key)
+    {
+        return (String) this.token.getOtherClaims().get(_key);
+    }
+
+    /**
+     * Parses the claims.
+     */
+    @SuppressWarnings("unchecked")
+    private void parseClaims()
+    {
+        if (!this.claimsParsed) {
+            final Map<String, Object> otherClaims = this.token.getOtherClaims();
+            if (CollectionUtils.isNotEmpty(this.scopeRoles)) {
+                this.roleClaims = this.scopeRoles;
+                LOG.debug("Roles via scope are assigned with: {}", this.roleClaims);
+            } else if (otherClaims.containsKey(KeycloakLoginProvider.ROLEKEY)) {
+                this.roleClaims = (Collection<String>) otherClaims.get(KeycloakLoginProvider.ROLEKEY);
+                LOG.debug("{}: is is set with {}", KeycloakLoginProvider.ROLEKEY, this.roleClaims);
+            } else {
+                this.roleClaims = Collections.emptyList();
+            }
+            if (otherClaims.containsKey(KeycloakLoginProvider.COMPANIESKEY)) {
+                final Object claimObject = otherClaims.get(KeycloakLoginProvider.COMPANIESKEY);
+                if (claimObject instanceof List) {
+                    this.companyClaims = (List<String>) claimObject;
+                } else {
+                    this.companyClaims = Arrays.asList(StringUtils.split((String) claimObject, "|"));
+                }
+                LOG.debug("{}: is is set with {}", KeycloakLoginProvider.COMPANIESKEY, this.companyClaims);
+            }
+            this.claimsParsed = true;
+        }
+    }
+
+    /**
+     * Register that an attribute of the person was updated.
+     *
+     * @param _attrName name of the attribute
+     */
+    public void registerAttrUpdate(final Person.AttrName _attrName)
+    {
+        this.attrUpdates.add(_attrName.name());
+    }
+
+    /**
+     * Gets the audit events of the changes written by {@link #flush()}, to
+     * be published after the commit.
+     *
+     * @return the audit events
+     */
+    public List<AuditEvent> getAuditEvents()
+    {
+        return Collections.unmodifiableList(this.auditEvents);
+    }
+
+    /**
+     * Register the roles to be set for the person.
+     *
+     * @param _roles the roles
+     */
+    public void registerRoles(final Set<Role> _roles)
+    {
+        this.roles = _roles;
+    }
+
+    /**
+     * Register the companies to be set for the person.
+     *
+     * @param _companies the companies
+     */
+    public void registerCompanies(final Set<Company> _companies)
+    {
+        this.companies = _companies;
+    }
+
+    /**
+     * Write all registered changes to the database. Roles and companies are
+     * compared against the assignments of the person in the database for
+     * the JAASSystem and only the difference is inserted respectively
+     * deleted.
+     *
+     * @return true, if anything was written
+     * @throws EFapsException on error
+     */
+    public boolean flush()
+        throws EFapsException
+    {
+        boolean ret = false;
+        final Person pers = getPerson();
+        if (pers != null) {
+            if (!this.attrUpdates.isEmpty()) {
+                pers.commitAttrValuesInDB();
+                this.auditEvents.add(new AuditEvent(AuditEvent.Type.ATTRIBUTES_CHANGED, this.userName, String.join(
+                                ",", this.attrUpdates)));
+                ret = true;
+            }
+            if (this.roles != null) {
+                final List<String> changes = new ArrayList<>();
+                final Set<Role> current = pers.getRolesFromDB(getJAASSystem());
+                for (final Role role : missing(this.roles, current, Role::getId)) {
+                    LOG.debug("Assigning Role {} to {}", role.getName(), this.userName);
+                    pers.assignRoleInDb(getJAASSystem(), role);
+                    changes.add("+" + role.getName());
+                }
+                for (final Role role : missing(current, this.roles, Role::getId)) {
+                    LOG.debug("Unassigning Role {} from {}", role.getName(), this.userName);
+                    pers.unassignRoleInDb(getJAASSystem(), role);
+                    changes.add("-" + role.getName());
+                }
+                ret = ret || !changes.isEmpty();
+                audit(AuditEvent.Type.ROLES_CHANGED, changes);
+            }
+            if (this.companies != null) {
+                final List<String> changes = new ArrayList<>();
+                final Set<Company> current = pers.getCompaniesFromDB(getJAASSystem());
+                for (final Company company : missing(this.companies, current, Company::getId)) {
+                    LOG.debug("Assigning Company {} to {}", company.getName(), this.userName);
+                    pers.assignCompanyInDb(getJAASSystem(), company);
+                    changes.add("+" + company.getName());
+                }
+                for (final Company company : missing(current, this.companies, Company::getId)) {
+                    LOG.debug("Unassigning Company {} from {}", company.getName(), this.userName);
+                    pers.unassignCompanyInDb(getJAASSystem(), company);
+                    changes.add("-" + company.getName());
+                }
+                ret = ret || !changes.isEmpty();
+                audit(AuditEvent.Type.COMPANIES_CHANGED, changes);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Gets the objects of a collection whose id is not contained in another
+     * collection. <code>null</code> elements, e.g. of objects that are no
+     * longer in the cache, are ignored in both collections.
+     *
+     * @param <T> the type of the objects
+     * @param _objects the objects
+     * @param _others the other objects
+     * @param _id function giving the id of an object
+     * @return the missing objects in the order of the collection
+     */
+    static <T> List<T> missing(final Collection<T> _objects,
+                               final Collection<T> _others,
+                               final ToLongFunction<T> _id)
+    {
+        final Set<Long> ids = new HashSet<>();
+        for (final T other : _others) {
+            if (other != null) {
+                ids.add(_id.applyAsLong(other));
+            }
+        }
+        final List<T> ret = new ArrayList<>();
+        for (final T object : _objects) {
+            if (object != null && !ids.contains(_id.applyAsLong(object))) {
+                ret.add(object);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Register an audit event for changes, if there are any.
+     *
+     * @param _type the type
+     * @param _changes the changes
+     */
+    private void audit(final AuditEvent.Type _type,
+                       final List<String> _changes)
+    {
+        if (!_changes.isEmpty()) {
+            this.auditEvents.add(new AuditEvent(_type, this.userName, String.join(",", _changes)));
+        }
+    }
+}
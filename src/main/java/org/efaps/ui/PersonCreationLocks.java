@@ -0,0 +1,157 @@
+/*
+ * Copyright © 2003 - 2024 The eFaps Team (-)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.efaps.ui;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.efaps.util.EFapsException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Locks by user name for the creation of a Person on the first login. The
+ * lock is held until the transaction that created the person is committed,
+ * so that concurrent first logins of the same user wait and then find the
+ * created person instead of failing on a duplicate key. Each user name has
+ * a lock of its own that is removed again when the last holder or waiter
+ * released it, so logins of different users never wait for each other.
+ */
+public final class PersonCreationLocks
+{
+
+    /** Max time to wait for a lock in seconds. */
+    private static final int TIMEOUT = 30;
+
+    /**
+     * Logger for this class.
+     */
+    private static final Logger LOG = LoggerFactory.getLogger(PersonCreationLocks.class);
+
+    /** The locks by user name. */
+    private static final ConcurrentMap<String, UserLock> LOCKS = new ConcurrentHashMap<>();
+
+    /**
+     * Utility class.
+     */
+    private PersonCreationLocks()
+    {
+    }
+
+    /**
+     * Acquire the lock for a user name.
+     *
+     * @param _userName the user name
+     * @return the acquired lock, to be released by {@link UserLock#release()}
+     * @throws EFapsException if the lock could not be acquired within the
+     *             timeout, the login must fail then
+     */
+    public static UserLock acquire(final String _userName)
+        throws EFapsException
+    {
+        return acquire(_userName, TIMEOUT, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Acquire the lock for a user name.
+     *
+     * @param _userName the user name
+     * @param _timeout the max time to wait
+     * @param _unit the unit of the timeout
+     * @return the acquired lock, to be released by {@link UserLock#release()}
+     * @throws EFapsException if the lock could not be acquired within the
+     *             timeout
+     */
+    static UserLock acquire(final String _userName,
+                            final long _timeout,
+                            final TimeUnit _unit)
+        throws EFapsException
+    {
+        final UserLock lock = LOCKS.compute(_userName, (_key, _existing) -> {
+            final UserLock ret = _existing == null ? new UserLock(_key) : _existing;
+            ret.users++;
+            return ret;
+        });
+        boolean acquired = false;
+        try {
+            acquired = lock.lock.tryLock(_timeout, _unit);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (!acquired) {
+            lock.leave();
+            LOG.warn("Timeout waiting for the creation of person {}", _userName);
+            throw new EFapsException(PersonCreationLocks.class, "Timeout", _userName);
+        }
+        return lock;
+    }
+
+    /**
+     * Gets the number of user names with a lock that is held or waited for.
+     *
+     * @return the number of locks
+     */
+    static int size()
+    {
+        return LOCKS.size();
+    }
+
+    /**
+     * The lock of one user name.
+     */
+    public static final class UserLock
+    {
+
+        /** The user name. */
+        private final String userName;
+
+        /** The lock. */
+        private final ReentrantLock lock = new ReentrantLock();
+
+        /** Number of holders and waiters, only changed within {@link #LOCKS}. */
+        private int users;
+
+        /**
+         * Instantiates a new user lock.
+         *
+         * @param _userName the user name
+         */
+        private UserLock(final String _userName)
+        {
+            this.userName = _userName;
+        }
+
+        /**
+         * Release the lock.
+         */
+        public void release()
+        {
+            this.lock.unlock();
+            leave();
+        }
+
+        /**
+         * Unregister a holder or waiter and remove the lock if it was the
+         * last one.
+         */
+        private void leave()
+        {
+            LOCKS.computeIfPresent(this.userName, (_key, _existing) -> --_existing.users == 0 ? null : _existing);
+        }
+    }
+}
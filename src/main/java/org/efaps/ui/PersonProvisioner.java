@@ -0,0 +1,432 @@
+/*
+ * Copyright © 2003 - 2024 The eFaps Team (-)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.efaps.ui;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.efaps.db.Context;
+import org.efaps.ui.AuthMetrics.Phase;
+import org.efaps.util.EFapsException;
+import org.keycloak.representations.IDToken;
+import org.keycloak.representations.idm.UserRepresentation;
+import org.keycloak.util.JsonSerialization;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectReader;
+
+/**
+ * Provisions the Persons of a Keycloak realm export (realm or users export
+ * file) in advance, so that the first logins find them already
+ * synchronized. The file is streamed, so only one batch of users is held
+ * in memory. Each user is handled by the same rules as a login of the
+ * {@link KeycloakLoginProvider}: the attributes of the user stand in for
+ * the claims of the token and the realm roles, or the client roles of the
+ * given client, for the roles given via scope. No fingerprint of the
+ * claims is stored, as the roles of the export are only the directly
+ * mapped ones, while a token carries the expanded composite and default
+ * roles, so the first login always syncs. No creation locks are held for
+ * a batch; a person created by a concurrent first login fails the batch,
+ * which is then retried user by user. Operators run it via
+ * {@link PersonProvisioning}.
+ */
+public class PersonProvisioner
+{
+
+    /** Default number of users per transaction. */
+    public static final int DEFAULTBATCHSIZE = 500;
+
+    /**
+     * Logger for this class.
+     */
+    private static final Logger LOG = LoggerFactory.getLogger(PersonProvisioner.class);
+
+    /** Claims that are taken from the attributes of a user. */
+    private static final String[] CLAIMS = { KeycloakLoginProvider.LOCALEKEY, KeycloakLoginProvider.TZKEY,
+                    KeycloakLoginProvider.LANGKEY };
+
+    /** The login provider whose rules are applied. */
+    private final KeycloakLoginProvider loginProvider = new KeycloakLoginProvider();
+
+    /** Client whose roles are used as scope roles, null for the realm roles. */
+    private final String client;
+
+    /** Use the id of the user as user name, as the adapter does with principal-attribute sub. */
+    private final boolean useId;
+
+    /** Number of users per transaction. */
+    private final int batchSize;
+
+    /**
+     * Instantiates a new person provisioner.
+     *
+     * @param _client client whose roles are used as scope roles, null for
+     *            the realm roles
+     * @param _useId use the id of the user as user name
+     * @param _batchSize number of users per transaction
+     */
+    public PersonProvisioner(final String _client,
+                             final boolean _useId,
+                             final int _batchSize)
+    {
+        this.client = _client;
+        this.useId = _useId;
+        this.batchSize = _batchSize;
+    }
+
+    /**
+     * Provision the users of an export file.
+     *
+     * @param _file the file
+     * @return the result
+     * @throws IOException on error reading the file
+     */
+    public Result provision(final Path _file)
+        throws IOException
+    {
+        try (InputStream in = Files.newInputStream(_file)) {
+            return provision(in);
+        }
+    }
+
+    /**
+     * Provision the users of an export.
+     *
+     * @param _export the export
+     * @return the result
+     * @throws IOException on error reading the export
+     */
+    public Result provision(final InputStream _export)
+        throws IOException
+    {
+        final Result ret = new Result();
+        final ObjectReader reader = JsonSerialization.mapper.readerFor(UserRepresentation.class)
+                        .without(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
+        try (JsonParser parser = JsonSerialization.mapper.getFactory().createParser(_export)) {
+            if (seekUsers(parser)) {
+                final List<UserRepresentation> batch = new ArrayList<>(this.batchSize);
+                while (parser.nextToken() == JsonToken.START_OBJECT) {
+                    batch.add(reader.readValue(parser));
+                    if (batch.size() >= this.batchSize) {
+                        provisionBatch(batch, ret);
+                        batch.clear();
+                    }
+                }
+                provisionBatch(batch, ret);
+            } else {
+                LOG.warn("No users found in the export");
+            }
+        }
+        LOG.info("Provisioning finished: {}", ret);
+        return ret;
+    }
+
+    /**
+     * Move the parser to the start of the "users" array on the first level.
+     *
+     * @param _parser the parser
+     * @return true, if found
+     * @throws IOException on error
+     */
+    private boolean seekUsers(final JsonParser _parser)
+        throws IOException
+    {
+        boolean ret = false;
+        if (_parser.nextToken() == JsonToken.START_OBJECT) {
+            while (!ret && _parser.nextToken() == JsonToken.FIELD_NAME) {
+                final String name = _parser.getCurrentName();
+                final JsonToken value = _parser.nextToken();
+                if ("users".equals(name) && value == JsonToken.START_ARRAY) {
+                    ret = true;
+                } else {
+                    _parser.skipChildren();
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Provision a batch of users in one transaction. If the transaction
+     * fails, each user of the batch is provisioned in a transaction of its
+     * own, so that one faulty user does not fail the others.
+     *
+     * @param _batch the batch
+     * @param _result the result
+     */
+    private void provisionBatch(final List<UserRepresentation> _batch,
+                                final Result _result)
+    {
+        if (!_batch.isEmpty()) {
+            final Result batchResult = new Result();
+            if (provisionInTransaction(_batch, batchResult)) {
+                _result.add(batchResult);
+            } else if (_batch.size() == 1) {
+                _result.failed++;
+            } else {
+                LOG.warn("Batch failed, provisioning its {} users one by one", _batch.size());
+                for (final UserRepresentation user : _batch) {
+                    provisionBatch(Collections.singletonList(user), _result);
+                }
+            }
+            LOG.debug("Provisioned batch: {}", _result);
+        }
+    }
+
+    /**
+     * Provision users in one transaction.
+     *
+     * @param _users the users
+     * @param _result the result
+     * @return true, if committed
+     */
+    private boolean provisionInTransaction(final List<UserRepresentation> _users,
+                                           final Result _result)
+    {
+        final AuthMetrics metrics = AuthMetrics.get();
+        final long start = System.nanoTime();
+        final List<LoginContext> contexts = new ArrayList<>();
+        boolean ret = false;
+        try {
+            Context.begin();
+            boolean ok = false;
+            try {
+                ClaimIndex.checkReload();
+                for (final UserRepresentation user : _users) {
+                    provisionUser(user, contexts, _result);
+                }
+                ok = true;
+            } finally {
+                final long endStart = System.nanoTime();
+                if (ok && Context.isTMActive()) {
+                    Context.commit();
+                    metrics.record(Phase.PROVISION_COMMIT, endStart);
+                    final List<AuditEvent> auditEvents = new ArrayList<>();
+                    for (final LoginContext loginContext : contexts) {
+                        auditEvents.addAll(loginContext.getAuditEvents());
+                    }
+                    KeycloakLoginProvider.audit(auditEvents);
+                    ret = true;
+                } else {
+                    Context.rollback();
+                    metrics.record(Phase.PROVISION_ROLLBACK, endStart);
+                }
+            }
+        } catch (final EFapsException | RuntimeException e) {
+            LOG.error("Could not provision {} users", _users.size(), e);
+        } finally {
+            metrics.record(Phase.PROVISION_BATCH, start);
+        }
+        return ret;
+    }
+
+    /**
+     * Provision one user within the current transaction.
+     *
+     * @param _user the user
+     * @param _contexts the login contexts of the transaction
+     * @param _result the result
+     * @throws EFapsException on error
+     */
+    private void provisionUser(final UserRepresentation _user,
+                               final List<LoginContext> _contexts,
+                               final Result _result)
+        throws EFapsException
+    {
+        if (Boolean.FALSE.equals(_user.isEnabled()) || _user.getUsername() == null) {
+            _result.skipped++;
+        } else {
+            final String userName = this.useId ? _user.getId() : _user.getUsername();
+            final Set<String> scopeRoles = getScopeRoles(_user);
+            final IDToken token = toToken(_user);
+            final LoginContext loginContext = new LoginContext(userName, scopeRoles, token);
+            loginContext.setProvisioning(true);
+            _contexts.add(loginContext);
+            final long validateStart = System.nanoTime();
+            final boolean valid = this.loginProvider.validatePerson(loginContext);
+            AuthMetrics.get().record(Phase.PROVISION_VALIDATEPERSON, validateStart);
+            if (valid) {
+                final boolean written = this.loginProvider.sync(loginContext);
+                if (loginContext.isPersonCreated()) {
+                    _result.created++;
+                } else if (written) {
+                    _result.updated++;
+                } else {
+                    _result.unchanged++;
+                }
+            } else {
+                _result.skipped++;
+            }
+        }
+    }
+
+    /**
+     * Gets the roles of a user that the adapter would give via scope.
+     *
+     * @param _user the user
+     * @return the scope roles
+     */
+    private Set<String> getScopeRoles(final UserRepresentation _user)
+    {
+        final List<String> roles;
+        if (this.client == null) {
+            roles = _user.getRealmRoles();
+        } else {
+            roles = _user.getClientRoles() == null ? null : _user.getClientRoles().get(this.client);
+        }
+        return roles == null ? Collections.emptySet() : new HashSet<>(roles);
+    }
+
+    /**
+     * Build the token a login of the user would carry from its attributes.
+     *
+     * @param _user the user
+     * @return the token
+     */
+    private IDToken toToken(final UserRepresentation _user)
+    {
+        final IDToken ret = new IDToken();
+        ret.setPreferredUsername(_user.getUsername());
+        ret.setGivenName(_user.getFirstName());
+        ret.setFamilyName(_user.getLastName());
+        ret.setEmail(_user.getEmail());
+        final Map<String, List<String>> attributes = _user.getAttributes() == null ? Collections.emptyMap()
+                        : _user.getAttributes();
+        final List<String> roles = attributes.get(KeycloakLoginProvider.ROLEKEY);
+        if (roles != null) {
+            ret.getOtherClaims().put(KeycloakLoginProvider.ROLEKEY, roles);
+        }
+        final List<String> companies = attributes.get(KeycloakLoginProvider.COMPANIESKEY);
+        if (companies != null) {
+            // a single value might be the string split by "|"
+            ret.getOtherClaims().put(KeycloakLoginProvider.COMPANIESKEY, companies.size() == 1 ? companies.get(0)
+                            : companies);
+        }
+        for (final String claim : CLAIMS) {
+            final List<String> values = attributes.get(claim);
+            if (values != null && !values.isEmpty()) {
+                ret.getOtherClaims().put(claim, values.get(0));
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Result of a provisioning.
+     */
+    public static final class Result
+    {
+
+        /** Number of created persons. */
+        private int created;
+
+        /** Number of updated persons. */
+        private int updated;
+
+        /** Number of persons without changes. */
+        private int unchanged;
+
+        /** Number of skipped users. */
+        private int skipped;
+
+        /** Number of failed users. */
+        private int failed;
+
+        /**
+         * Add the counters of another result.
+         *
+         * @param _other the other result
+         */
+        private void add(final Result _other)
+        {
+            this.created += _other.created;
+            this.updated += _other.updated;
+            this.unchanged += _other.unchanged;
+            this.skipped += _other.skipped;
+            this.failed += _other.failed;
+        }
+
+        /**
+         * Gets the number of created persons.
+         *
+         * @return the created
+         */
+        public int getCreated()
+        {
+            return this.created;
+        }
+
+        /**
+         * Gets the number of updated persons.
+         *
+         * @return the updated
+         */
+        public int getUpdated()
+        {
+            return this.updated;
+        }
+
+        /**
+         * Gets the number of persons without changes.
+         *
+         * @return the unchanged
+         */
+        public int getUnchanged()
+        {
+            return this.unchanged;
+        }
+
+        /**
+         * Gets the number of skipped users, disabled or not permitted to be
+         * created.
+         *
+         * @return the skipped
+         */
+        public int getSkipped()
+        {
+            return this.skipped;
+        }
+
+        /**
+         * Gets the number of failed users.
+         *
+         * @return the failed
+         */
+        public int getFailed()
+        {
+            return this.failed;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "created=" + this.created + ", updated=" + this.updated + ", unchanged=" + this.unchanged
+                            + ", skipped=" + this.skipped + ", failed=" + this.failed;
+        }
+    }
+}
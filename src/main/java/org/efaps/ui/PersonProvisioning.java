@@ -0,0 +1,129 @@
+/*
+ * Copyright © 2003 - 2024 The eFaps Team (-)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.efaps.ui;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Entry point for operators to run the {@link PersonProvisioner}. It is
+ * published via JMX under {@link #NAME}, as the provisioning needs the
+ * datasource and transaction manager of the running web application. Only
+ * one provisioning runs at a time.
+ */
+public final class PersonProvisioning
+    implements PersonProvisioningMXBean
+{
+
+    /** Name of the MBean. */
+    public static final String NAME = "org.efaps.keycloak:type=PersonProvisioning";
+
+    /**
+     * Logger for this class.
+     */
+    private static final Logger LOG = LoggerFactory.getLogger(PersonProvisioning.class);
+
+    /** The single instance. */
+    private static final PersonProvisioning INSTANCE = new PersonProvisioning();
+
+    /** Is a provisioning running. */
+    private final AtomicBoolean running = new AtomicBoolean();
+
+    /**
+     * Singleton.
+     */
+    private PersonProvisioning()
+    {
+    }
+
+    @Override
+    public String provision(final String _file,
+                            final String _client,
+                            final boolean _useId,
+                            final int _batchSize)
+    {
+        String ret;
+        final Path file = Paths.get(_file);
+        if (!Files.isReadable(file)) {
+            ret = "File not readable: " + _file;
+        } else if (this.running.compareAndSet(false, true)) {
+            try {
+                LOG.info("Provisioning persons from {}", file);
+                final PersonProvisioner provisioner = new PersonProvisioner(StringUtils.trimToNull(_client), _useId,
+                                _batchSize > 0 ? _batchSize : PersonProvisioner.DEFAULTBATCHSIZE);
+                ret = provisioner.provision(file).toString();
+            } catch (final IOException e) {
+                LOG.error("Could not read the export {}", file, e);
+                ret = "Could not read the export: " + e.getMessage();
+            } finally {
+                this.running.set(false);
+            }
+        } else {
+            ret = "A provisioning is already running";
+        }
+        return ret;
+    }
+
+    @Override
+    public boolean isRunning()
+    {
+        return this.running.get();
+    }
+
+    /**
+     * Register the MBean, if not done yet.
+     */
+    public static void register()
+    {
+        try {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            final ObjectName name = new ObjectName(NAME);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(INSTANCE, name);
+            }
+        } catch (final JMException e) {
+            LOG.warn("Could not register the MBean {}", NAME, e);
+        }
+    }
+
+    /**
+     * Unregister the MBean.
+     */
+    public static void unregister()
+    {
+        try {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            final ObjectName name = new ObjectName(NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+        } catch (final JMException e) {
+            LOG.warn("Could not unregister the MBean {}", NAME, e);
+        }
+    }
+}
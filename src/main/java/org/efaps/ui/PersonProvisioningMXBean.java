@@ -0,0 +1,48 @@
+/*
+ * Copyright © 2003 - 2024 The eFaps Team (-)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.efaps.ui;
+
+/**
+ * Management interface to provision the Persons of a Keycloak export via
+ * the {@link PersonProvisioner} from within the running web application,
+ * where the eFaps runtime is initialized.
+ */
+public interface PersonProvisioningMXBean
+{
+
+    /**
+     * Provision the users of an export file on the server.
+     *
+     * @param _file path of the realm or users export file
+     * @param _client client whose roles are used as scope roles, empty for
+     *            the realm roles
+     * @param _useId use the id of the user as user name
+     * @param _batchSize number of users per transaction, 0 or less for the
+     *            default
+     * @return the result
+     */
+    String provision(String _file,
+                     String _client,
+                     boolean _useId,
+                     int _batchSize);
+
+    /**
+     * Checks if a provisioning is running.
+     *
+     * @return true, if running
+     */
+    boolean isRunning();
+}
@@ -0,0 +1,274 @@
+/*
+ * Copyright © 2003 - 2024 The eFaps Team (-)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.efaps.ui;
+
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.lang3.StringUtils;
+import org.efaps.admin.EFapsSystemConfiguration;
+import org.efaps.admin.common.SystemConfiguration;
+import org.efaps.db.Context;
+import org.efaps.util.EFapsException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Immutable snapshot of the SystemConfiguration values used by the login
+ * and logout provider. The snapshot is read once and refreshed after
+ * {@link #REFRESH} by a background thread, so that the providers only read
+ * plain fields per request and no login waits for the SystemConfiguration.
+ */
+public final class SSOConfiguration
+{
+
+    /** The Constant PERMITROLEUPDATE. */
+    private static final String PERMITROLEUPDATE = "org.efaps.kernel.sso.PermitRoleUpdate";
+
+    /** The Constant PERMITCOMPANYUPDATE. */
+    private static final String PERMITCOMPANYUPDATE = "org.efaps.kernel.sso.PermitCompanyUpdate";
+
+    /** The Constant PERMITATTRIBUTEUPDATE. */
+    private static final String PERMITATTRIBUTEUPDATE = "org.efaps.kernel.sso.PermitAttributeUpdate";
+
+    /** The Constant PERMITCREATEPERSON. */
+    private static final String PERMITCREATEPERSON = "org.efaps.kernel.sso.PermitCreatePerson";
+
+    /** The Constant ASYNCSYNC. */
+    private static final String ASYNCSYNC = "org.efaps.kernel.sso.AsyncSync";
+
+    /** The Constant AUDITDIRECTORY. */
+    private static final String AUDITDIRECTORY = "org.efaps.kernel.sso.AuditDirectory";
+
+    /** UUID of the WebApp-Configuration. */
+    private static final UUID WEBAPPCONFIG = UUID.fromString("50a65460-2d08-4ea8-b801-37594e93dad5");
+
+    /** The Constant POSTLOGOUTREDIRECTURI. */
+    private static final String POSTLOGOUTREDIRECTURI = "org.efaps.webapp.PostLogoutRedirectUri";
+
+    /** Interval after which the snapshot is refreshed. */
+    private static final long REFRESH = TimeUnit.MINUTES.toNanos(1);
+
+    /**
+     * Logger for this class.
+     */
+    private static final Logger LOG = LoggerFactory.getLogger(SSOConfiguration.class);
+
+    /** The current snapshot. */
+    private static volatile SSOConfiguration CURRENT;
+
+    /** Only one refresh runs at a time. */
+    private static final AtomicBoolean REFRESHING = new AtomicBoolean();
+
+    /** Executor for the refresh in the background. */
+    private static final ExecutorService REFRESHER = Executors.newSingleThreadExecutor(_runnable -> {
+        final Thread thread = new Thread(_runnable, "eFaps-Keycloak-SSOConfiguration");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /** Time of reading. */
+    private final long read = System.nanoTime();
+
+    /** The permit create person. */
+    private final boolean permitCreatePerson;
+
+    /** The permit role update. */
+    private final boolean permitRoleUpdate;
+
+    /** The permit company update. */
+    private final boolean permitCompanyUpdate;
+
+    /** The permit attribute update. */
+    private final boolean permitAttributeUpdate;
+
+    /** Sync the person in the background. */
+    private final boolean asyncSync;
+
+    /** The post logout redirect uri. */
+    private final String postLogoutRedirectUri;
+
+    /** Directory of the audit log, null if not audited. */
+    private final String auditDirectory;
+
+    /**
+     * Read the snapshot from the SystemConfiguration.
+     *
+     * @throws EFapsException on error
+     */
+    private SSOConfiguration()
+        throws EFapsException
+    {
+        final SystemConfiguration kernelConfig = EFapsSystemConfiguration.get();
+        this.permitCreatePerson = kernelConfig.getAttributeValueAsBoolean(PERMITCREATEPERSON);
+        this.permitRoleUpdate = kernelConfig.getAttributeValueAsBoolean(PERMITROLEUPDATE);
+        this.permitCompanyUpdate = kernelConfig.getAttributeValueAsBoolean(PERMITCOMPANYUPDATE);
+        this.permitAttributeUpdate = kernelConfig.getAttributeValueAsBoolean(PERMITATTRIBUTEUPDATE);
+        this.asyncSync = kernelConfig.getAttributeValueAsBoolean(ASYNCSYNC);
+        this.auditDirectory = StringUtils.trimToNull(kernelConfig.getAttributeValue(AUDITDIRECTORY));
+        final SystemConfiguration webappConfig = SystemConfiguration.get(WEBAPPCONFIG);
+        this.postLogoutRedirectUri = webappConfig == null ? null
+                        : webappConfig.getAttributeValue(POSTLOGOUTREDIRECTURI);
+        LOG.debug("Read SSOConfiguration: {}", this);
+    }
+
+    /**
+     * Getter method for the instance variable {@link #permitCreatePerson}.
+     *
+     * @return value of instance variable {@link #permitCreatePerson}
+     */
+    public boolean isPermitCreatePerson()
+    {
+        return this.permitCreatePerson;
+    }
+
+    /**
+     * Getter method for the instance variable {@link #permitRoleUpdate}.
+     *
+     * @return value of instance variable {@link #permitRoleUpdate}
+     */
+    public boolean isPermitRoleUpdate()
+    {
+        return this.permitRoleUpdate;
+    }
+
+    /**
+     * Getter method for the instance variable {@link #permitCompanyUpdate}.
+     *
+     * @return value of instance variable {@link #permitCompanyUpdate}
+     */
+    public boolean isPermitCompanyUpdate()
+    {
+        return this.permitCompanyUpdate;
+    }
+
+    /**
+     * Getter method for the instance variable {@link #permitAttributeUpdate}.
+     *
+     * @return value of instance variable {@link #permitAttributeUpdate}
+     */
+    public boolean isPermitAttributeUpdate()
+    {
+        return this.permitAttributeUpdate;
+    }
+
+    /**
+     * Getter method for the instance variable {@link #asyncSync}.
+     *
+     * @return value of instance variable {@link #asyncSync}
+     */
+    public boolean isAsyncSync()
+    {
+        return this.asyncSync;
+    }
+
+    /**
+     * Getter method for the instance variable {@link #postLogoutRedirectUri}.
+     *
+     * @return value of instance variable {@link #postLogoutRedirectUri}
+     */
+    public String getPostLogoutRedirectUri()
+    {
+        return this.postLogoutRedirectUri;
+    }
+
+    /**
+     * Getter method for the instance variable {@link #auditDirectory}.
+     *
+     * @return value of instance variable {@link #auditDirectory}
+     */
+    public String getAuditDirectory()
+    {
+        return this.auditDirectory;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "PermitCreatePerson=" + this.permitCreatePerson + ", PermitRoleUpdate=" + this.permitRoleUpdate
+                        + ", PermitCompanyUpdate=" + this.permitCompanyUpdate + ", PermitAttributeUpdate="
+                        + this.permitAttributeUpdate + ", AsyncSync=" + this.asyncSync + ", PostLogoutRedirectUri="
+                        + this.postLogoutRedirectUri + ", AuditDirectory=" + this.auditDirectory;
+    }
+
+    /**
+     * Gets the current snapshot. Only the first read is done by the calling
+     * thread, an outdated snapshot is refreshed in the background and used
+     * until the new one is read.
+     *
+     * @return the SSO configuration
+     * @throws EFapsException on error
+     */
+    public static SSOConfiguration get()
+        throws EFapsException
+    {
+        SSOConfiguration ret = CURRENT;
+        if (ret == null) {
+            synchronized (SSOConfiguration.class) {
+                ret = CURRENT;
+                if (ret == null) {
+                    ret = new SSOConfiguration();
+                    CURRENT = ret;
+                }
+            }
+        } else if (System.nanoTime() - ret.read > REFRESH && REFRESHING.compareAndSet(false, true)) {
+            try {
+                REFRESHER.execute(SSOConfiguration::refresh);
+            } catch (final RejectedExecutionException e) {
+                REFRESHING.set(false);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Read a new snapshot within its own Context and replace the current
+     * one with it. Runs in the background.
+     */
+    private static void refresh()
+    {
+        try {
+            Context.begin();
+            try {
+                final SSOConfiguration old = CURRENT;
+                final SSOConfiguration snapshot = new SSOConfiguration();
+                CURRENT = snapshot;
+                if (old != null && !snapshot.toString().equals(old.toString())) {
+                    LOG.info("SSOConfiguration changed, forcing sync on next logins");
+                    ClaimFingerprint.clear();
+                }
+            } finally {
+                Context.rollback();
+            }
+        } catch (final EFapsException e) {
+            LOG.error("Could not refresh SSOConfiguration, using the last one", e);
+        } finally {
+            REFRESHING.set(false);
+        }
+    }
+
+    /**
+     * Stop the background refresh, the current snapshot is kept.
+     */
+    public static void stop()
+    {
+        REFRESHER.shutdownNow();
+    }
+}
@@ -0,0 +1,329 @@
+/*
+ * Copyright © 2003 - 2024 The eFaps Team (-)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.efaps.ui;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Executes the sync of a Person in the background. Sync requests for the
+ * same user that arrive within {@link #WINDOW} are coalesced, so that only
+ * the latest one is executed. A user is never synced by two threads at
+ * once: a request arriving while the sync of the user runs is kept and
+ * scheduled when the running one finished, coalescing with further
+ * requests in the meantime. The number of users with a pending or running
+ * sync is bounded by {@link #CAPACITY}; if it is reached
+ * {@link #submit(String, Runnable)} returns false and the caller must sync
+ * by itself.
+ */
+public final class SyncExecutor
+{
+
+    /** Window in which requests for the same user are coalesced. */
+    private static final long WINDOW = TimeUnit.SECONDS.toMillis(2);
+
+    /** Max number of users with a pending or running sync. */
+    private static final int CAPACITY = 1000;
+
+    /** Number of threads. */
+    private static final int THREADS = 2;
+
+    /**
+     * Logger for this class.
+     */
+    private static final Logger LOG = LoggerFactory.getLogger(SyncExecutor.class);
+
+    /** The instance. */
+    private static final SyncExecutor INSTANCE = new SyncExecutor(WINDOW, CAPACITY);
+
+    /** Pending or running syncs by user name, only changed within compute. */
+    private final Map<String, Slot> slots = new ConcurrentHashMap<>();
+
+    /** The executor. */
+    private final ScheduledThreadPoolExecutor executor;
+
+    /** Window in which requests for the same user are coalesced in milliseconds. */
+    private final long window;
+
+    /** Max number of users with a pending or running sync. */
+    private final int capacity;
+
+    /** Requests that were submitted. */
+    private final LongAdder submitted = new LongAdder();
+
+    /** Requests that were coalesced with a pending one. */
+    private final LongAdder coalesced = new LongAdder();
+
+    /** Requests that were rejected due to the capacity. */
+    private final LongAdder rejected = new LongAdder();
+
+    /** Syncs that were executed. */
+    private final LongAdder executed = new LongAdder();
+
+    /** Syncs that failed. */
+    private final LongAdder failed = new LongAdder();
+
+    /** Lag in milliseconds between submit and execution of the last sync. */
+    private final AtomicLong lastLag = new AtomicLong();
+
+    /** Max lag in milliseconds. */
+    private final AtomicLong maxLag = new AtomicLong();
+
+    /**
+     * Instantiates a new sync executor.
+     *
+     * @param _window window in which requests for the same user are
+     *            coalesced in milliseconds
+     * @param _capacity max number of users with a pending or running sync
+     */
+    SyncExecutor(final long _window,
+                 final int _capacity)
+    {
+        this.window = _window;
+        this.capacity = _capacity;
+        final AtomicInteger counter = new AtomicInteger();
+        this.executor = new ScheduledThreadPoolExecutor(THREADS, _runnable -> {
+            final Thread thread = new Thread(_runnable, "eFaps-Keycloak-Sync-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.executor.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * Submit a sync for a user. If a sync for the user is already pending it
+     * is replaced by the given one.
+     *
+     * @param _userName the user name
+     * @param _sync the sync
+     * @return true if the sync will be executed in the background, false if
+     *         the capacity is reached and the caller must execute it
+     */
+    public boolean submit(final String _userName,
+                          final Runnable _sync)
+    {
+        final boolean[] schedule = new boolean[1];
+        final Slot slot = this.slots.compute(_userName, (_key, _current) -> {
+            Slot ret = _current;
+            if (ret == null) {
+                if (this.slots.size() < this.capacity) {
+                    ret = new Slot();
+                    ret.next = _sync;
+                    ret.since = System.currentTimeMillis();
+                    schedule[0] = true;
+                    this.submitted.increment();
+                }
+            } else if (ret.next == null) {
+                // running, the request is scheduled when the sync finished
+                ret.next = _sync;
+                ret.since = System.currentTimeMillis();
+                this.submitted.increment();
+            } else {
+                ret.next = _sync;
+                this.coalesced.increment();
+                LOG.debug("Coalesced background sync for {}", _userName);
+            }
+            return ret;
+        });
+        boolean ret = slot != null;
+        if (!ret) {
+            this.rejected.increment();
+            LOG.warn("Background sync capacity reached, syncing {} directly", _userName);
+        } else if (schedule[0] && !schedule(_userName, slot)) {
+            ret = false;
+        }
+        return ret;
+    }
+
+    /**
+     * Schedule the execution of the slot of a user.
+     *
+     * @param _userName the user name
+     * @param _slot the slot
+     * @return true, if scheduled, false if the executor is stopped and the
+     *         slot was removed
+     */
+    private boolean schedule(final String _userName,
+                             final Slot _slot)
+    {
+        boolean ret = true;
+        try {
+            this.executor.schedule(() -> execute(_userName), this.window, TimeUnit.MILLISECONDS);
+        } catch (final RejectedExecutionException e) {
+            this.slots.remove(_userName, _slot);
+            this.rejected.increment();
+            ret = false;
+        }
+        return ret;
+    }
+
+    /**
+     * Execute the pending sync for a user. The slot stays in place while
+     * the sync runs, so that requests arriving meanwhile wait for it, and
+     * is scheduled again if such a request arrived.
+     *
+     * @param _userName the user name
+     */
+    private void execute(final String _userName)
+    {
+        final Runnable[] sync = new Runnable[1];
+        final long[] since = new long[1];
+        final Slot slot = this.slots.computeIfPresent(_userName, (_key, _current) -> {
+            sync[0] = _current.next;
+            since[0] = _current.since;
+            _current.next = null;
+            return _current;
+        });
+        if (slot != null && sync[0] != null) {
+            final long lag = System.currentTimeMillis() - since[0];
+            this.lastLag.set(lag);
+            this.maxLag.accumulateAndGet(lag, Math::max);
+            try {
+                sync[0].run();
+                this.executed.increment();
+            } catch (final RuntimeException e) {
+                this.failed.increment();
+                LOG.error("Background sync failed for {}", _userName, e);
+            }
+            final Slot again = this.slots.computeIfPresent(_userName,
+                            (_key, _current) -> _current.next == null ? null : _current);
+            if (again != null) {
+                schedule(_userName, again);
+            }
+        }
+    }
+
+    /**
+     * Gets the number of users with a pending or running sync.
+     *
+     * @return the queue depth
+     */
+    public int getQueueDepth()
+    {
+        return this.slots.size();
+    }
+
+    /**
+     * Gets the lag of the last executed sync.
+     *
+     * @return the lag in milliseconds
+     */
+    public long getLastLag()
+    {
+        return this.lastLag.get();
+    }
+
+    /**
+     * Gets the max lag of all executed syncs.
+     *
+     * @return the max lag in milliseconds
+     */
+    public long getMaxLag()
+    {
+        return this.maxLag.get();
+    }
+
+    /**
+     * Gets the number of submitted syncs.
+     *
+     * @return the submitted
+     */
+    public long getSubmitted()
+    {
+        return this.submitted.sum();
+    }
+
+    /**
+     * Gets the number of coalesced syncs.
+     *
+     * @return the coalesced
+     */
+    public long getCoalesced()
+    {
+        return this.coalesced.sum();
+    }
+
+    /**
+     * Gets the number of rejected syncs.
+     *
+     * @return the rejected
+     */
+    public long getRejected()
+    {
+        return this.rejected.sum();
+    }
+
+    /**
+     * Gets the number of executed syncs.
+     *
+     * @return the executed
+     */
+    public long getExecuted()
+    {
+        return this.executed.sum();
+    }
+
+    /**
+     * Gets the number of failed syncs.
+     *
+     * @return the failed
+     */
+    public long getFailed()
+    {
+        return this.failed.sum();
+    }
+
+    /**
+     * Stop the executor. Pending syncs are dropped.
+     */
+    public void shutdown()
+    {
+        this.executor.shutdownNow();
+        this.slots.clear();
+    }
+
+    /**
+     * Gets the single instance of SyncExecutor.
+     *
+     * @return single instance of SyncExecutor
+     */
+    public static SyncExecutor get()
+    {
+        return INSTANCE;
+    }
+
+    /**
+     * The sync state of a user, only changed within compute of the map.
+     */
+    private static final class Slot
+    {
+
+        /** The sync to run next, null while the last one runs without a new request. */
+        private Runnable next;
+
+        /** Time of the first request for the next sync. */
+        private long since;
+    }
+}
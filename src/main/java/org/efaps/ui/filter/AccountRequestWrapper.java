@@ -0,0 +1,101 @@
+/*
+ * Copyright © 2003 - 2024 The eFaps Team (-)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.efaps.ui.filter;
+
+import java.security.Principal;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpSession;
+
+import org.keycloak.KeycloakSecurityContext;
+import org.keycloak.adapters.RefreshableKeycloakSecurityContext;
+import org.keycloak.adapters.spi.KeycloakAccount;
+
+/**
+ * Lightweight request wrapper for a request of an already authenticated
+ * session. Exposes the account of the session in the same way as the
+ * wrapper built by the OIDCFilterSessionStore.
+ */
+public class AccountRequestWrapper
+    extends HttpServletRequestWrapper
+{
+
+    /** The account. */
+    private final KeycloakAccount account;
+
+    /** The security context. */
+    private final RefreshableKeycloakSecurityContext securityContext;
+
+    /**
+     * Instantiates a new account request wrapper.
+     *
+     * @param _request the request
+     * @param _account the account
+     * @param _securityContext the security context
+     */
+    public AccountRequestWrapper(final HttpServletRequest _request,
+                                 final KeycloakAccount _account,
+                                 final RefreshableKeycloakSecurityContext _securityContext)
+    {
+        super(_request);
+        this.account = _account;
+        this.securityContext = _securityContext;
+        _request.setAttribute(KeycloakSecurityContext.class.getName(), _securityContext);
+    }
+
+    @Override
+    public Principal getUserPrincipal()
+    {
+        return this.account.getPrincipal();
+    }
+
+    @Override
+    public String getRemoteUser()
+    {
+        return this.account.getPrincipal().getName();
+    }
+
+    @Override
+    public boolean isUserInRole(final String _role)
+    {
+        return this.account.getRoles().contains(_role);
+    }
+
+    @Override
+    public void logout()
+    {
+        if (this.securityContext.getRefreshToken() != null) {
+            this.securityContext.logout(this.securityContext.getDeployment());
+        }
+        final HttpSession session = getSession(false);
+        if (session != null) {
+            session.removeAttribute(KeycloakAccount.class.getName());
+            session.removeAttribute(KeycloakSecurityContext.class.getName());
+            session.invalidate();
+        }
+    }
+
+    /**
+     * Getter method for the instance variable {@link #securityContext}.
+     *
+     * @return value of instance variable {@link #securityContext}
+     */
+    public RefreshableKeycloakSecurityContext getSecurityContext()
+    {
+        return this.securityContext;
+    }
+}
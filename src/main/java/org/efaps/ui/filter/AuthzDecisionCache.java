@@ -0,0 +1,522 @@
+/*
+ * Copyright © 2003 - 2024 The eFaps Team (-)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.efaps.ui.filter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.commons.lang3.StringUtils;
+import org.keycloak.KeycloakSecurityContext;
+import org.keycloak.adapters.KeycloakDeployment;
+import org.keycloak.authorization.client.AuthorizationDeniedException;
+import org.keycloak.authorization.client.AuthzClient;
+import org.keycloak.authorization.client.Configuration;
+import org.keycloak.representations.AccessToken;
+import org.keycloak.representations.idm.authorization.AuthorizationRequest;
+import org.keycloak.representations.idm.authorization.AuthorizationResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Enforces the permissions of Keycloak Authorization Services for
+ * configured paths. The decisions are cached per user, resource and scope
+ * for at most the configured time and never beyond the expiry of the
+ * token they were made for. The request to Keycloak is sent by a small
+ * pool of background threads; all requests for the same decision,
+ * including the first one, wait for it for at most {@link #TIMEOUT} and
+ * are denied if it is not made in time. A decision pending for longer is
+ * requested again. If the cache is full the decisions expiring first are
+ * evicted. The paths are matched against the path normalized by the
+ * container (see {@link RequestPath}) on segment boundaries; a request
+ * without such a path is denied.
+ */
+public class AuthzDecisionCache
+{
+
+    /**
+     * Init parameter for the protected paths in the form
+     * "path1=resource1#scope1,path2=resource2", the scope is optional.
+     * Paths are prefixes relative to the context matched on segment
+     * boundaries, the longest match wins.
+     */
+    public static final String PATHS = "org.efaps.keycloak.authz.paths";
+
+    /** Init parameter for the max time a decision is cached in seconds. */
+    public static final String MAXTTL = "org.efaps.keycloak.authz.maxTtl";
+
+    /** Init parameter for the max number of cached decisions. */
+    public static final String MAXENTRIES = "org.efaps.keycloak.authz.cacheSize";
+
+    /** Default for the max time a decision is cached in seconds. */
+    private static final int DEFAULTMAXTTL = 300;
+
+    /** Default for the max number of cached decisions. */
+    private static final int DEFAULTMAXENTRIES = 10000;
+
+    /** Max time to wait for a decision in milliseconds, a decision not made in time denies. */
+    private static final long TIMEOUT = TimeUnit.SECONDS.toMillis(10);
+
+    /** Number of threads requesting decisions. */
+    private static final int THREADS = 4;
+
+    /** Max number of decisions waiting for a thread. */
+    private static final int QUEUE = 1000;
+
+    /**
+     * Logger for this class.
+     */
+    private static final Logger LOG = LoggerFactory.getLogger(AuthzDecisionCache.class);
+
+    /** The cached decisions. */
+    private final Map<String, Entry> cache = new ConcurrentHashMap<>();
+
+    /** The clients by deployment, weak so that reloaded deployments are released. */
+    private final Map<KeycloakDeployment, AuthzClient> clients = Collections.synchronizedMap(new WeakHashMap<>());
+
+    /** The rules, longest path first. */
+    private final List<Rule> rules;
+
+    /** The max time a decision is cached in milliseconds. */
+    private final long maxTtl;
+
+    /** The max number of entries. */
+    private final int maxEntries;
+
+    /** Max time to wait for a decision in milliseconds. */
+    private final long timeout;
+
+    /** Executor requesting the decisions. */
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * Instantiates a new authorization decision cache.
+     *
+     * @param _paths the protected paths
+     * @param _maxTtl max time a decision is cached in seconds, null for
+     *            default
+     * @param _maxEntries max number of cached decisions, null for default
+     */
+    public AuthzDecisionCache(final String _paths,
+                              final String _maxTtl,
+                              final String _maxEntries)
+    {
+        this(_paths, _maxTtl, _maxEntries, TIMEOUT);
+    }
+
+    /**
+     * Instantiates a new authorization decision cache.
+     *
+     * @param _paths the protected paths
+     * @param _maxTtl max time a decision is cached in seconds, null for
+     *            default
+     * @param _maxEntries max number of cached decisions, null for default
+     * @param _timeout max time to wait for a decision in milliseconds
+     */
+    AuthzDecisionCache(final String _paths,
+                       final String _maxTtl,
+                       final String _maxEntries,
+                       final long _timeout)
+    {
+        final List<Rule> parsed = new ArrayList<>();
+        for (final String entry : StringUtils.split(_paths, ",")) {
+            final String path = StringUtils.substringBefore(entry, "=").trim();
+            final String permission = StringUtils.substringAfter(entry, "=").trim();
+            final String resource = StringUtils.substringBefore(permission, "#").trim();
+            if (!path.isEmpty() && !resource.isEmpty()) {
+                parsed.add(new Rule(path, resource, StringUtils.trimToNull(StringUtils.substringAfter(permission,
+                                "#"))));
+            }
+        }
+        parsed.sort(Comparator.comparingInt((final Rule _rule) -> _rule.path.length()).reversed());
+        this.rules = List.copyOf(parsed);
+        this.maxTtl = TimeUnit.SECONDS.toMillis(_maxTtl == null ? DEFAULTMAXTTL : Integer.parseInt(_maxTtl.trim()));
+        this.maxEntries = _maxEntries == null ? DEFAULTMAXENTRIES : Integer.parseInt(_maxEntries.trim());
+        this.timeout = _timeout;
+        final AtomicInteger counter = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(THREADS, THREADS, 60, TimeUnit.SECONDS,
+                        new LinkedBlockingQueue<>(QUEUE), _runnable -> {
+                            final Thread thread = new Thread(_runnable, "eFaps-Keycloak-Authz-"
+                                            + counter.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        });
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Checks if the request is granted. Requests outside of the protected
+     * paths are always granted, requests without a normalized path never.
+     *
+     * @param _request the request
+     * @param _deployment the deployment
+     * @param _securityContext the security context of the user
+     * @return true, if granted
+     */
+    public boolean isGranted(final HttpServletRequest _request,
+                             final KeycloakDeployment _deployment,
+                             final KeycloakSecurityContext _securityContext)
+    {
+        final boolean ret;
+        final String path = RequestPath.of(_request);
+        if (path == null) {
+            LOG.debug("Denied request without a normalized path: {}", _request.getRequestURI());
+            ret = false;
+        } else {
+            final Rule rule = getRule(path);
+            ret = rule == null || isGranted(_deployment, _securityContext, rule);
+        }
+        return ret;
+    }
+
+    /**
+     * Gets the rule for a path.
+     *
+     * @param _path the path relative to the context
+     * @return the rule, null if the path is not protected
+     */
+    Rule getRule(final String _path)
+    {
+        Rule ret = null;
+        for (final Rule rule : this.rules) {
+            if (RequestPath.startsWith(_path, rule.path)) {
+                ret = rule;
+                break;
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Checks if the permission of a rule is granted, using the cached
+     * decision if present.
+     *
+     * @param _deployment the deployment
+     * @param _securityContext the security context of the user
+     * @param _rule the rule
+     * @return true, if granted
+     */
+    private boolean isGranted(final KeycloakDeployment _deployment,
+                              final KeycloakSecurityContext _securityContext,
+                              final Rule _rule)
+    {
+        final AccessToken token = _securityContext.getToken();
+        final String user = token.getSubject() == null ? token.getPreferredUsername() : token.getSubject();
+        final String key = _deployment.getRealm() + "\n" + user + "\n" + _rule.resource + "#"
+                        + StringUtils.defaultString(_rule.scope);
+        final long now = System.currentTimeMillis();
+        Entry entry = this.cache.get(key);
+        if (entry != null && entry.isExpired(now)) {
+            this.cache.remove(key, entry);
+            entry = null;
+        }
+        if (entry == null) {
+            evictIfFull(now);
+            final Entry created = new Entry(now);
+            entry = this.cache.putIfAbsent(key, created);
+            if (entry == null) {
+                entry = created;
+                submit(key, created, _deployment, _securityContext, _rule, now);
+            }
+        }
+        return await(entry.decision, this.timeout);
+    }
+
+    /**
+     * Submit the request for a decision to the executor. If the executor
+     * does not accept it the entry is removed and denies.
+     *
+     * @param _key the key
+     * @param _entry the entry
+     * @param _deployment the deployment
+     * @param _securityContext the security context of the user
+     * @param _rule the rule
+     * @param _now the current time
+     */
+    private void submit(final String _key,
+                        final Entry _entry,
+                        final KeycloakDeployment _deployment,
+                        final KeycloakSecurityContext _securityContext,
+                        final Rule _rule,
+                        final long _now)
+    {
+        try {
+            this.executor.execute(() -> decide(_key, _entry, _deployment, _securityContext, _rule, _now));
+        } catch (final RejectedExecutionException e) {
+            LOG.warn("Too many pending authorization decisions, denied {}#{}", _rule.resource, _rule.scope);
+            this.cache.remove(_key, _entry);
+            _entry.decision.complete(false);
+        }
+    }
+
+    /**
+     * Wait for a decision.
+     *
+     * @param _decision the decision
+     * @param _timeout max time to wait in milliseconds
+     * @return the decision, false if it was not made in time
+     */
+    static boolean await(final CompletableFuture<Boolean> _decision,
+                         final long _timeout)
+    {
+        boolean ret = false;
+        try {
+            ret = _decision.get(_timeout, TimeUnit.MILLISECONDS);
+        } catch (final TimeoutException e) {
+            LOG.warn("No authorization decision within {} ms, denied", _timeout);
+        } catch (final ExecutionException e) {
+            LOG.error("Authorization decision failed, denied", e);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return ret;
+    }
+
+    /**
+     * Ask Keycloak for the decision and complete the entry with it. A
+     * decision that could not be made is not cached and denies.
+     *
+     * @param _key the key
+     * @param _entry the entry
+     * @param _deployment the deployment
+     * @param _securityContext the security context of the user
+     * @param _rule the rule
+     * @param _now the current time
+     */
+    private void decide(final String _key,
+                        final Entry _entry,
+                        final KeycloakDeployment _deployment,
+                        final KeycloakSecurityContext _securityContext,
+                        final Rule _rule,
+                        final long _now)
+    {
+        final Long exp = _securityContext.getToken().getExp();
+        long expires = Math.min(_now + this.maxTtl, exp == null ? _now : exp * 1000L);
+        boolean granted = false;
+        try {
+            final long expiresIn = authorize(_deployment, _securityContext, _rule);
+            granted = true;
+            if (expiresIn > 0) {
+                expires = Math.min(expires, _now + TimeUnit.SECONDS.toMillis(expiresIn));
+            }
+        } catch (final AuthorizationDeniedException e) {
+            LOG.debug("Denied {}#{} for {}", _rule.resource, _rule.scope, _securityContext.getToken().getSubject());
+        } catch (final RuntimeException e) {
+            LOG.error("Could not get the decision for {}#{}", _rule.resource, _rule.scope, e);
+            expires = 0;
+        }
+        _entry.expires = expires;
+        if (expires <= _now) {
+            this.cache.remove(_key, _entry);
+        }
+        _entry.decision.complete(granted);
+    }
+
+    /**
+     * Ask Keycloak for the permission of a rule.
+     *
+     * @param _deployment the deployment
+     * @param _securityContext the security context of the user
+     * @param _rule the rule
+     * @return the seconds the granted permission is valid, 0 if unknown
+     * @throws AuthorizationDeniedException if the permission is denied
+     */
+    long authorize(final KeycloakDeployment _deployment,
+                   final KeycloakSecurityContext _securityContext,
+                   final Rule _rule)
+    {
+        final AuthorizationRequest request = new AuthorizationRequest();
+        if (_rule.scope == null) {
+            request.addPermission(_rule.resource);
+        } else {
+            request.addPermission(_rule.resource, _rule.scope);
+        }
+        final AuthorizationResponse response = getClient(_deployment).authorization(
+                        _securityContext.getTokenString()).authorize(request);
+        return response.getExpiresIn();
+    }
+
+    /**
+     * Gets the client for a deployment.
+     *
+     * @param _deployment the deployment
+     * @return the client
+     */
+    private AuthzClient getClient(final KeycloakDeployment _deployment)
+    {
+        return this.clients.computeIfAbsent(_deployment, _key -> AuthzClient.create(new Configuration(
+                        _key.getAuthServerBaseUrl(), _key.getRealm(), _key.getResourceName(),
+                        _key.getResourceCredentials(), _key.getClient())));
+    }
+
+    /**
+     * Evict the expired entries if the max size is reached and, if that is
+     * not enough, the decisions expiring first, a tenth of the max size at
+     * once so that the following decisions do not have to evict again.
+     * Pending decisions expire last.
+     *
+     * @param _now the current time
+     */
+    private void evictIfFull(final long _now)
+    {
+        if (this.cache.size() >= this.maxEntries) {
+            this.cache.values().removeIf(_cached -> _cached.isExpired(_now));
+            if (this.cache.size() >= this.maxEntries) {
+                final int excess = this.cache.size() - this.maxEntries + Math.max(1, this.maxEntries / 10);
+                LOG.debug("AuthzDecisionCache full, evicting {} decisions expiring first", excess);
+                final List<String> keys = this.cache.entrySet().stream()
+                                .sorted(Comparator.comparingLong(_cached -> _cached.getValue().expires))
+                                .limit(excess)
+                                .map(Map.Entry::getKey)
+                                .collect(Collectors.toList());
+                keys.forEach(this.cache::remove);
+            }
+        }
+    }
+
+    /**
+     * Gets the number of cached decisions.
+     *
+     * @return the size
+     */
+    int size()
+    {
+        return this.cache.size();
+    }
+
+    /**
+     * Remove all entries.
+     */
+    public void clear()
+    {
+        this.cache.clear();
+    }
+
+    /**
+     * Stop the executor, pending decisions are denied when the wait for
+     * them times out.
+     */
+    public void stop()
+    {
+        this.executor.shutdownNow();
+    }
+
+    /**
+     * A protected path with its permission.
+     */
+    static final class Rule
+    {
+
+        /** The path prefix. */
+        private final String path;
+
+        /** The resource. */
+        private final String resource;
+
+        /** The scope, may be null. */
+        private final String scope;
+
+        /**
+         * Instantiates a new rule.
+         *
+         * @param _path the path prefix
+         * @param _resource the resource
+         * @param _scope the scope
+         */
+        private Rule(final String _path,
+                     final String _resource,
+                     final String _scope)
+        {
+            this.path = _path;
+            this.resource = _resource;
+            this.scope = _scope;
+        }
+
+        /**
+         * Gets the resource.
+         *
+         * @return the resource
+         */
+        String getResource()
+        {
+            return this.resource;
+        }
+
+        /**
+         * Gets the scope.
+         *
+         * @return the scope, may be null
+         */
+        String getScope()
+        {
+            return this.scope;
+        }
+    }
+
+    /**
+     * A cached decision, pending until the background request completes it.
+     */
+    private final class Entry
+    {
+
+        /** The decision. */
+        private final CompletableFuture<Boolean> decision = new CompletableFuture<>();
+
+        /** Time the decision was requested. */
+        private final long requested;
+
+        /** Expiry in milliseconds, set before the decision is completed. */
+        private volatile long expires = Long.MAX_VALUE;
+
+        /**
+         * Instantiates a new entry.
+         *
+         * @param _requested time the decision was requested
+         */
+        private Entry(final long _requested)
+        {
+            this.requested = _requested;
+        }
+
+        /**
+         * Checks if the decision is expired. A decision still pending after
+         * the timeout counts as expired, so that it is requested again.
+         *
+         * @param _now the current time
+         * @return true, if expired
+         */
+        private boolean isExpired(final long _now)
+        {
+            return this.decision.isDone() ? this.expires <= _now
+                            : _now - this.requested > AuthzDecisionCache.this.timeout;
+        }
+    }
+}
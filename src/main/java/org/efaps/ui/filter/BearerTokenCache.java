@@ -0,0 +1,230 @@
+/*
+ * Copyright © 2003 - 2024 The eFaps Team (-)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.efaps.ui.filter;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+import org.keycloak.KeycloakPrincipal;
+import org.keycloak.adapters.AdapterUtils;
+import org.keycloak.adapters.KeycloakDeployment;
+import org.keycloak.adapters.RefreshableKeycloakSecurityContext;
+import org.keycloak.adapters.rotation.AdapterTokenVerifier;
+import org.keycloak.adapters.servlet.OIDCFilterSessionStore.SerializableKeycloakAccount;
+import org.keycloak.common.VerificationException;
+import org.keycloak.representations.AccessToken;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Verifies bearer tokens locally against the keys of the realm and keeps
+ * the resulting accounts in a bounded cache keyed by the hash of the
+ * token. An entry lives until the token expires, so repeated calls with
+ * the same token skip the signature check. Tokens without an expiry are
+ * rejected. If the cache is full the entries expiring first are evicted.
+ */
+public class BearerTokenCache
+{
+
+    /** Init parameter to activate the bearer mode. */
+    public static final String ACTIVATE = "org.efaps.keycloak.bearer";
+
+    /** Init parameter for the max number of cached tokens. */
+    public static final String MAXENTRIES = "org.efaps.keycloak.bearer.cacheSize";
+
+    /** Default for the max number of cached tokens. */
+    private static final int DEFAULTMAXENTRIES = 10000;
+
+    /**
+     * Logger for this class.
+     */
+    private static final Logger LOG = LoggerFactory.getLogger(BearerTokenCache.class);
+
+    /** The cached accounts. */
+    private final Map<String, Entry> cache = new ConcurrentHashMap<>();
+
+    /** The max number of entries. */
+    private final int maxEntries;
+
+    /**
+     * Instantiates a new bearer token cache.
+     *
+     * @param _maxEntries max number of cached tokens, null for default
+     */
+    public BearerTokenCache(final String _maxEntries)
+    {
+        this.maxEntries = _maxEntries == null ? DEFAULTMAXENTRIES : Integer.parseInt(_maxEntries.trim());
+    }
+
+    /**
+     * Gets the account for a bearer token, verifying the token if it is
+     * not cached yet.
+     *
+     * @param _deployment the deployment
+     * @param _tokenString the token string
+     * @return the account, null if the token is not valid
+     */
+    public SerializableKeycloakAccount getAccount(final KeycloakDeployment _deployment,
+                                                  final String _tokenString)
+    {
+        final String key = _deployment.getRealm() + ":" + hash(_tokenString);
+        final long now = System.currentTimeMillis();
+        Entry entry = get(key, now);
+        if (entry != null && !entry.account.getKeycloakSecurityContext().isActive()) {
+            this.cache.remove(key);
+            entry = null;
+        }
+        if (entry == null) {
+            try {
+                final AccessToken token = AdapterTokenVerifier.verifyToken(_tokenString, _deployment);
+                if (token.getExp() == null) {
+                    LOG.debug("Bearer token without expiry rejected");
+                } else {
+                    final RefreshableKeycloakSecurityContext securityContext = new RefreshableKeycloakSecurityContext(
+                                    _deployment, null, _tokenString, token, null, null, null);
+                    final KeycloakPrincipal<RefreshableKeycloakSecurityContext> principal = new KeycloakPrincipal<>(
+                                    AdapterUtils.getPrincipalName(_deployment, token), securityContext);
+                    final Set<String> roles = AdapterUtils.getRolesFromSecurityContext(securityContext);
+                    final Entry verified = new Entry(new SerializableKeycloakAccount(roles, principal,
+                                    securityContext), token.getExp() * 1000L);
+                    if (verified.expires > now) {
+                        put(key, verified, now);
+                        entry = verified;
+                    }
+                }
+            } catch (final VerificationException e) {
+                LOG.debug("Bearer token not valid: {}", e.getMessage());
+            }
+        }
+        return entry == null ? null : entry.account;
+    }
+
+    /**
+     * Gets a cached entry, removing it if it is expired.
+     *
+     * @param _key the key
+     * @param _now the current time
+     * @return the entry, null if not cached or expired
+     */
+    Entry get(final String _key,
+              final long _now)
+    {
+        Entry ret = this.cache.get(_key);
+        if (ret != null && ret.expires <= _now) {
+            this.cache.remove(_key, ret);
+            ret = null;
+        }
+        return ret;
+    }
+
+    /**
+     * Put an entry into the cache. If the max size is reached the expired
+     * entries are removed and, if that is not enough, the entries expiring
+     * first, a tenth of the max size at once so that the following puts do
+     * not have to evict again.
+     *
+     * @param _key the key
+     * @param _entry the entry
+     * @param _now the current time
+     */
+    void put(final String _key,
+             final Entry _entry,
+             final long _now)
+    {
+        if (this.cache.size() >= this.maxEntries) {
+            this.cache.values().removeIf(_cached -> _cached.expires <= _now);
+            if (this.cache.size() >= this.maxEntries) {
+                final int excess = this.cache.size() - this.maxEntries + Math.max(1, this.maxEntries / 10);
+                LOG.debug("BearerTokenCache full, evicting {} entries expiring first", excess);
+                final List<String> keys = this.cache.entrySet().stream()
+                                .sorted(Comparator.comparingLong(_cached -> _cached.getValue().expires))
+                                .limit(excess)
+                                .map(Map.Entry::getKey)
+                                .collect(Collectors.toList());
+                keys.forEach(this.cache::remove);
+            }
+        }
+        this.cache.put(_key, _entry);
+    }
+
+    /**
+     * Gets the number of cached tokens.
+     *
+     * @return the size
+     */
+    int size()
+    {
+        return this.cache.size();
+    }
+
+    /**
+     * Remove all entries.
+     */
+    public void clear()
+    {
+        this.cache.clear();
+    }
+
+    /**
+     * Hash of the token.
+     *
+     * @param _tokenString the token string
+     * @return the hash
+     */
+    static String hash(final String _tokenString)
+    {
+        try {
+            return Base64.getEncoder().encodeToString(MessageDigest.getInstance("SHA-256").digest(
+                            _tokenString.getBytes(StandardCharsets.US_ASCII)));
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * A cached account.
+     */
+    static final class Entry
+    {
+
+        /** The account. */
+        private final SerializableKeycloakAccount account;
+
+        /** Expiry in milliseconds. */
+        private final long expires;
+
+        /**
+         * Instantiates a new entry.
+         *
+         * @param _account the account
+         * @param _expires the expires
+         */
+        Entry(final SerializableKeycloakAccount _account,
+              final long _expires)
+        {
+            this.account = _account;
+            this.expires = _expires;
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright © 2003 - 2024 The eFaps Team (-)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.efaps.ui.filter;
+
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * Matches the requests that bypass the authentication of the filter, e.g.
+ * static resources like CSS, JavaScript or images. A request matches if
+ * its path, as normalized by the container (see {@link RequestPath}),
+ * starts with one of the configured prefixes on a segment boundary or ends
+ * with one of the configured extensions. Requests with encoded separators
+ * or dot segments never bypass.
+ */
+public class BypassMatcher
+{
+
+    /** Init parameter for the comma separated list of path prefixes. */
+    public static final String PREFIXES = "org.efaps.keycloak.bypass.prefixes";
+
+    /** Init parameter for the comma separated list of extensions. */
+    public static final String EXTENSIONS = "org.efaps.keycloak.bypass.extensions";
+
+    /** The prefixes. */
+    private final String[] prefixes;
+
+    /** The extensions in lower case without dot. */
+    private final Set<String> extensions;
+
+    /**
+     * Instantiates a new bypass matcher.
+     *
+     * @param _prefixes comma separated list of path prefixes, may be null
+     * @param _extensions comma separated list of extensions, may be null
+     */
+    public BypassMatcher(final String _prefixes,
+                         final String _extensions)
+    {
+        this.prefixes = StringUtils.stripAll(StringUtils.split(StringUtils.defaultString(_prefixes), ","));
+        this.extensions = new HashSet<>();
+        for (final String extension : StringUtils.split(StringUtils.defaultString(_extensions), ",")) {
+            this.extensions.add(StringUtils.removeStart(extension.trim(), ".").toLowerCase(Locale.ENGLISH));
+        }
+    }
+
+    /**
+     * Checks if anything is configured.
+     *
+     * @return true, if is empty
+     */
+    public boolean isEmpty()
+    {
+        return this.prefixes.length == 0 && this.extensions.isEmpty();
+    }
+
+    /**
+     * Checks if the request bypasses the authentication.
+     *
+     * @param _request the request
+     * @return true, if matches
+     */
+    public boolean matches(final HttpServletRequest _request)
+    {
+        boolean ret = false;
+        final String path = isEmpty() ? null : RequestPath.of(_request);
+        if (path != null) {
+            for (final String prefix : this.prefixes) {
+                if (RequestPath.startsWith(path, prefix)) {
+                    ret = true;
+                    break;
+                }
+            }
+            if (!ret && !this.extensions.isEmpty()) {
+                final int dot = path.lastIndexOf('.');
+                if (dot > path.lastIndexOf('/')) {
+                    ret = this.extensions.contains(path.substring(dot + 1).toLowerCase(Locale.ENGLISH));
+                }
+            }
+        }
+        return ret;
+    }
+}
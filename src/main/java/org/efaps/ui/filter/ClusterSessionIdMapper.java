@@ -0,0 +1,639 @@
+/*
+ * Copyright © 2003 - 2024 The eFaps Team (-)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.efaps.ui.filter;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.efaps.db.Context;
+import org.efaps.db.databases.AbstractDatabase;
+import org.efaps.db.databases.AbstractDatabase.ColumnType;
+import org.efaps.util.EFapsException;
+import org.keycloak.common.util.HostUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * SessionIdMapper shared by all nodes of a cluster via a table in the eFaps
+ * database. The local indexes of {@link IndexedSessionIdMapper} serve as
+ * near cache. Mapped and removed sessions are queued and written in one
+ * batch by a background thread, which in the same transaction picks up the
+ * sessions mapped and removed by other nodes since its last poll and
+ * applies them locally. A session that is not known locally yet, e.g. the
+ * first request on this node after a login on another node, is looked up
+ * in the table, so routing does not need to be sticky. A session not found
+ * there is not looked up again within the poll interval, as the poll
+ * picks it up if it is mapped meanwhile. The rows are scoped to the
+ * deployment, so that several webapps can share the table, and carry the
+ * node that mapped the session: a logout of all sessions, which Keycloak
+ * pushes to every registered node, only removes the rows of this node.
+ * The table is created by the eFaps database abstraction and only accessed
+ * with standard SQL.
+ */
+public class ClusterSessionIdMapper
+    extends IndexedSessionIdMapper
+{
+
+    /** Init parameter to activate the cluster mapper. */
+    public static final String ACTIVATE = "org.efaps.keycloak.clusterSessions";
+
+    /** Init parameter for the poll interval in seconds. */
+    public static final String POLL = "org.efaps.keycloak.clusterSessions.poll";
+
+    /** Init parameter for the scope of the rows, defaults to the context path. */
+    public static final String SCOPE = "org.efaps.keycloak.clusterSessions.scope";
+
+    /** Default poll interval in seconds. */
+    private static final int DEFAULTPOLL = 5;
+
+    /** Overlap of the polls to tolerate clock differences between the nodes. */
+    private static final long OVERLAP = TimeUnit.SECONDS.toMillis(60);
+
+    /** Time mapped rows are kept. */
+    private static final long KEEPMAPPED = TimeUnit.HOURS.toMillis(24);
+
+    /** Time removed rows are kept. */
+    private static final long KEEPREMOVED = TimeUnit.HOURS.toMillis(1);
+
+    /** Max number of operations kept for a retry while the database is not reachable. */
+    private static final int MAXRETRY = 10000;
+
+    /** Max number of sessions remembered as not mapped. */
+    private static final int MAXMISSES = 10000;
+
+    /** Name of the table. */
+    private static final String TABLE = "T_KCSESSION";
+
+    /** SQL to update the mapping of a session. */
+    private static final String SQLUPDATE = "UPDATE " + TABLE
+                    + " SET SSO = ?, PRINCIPAL = ?, NODE = ?, EXPIRES = ?, MAPPED = ?, REMOVED = NULL"
+                    + " WHERE SCOPE = ? AND SESSIONID = ?";
+
+    /** SQL to insert the mapping of a session. */
+    private static final String SQLINSERT = "INSERT INTO " + TABLE
+                    + " (SCOPE, SESSIONID, NODE, SSO, PRINCIPAL, EXPIRES, MAPPED) VALUES (?, ?, ?, ?, ?, ?, ?)";
+
+    /** SQL to remove a session. */
+    private static final String SQLREMOVE = "UPDATE " + TABLE + " SET REMOVED = ? WHERE SCOPE = ? AND SESSIONID = ?";
+
+    /** SQL to insert the removal of a session not written by its node yet. */
+    private static final String SQLINSERTREMOVED = "INSERT INTO " + TABLE
+                    + " (SCOPE, SESSIONID, NODE, EXPIRES, MAPPED, REMOVED) VALUES (?, ?, ?, ?, ?, ?)";
+
+    /** SQL to remove all sessions mapped by this node. */
+    private static final String SQLCLEAR = "UPDATE " + TABLE
+                    + " SET REMOVED = ? WHERE SCOPE = ? AND NODE = ? AND REMOVED IS NULL";
+
+    /** SQL to select the removed sessions. */
+    private static final String SQLREMOVED = "SELECT SESSIONID FROM " + TABLE + " WHERE SCOPE = ? AND REMOVED > ?";
+
+    /** SQL to select the mapped sessions. */
+    private static final String SQLMAPPED = "SELECT SESSIONID, SSO, PRINCIPAL FROM " + TABLE
+                    + " WHERE SCOPE = ? AND MAPPED > ? AND REMOVED IS NULL AND EXPIRES > ?";
+
+    /** SQL to select one mapped session. */
+    private static final String SQLLOOKUP = "SELECT SESSIONID, SSO, PRINCIPAL FROM " + TABLE
+                    + " WHERE SCOPE = ? AND SESSIONID = ? AND REMOVED IS NULL AND EXPIRES > ?";
+
+    /** SQL to delete old rows. */
+    private static final String SQLCLEANUP = "DELETE FROM " + TABLE
+                    + " WHERE REMOVED < ? OR (REMOVED IS NULL AND EXPIRES < ?)";
+
+    /**
+     * Logger for this class.
+     */
+    private static final Logger LOG = LoggerFactory.getLogger(ClusterSessionIdMapper.class);
+
+    /** Operations not written yet. */
+    private final Queue<Operation> operations = new ConcurrentLinkedQueue<>();
+
+    /** Operations of a failed synchronization, only used by the scheduler thread. */
+    private final List<Operation> retry = new ArrayList<>();
+
+    /** Sessions removed locally whose removal is not written yet, they must not be looked up. */
+    private final Set<String> pendingRemovals = ConcurrentHashMap.newKeySet();
+
+    /** Number of clear operations not written yet. */
+    private final AtomicInteger pendingClears = new AtomicInteger();
+
+    /** Sessions not found in the table by the time until they are not looked up again. */
+    private final Map<String, Long> misses = new ConcurrentHashMap<>();
+
+    /** Scope of the rows of this deployment. */
+    private final String scope;
+
+    /** This node, as registered with Keycloak. */
+    private final String node;
+
+    /** Poll interval in milliseconds. */
+    private final long pollInterval;
+
+    /** The scheduler. */
+    private final ScheduledExecutorService scheduler;
+
+    /** Time of the last successful poll. */
+    private long lastPoll = System.currentTimeMillis();
+
+    /** Is the table verified. */
+    private volatile boolean tableVerified;
+
+    /**
+     * Instantiates a new cluster session id mapper.
+     *
+     * @param _idle idle time in minutes, null for the default
+     * @param _poll poll interval in seconds, null for the default
+     * @param _scope scope of the rows of this deployment
+     */
+    public ClusterSessionIdMapper(final String _idle,
+                                  final String _poll,
+                                  final String _scope)
+    {
+        super(_idle);
+        final int poll = _poll == null ? DEFAULTPOLL : Integer.parseInt(_poll.trim());
+        this.pollInterval = TimeUnit.SECONDS.toMillis(poll);
+        this.scope = _scope == null || _scope.isEmpty() ? "/" : _scope;
+        this.node = HostUtils.getHostName();
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(_runnable -> {
+            final Thread thread = new Thread(_runnable, "eFaps-Keycloak-ClusterSessions");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.scheduler.scheduleWithFixedDelay(this::synchronize, poll, poll, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public boolean hasSession(final String _id)
+    {
+        boolean ret = super.hasSession(_id);
+        if (!ret && _id != null) {
+            final long now = System.currentTimeMillis();
+            final Long missed = this.misses.get(_id);
+            if (missed == null || missed <= now) {
+                final Operation mapping = lookup(_id);
+                if (mapping == null) {
+                    addMiss(_id, now);
+                } else {
+                    LOG.debug("Session {} was mapped by another node", _id);
+                    this.misses.remove(_id);
+                    super.map(mapping.sso, mapping.principal, mapping.session);
+                    ret = true;
+                }
+            }
+        }
+        return ret;
+    }
+
+    @Override
+    public void map(final String _sso,
+                    final String _principal,
+                    final String _session)
+    {
+        super.map(_sso, _principal, _session);
+        this.operations.add(new Operation(OperationType.MAP, _session, _sso, _principal));
+    }
+
+    @Override
+    public void removeSession(final String _session)
+    {
+        super.removeSession(_session);
+        this.pendingRemovals.add(_session);
+        this.operations.add(new Operation(OperationType.REMOVE, _session, null, null));
+    }
+
+    @Override
+    public void removeSessions(final Collection<String> _sessions)
+    {
+        super.removeSessions(_sessions);
+        for (final String session : _sessions) {
+            this.pendingRemovals.add(session);
+            this.operations.add(new Operation(OperationType.REMOVE, session, null, null));
+        }
+    }
+
+    @Override
+    public void clear()
+    {
+        super.clear();
+        this.pendingClears.incrementAndGet();
+        this.operations.add(new Operation(OperationType.CLEAR, null, null, null));
+    }
+
+    /**
+     * Remember a session as not mapped for one poll interval. If the max
+     * number is reached the expired misses are removed first, if that is
+     * not enough the session is not remembered.
+     *
+     * @param _session the http session id
+     * @param _now the current time
+     */
+    private void addMiss(final String _session,
+                         final long _now)
+    {
+        if (this.misses.size() >= MAXMISSES) {
+            this.misses.values().removeIf(_until -> _until <= _now);
+        }
+        if (this.misses.size() < MAXMISSES) {
+            this.misses.put(_session, _now + this.pollInterval);
+        }
+    }
+
+    /**
+     * Write the queued operations and apply the sessions mapped and removed
+     * by other nodes.
+     */
+    protected void synchronize()
+    {
+        final List<Operation> ops = new ArrayList<>(this.retry);
+        this.retry.clear();
+        Operation op;
+        while ((op = this.operations.poll()) != null) {
+            ops.add(op);
+        }
+        try {
+            Context.begin();
+            boolean ok = false;
+            try {
+                final long now = System.currentTimeMillis();
+                final Connection con = Context.getThreadContext().getConnectionResource().getConnection();
+                verifyTable(con);
+                write(con, ops, now);
+                final List<String> removed = readRemoved(con);
+                final List<Operation> mapped = readMapped(con, now);
+                if (now - this.lastPoll > KEEPREMOVED / 2) {
+                    cleanup(con, now);
+                }
+                ok = true;
+                this.lastPoll = now;
+                for (final String session : removed) {
+                    super.removeSession(session);
+                }
+                for (final Operation mapping : mapped) {
+                    this.misses.remove(mapping.session);
+                    if (!isMapped(mapping.session) && !this.pendingRemovals.contains(mapping.session)) {
+                        super.map(mapping.sso, mapping.principal, mapping.session);
+                    }
+                }
+                LOG.debug("Wrote {} operations, applied {} removed and {} mapped sessions", ops.size(),
+                                removed.size(), mapped.size());
+            } finally {
+                if (ok && Context.isTMActive()) {
+                    Context.commit();
+                    written(ops);
+                } else {
+                    Context.rollback();
+                    // keep the operations in order for the next try
+                    this.retry.addAll(ops);
+                }
+            }
+        } catch (final EFapsException | SQLException e) {
+            LOG.error("Could not synchronize the cluster sessions", e);
+            if (this.retry.isEmpty()) {
+                this.retry.addAll(ops);
+            }
+        }
+        capRetry();
+    }
+
+    /**
+     * Release the pending state of written operations.
+     *
+     * @param _ops the written operations
+     */
+    private void written(final List<Operation> _ops)
+    {
+        for (final Operation op : _ops) {
+            if (op.type == OperationType.REMOVE) {
+                this.pendingRemovals.remove(op.session);
+            } else if (op.type == OperationType.CLEAR) {
+                this.pendingClears.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Limit the operations kept for a retry to {@link #MAXRETRY}. The
+     * mappings are dropped first, as they can be recovered by a new login,
+     * while a dropped removal could make a logged out session valid again
+     * on another node.
+     */
+    private void capRetry()
+    {
+        final int excess = this.retry.size() - MAXRETRY;
+        if (excess > 0) {
+            int dropped = 0;
+            final Iterator<Operation> iter = this.retry.iterator();
+            while (iter.hasNext() && dropped < excess) {
+                if (iter.next().type == OperationType.MAP) {
+                    iter.remove();
+                    dropped++;
+                }
+            }
+            final List<Operation> oldest = new ArrayList<>(this.retry.subList(0, excess - dropped));
+            this.retry.subList(0, excess - dropped).clear();
+            written(oldest);
+            LOG.warn("Cluster session table not reachable, dropped {} queued operations", excess);
+        }
+    }
+
+    /**
+     * Look a session up in the table.
+     *
+     * @param _session the http session id
+     * @return the mapping, null if the session is not mapped
+     */
+    private Operation lookup(final String _session)
+    {
+        Operation ret = null;
+        if (this.pendingClears.get() == 0 && !this.pendingRemovals.contains(_session)) {
+            try {
+                final boolean begun = !Context.isTMActive();
+                if (begun) {
+                    Context.begin();
+                }
+                try {
+                    final Connection con = Context.getThreadContext().getConnectionResource().getConnection();
+                    verifyTable(con);
+                    try (PreparedStatement stmt = con.prepareStatement(SQLLOOKUP)) {
+                        stmt.setString(1, this.scope);
+                        stmt.setString(2, _session);
+                        stmt.setLong(3, System.currentTimeMillis());
+                        final List<Operation> found = read(stmt);
+                        ret = found.isEmpty() ? null : found.get(0);
+                    }
+                } finally {
+                    if (begun) {
+                        Context.rollback();
+                    }
+                }
+            } catch (final EFapsException | SQLException e) {
+                LOG.error("Could not look up the cluster session {}", _session, e);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Create the table via the eFaps database abstraction if it does not
+     * exist.
+     *
+     * @param _con the connection
+     * @throws SQLException on error
+     * @throws EFapsException on error
+     */
+    private synchronized void verifyTable(final Connection _con)
+        throws SQLException, EFapsException
+    {
+        if (!this.tableVerified) {
+            final AbstractDatabase<?> db = Context.getDbType();
+            if (!db.existsTable(_con, TABLE)) {
+                LOG.info("Creating table {} for the cluster sessions", TABLE);
+                db.createTable(_con, TABLE);
+                db.defineTableAutoIncrement(_con, TABLE);
+                db.addTableColumn(_con, TABLE, "SCOPE", ColumnType.STRING_SHORT, null, 128, 0);
+                db.addTableColumn(_con, TABLE, "SESSIONID", ColumnType.STRING_SHORT, null, 128, 0);
+                db.addTableColumn(_con, TABLE, "NODE", ColumnType.STRING_SHORT, null, 256, 0);
+                db.addTableColumn(_con, TABLE, "SSO", ColumnType.STRING_SHORT, null, 128, 0);
+                db.addTableColumn(_con, TABLE, "PRINCIPAL", ColumnType.STRING_SHORT, null, 256, 0);
+                db.addTableColumn(_con, TABLE, "EXPIRES", ColumnType.INTEGER, null, 0, 0);
+                db.addTableColumn(_con, TABLE, "MAPPED", ColumnType.INTEGER, null, 0, 0);
+                db.addTableColumn(_con, TABLE, "REMOVED", ColumnType.INTEGER, null, 0, 0);
+                db.addUniqueKey(_con, TABLE, TABLE + "_UK_SESSIONID", "SCOPE,SESSIONID");
+            }
+            this.tableVerified = true;
+        }
+    }
+
+    /**
+     * Write the operations. A mapping or removal is updated, or inserted if
+     * the session has no row yet.
+     *
+     * @param _con the connection
+     * @param _ops the operations
+     * @param _now the current time
+     * @throws SQLException on error
+     */
+    private void write(final Connection _con,
+                       final List<Operation> _ops,
+                       final long _now)
+        throws SQLException
+    {
+        try (PreparedStatement updateStmt = _con.prepareStatement(SQLUPDATE);
+             PreparedStatement insertStmt = _con.prepareStatement(SQLINSERT);
+             PreparedStatement removeStmt = _con.prepareStatement(SQLREMOVE);
+             PreparedStatement insertRemovedStmt = _con.prepareStatement(SQLINSERTREMOVED);
+             PreparedStatement clearStmt = _con.prepareStatement(SQLCLEAR)) {
+            for (final Operation op : _ops) {
+                switch (op.type) {
+                    case MAP:
+                        updateStmt.setString(1, op.sso);
+                        updateStmt.setString(2, op.principal);
+                        updateStmt.setString(3, this.node);
+                        updateStmt.setLong(4, _now + KEEPMAPPED);
+                        updateStmt.setLong(5, _now);
+                        updateStmt.setString(6, this.scope);
+                        updateStmt.setString(7, op.session);
+                        if (updateStmt.executeUpdate() == 0) {
+                            insertStmt.setString(1, this.scope);
+                            insertStmt.setString(2, op.session);
+                            insertStmt.setString(3, this.node);
+                            insertStmt.setString(4, op.sso);
+                            insertStmt.setString(5, op.principal);
+                            insertStmt.setLong(6, _now + KEEPMAPPED);
+                            insertStmt.setLong(7, _now);
+                            insertStmt.executeUpdate();
+                        }
+                        break;
+                    case REMOVE:
+                        removeStmt.setLong(1, _now);
+                        removeStmt.setString(2, this.scope);
+                        removeStmt.setString(3, op.session);
+                        if (removeStmt.executeUpdate() == 0) {
+                            insertRemovedStmt.setString(1, this.scope);
+                            insertRemovedStmt.setString(2, op.session);
+                            insertRemovedStmt.setString(3, this.node);
+                            insertRemovedStmt.setLong(4, _now);
+                            insertRemovedStmt.setLong(5, _now);
+                            insertRemovedStmt.setLong(6, _now);
+                            insertRemovedStmt.executeUpdate();
+                        }
+                        break;
+                    case CLEAR:
+                        clearStmt.setLong(1, _now);
+                        clearStmt.setString(2, this.scope);
+                        clearStmt.setString(3, this.node);
+                        clearStmt.executeUpdate();
+                        break;
+                    default:
+                        break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Read the sessions removed since the last poll.
+     *
+     * @param _con the connection
+     * @return the removed sessions
+     * @throws SQLException on error
+     */
+    private List<String> readRemoved(final Connection _con)
+        throws SQLException
+    {
+        final List<String> ret = new ArrayList<>();
+        try (PreparedStatement stmt = _con.prepareStatement(SQLREMOVED)) {
+            stmt.setString(1, this.scope);
+            stmt.setLong(2, this.lastPoll - OVERLAP);
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    ret.add(rs.getString(1));
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Read the sessions mapped since the last poll.
+     *
+     * @param _con the connection
+     * @param _now the current time
+     * @return the mappings
+     * @throws SQLException on error
+     */
+    private List<Operation> readMapped(final Connection _con,
+                                       final long _now)
+        throws SQLException
+    {
+        try (PreparedStatement stmt = _con.prepareStatement(SQLMAPPED)) {
+            stmt.setString(1, this.scope);
+            stmt.setLong(2, this.lastPoll - OVERLAP);
+            stmt.setLong(3, _now);
+            return read(stmt);
+        }
+    }
+
+    /**
+     * Read mappings.
+     *
+     * @param _stmt the statement selecting session id, sso and principal
+     * @return the mappings
+     * @throws SQLException on error
+     */
+    private List<Operation> read(final PreparedStatement _stmt)
+        throws SQLException
+    {
+        final List<Operation> ret = new ArrayList<>();
+        try (ResultSet rs = _stmt.executeQuery()) {
+            while (rs.next()) {
+                ret.add(new Operation(OperationType.MAP, rs.getString(1), rs.getString(2), rs.getString(3)));
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Delete rows that are not needed anymore.
+     *
+     * @param _con the connection
+     * @param _now the current time
+     * @throws SQLException on error
+     */
+    private void cleanup(final Connection _con,
+                         final long _now)
+        throws SQLException
+    {
+        try (PreparedStatement stmt = _con.prepareStatement(SQLCLEANUP)) {
+            stmt.setLong(1, _now - KEEPREMOVED);
+            stmt.setLong(2, _now);
+            stmt.executeUpdate();
+        }
+    }
+
+    /**
+     * Stop the background synchronization.
+     */
+    public void stop()
+    {
+        this.scheduler.shutdownNow();
+    }
+
+    /**
+     * Type of an operation.
+     */
+    private enum OperationType
+    {
+        /** A session was mapped. */
+        MAP,
+        /** A session was removed. */
+        REMOVE,
+        /** All sessions of this node were removed. */
+        CLEAR;
+    }
+
+    /**
+     * A queued operation.
+     */
+    private static final class Operation
+    {
+
+        /** The type. */
+        private final OperationType type;
+
+        /** The http session id. */
+        private final String session;
+
+        /** The Keycloak session id. */
+        private final String sso;
+
+        /** The principal. */
+        private final String principal;
+
+        /**
+         * Instantiates a new operation.
+         *
+         * @param _type the type
+         * @param _session the http session id
+         * @param _sso the Keycloak session id
+         * @param _principal the principal
+         */
+        private Operation(final OperationType _type,
+                          final String _session,
+                          final String _sso,
+                          final String _principal)
+        {
+            this.type = _type;
+            this.session = _session;
+            this.sso = _sso;
+            this.principal = _principal;
+        }
+    }
+}
@@ -0,0 +1,344 @@
+/*
+ * Copyright © 2003 - 2024 The eFaps Team (-)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.efaps.ui.filter;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Enumeration;
+import java.util.Locale;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpSession;
+
+import org.efaps.ui.filter.SavedRequestBuffer.SpilledBody;
+import org.keycloak.KeycloakPrincipal;
+import org.keycloak.KeycloakSecurityContext;
+import org.keycloak.adapters.AdapterUtils;
+import org.keycloak.adapters.KeycloakDeployment;
+import org.keycloak.adapters.OidcKeycloakAccount;
+import org.keycloak.adapters.RefreshableKeycloakSecurityContext;
+import org.keycloak.adapters.servlet.OIDCFilterSessionStore;
+import org.keycloak.adapters.servlet.OIDCServletHttpFacade;
+import org.keycloak.adapters.spi.KeycloakAccount;
+import org.keycloak.adapters.spi.SessionIdMapper;
+import org.keycloak.enums.TokenStore;
+import org.keycloak.common.util.MultivaluedHashMap;
+import org.keycloak.jose.jws.JWSInput;
+import org.keycloak.jose.jws.JWSInputException;
+import org.keycloak.representations.AccessToken;
+import org.keycloak.representations.IDToken;
+import org.keycloak.util.TokenUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Session store that refreshes the token of a session only once for
+ * concurrent requests of the same session and keeps the expiry of the
+ * session in an {@link IndexedSessionIdMapper} in line with the refresh
+ * token. The body of a saved request is buffered by a
+ * {@link SavedRequestBuffer}, so that large bodies do not stay in the heap
+ * until the authentication is done. If the deployment is configured with
+ * the token store "cookie", the tokens are additionally kept in
+ * {@link TokenCookies}, from which the account is restored into the
+ * session of a node that has not seen the session before.
+ */
+public class EFapsFilterSessionStore
+    extends OIDCFilterSessionStore
+{
+
+    /**
+     * Logger for this class.
+     */
+    private static final Logger LOG = LoggerFactory.getLogger(EFapsFilterSessionStore.class);
+
+    /** The token refresher. */
+    private final TokenRefresher tokenRefresher;
+
+    /** The session id mapper. */
+    private final SessionIdMapper sessionIdMapper;
+
+    /** The buffer for the body of a saved request. */
+    private final SavedRequestBuffer savedRequestBuffer;
+
+    /** The token cookies, null if no shared key is configured. */
+    private final TokenCookies tokenCookies;
+
+    /**
+     * Instantiates a new eFaps filter session store.
+     *
+     * @param _request the request
+     * @param _facade the facade
+     * @param _savedRequestBuffer the buffer for the body of a saved request
+     * @param _deployment the deployment
+     * @param _idMapper the id mapper
+     * @param _tokenRefresher the token refresher
+     * @param _tokenCookies the token cookies
+     */
+    public EFapsFilterSessionStore(final HttpServletRequest _request,
+                                   final OIDCServletHttpFacade _facade,
+                                   final SavedRequestBuffer _savedRequestBuffer,
+                                   final KeycloakDeployment _deployment,
+                                   final SessionIdMapper _idMapper,
+                                   final TokenRefresher _tokenRefresher,
+                                   final TokenCookies _tokenCookies)
+    {
+        super(_request, _facade, _savedRequestBuffer.getMemory(), _deployment, _idMapper);
+        this.savedRequestBuffer = _savedRequestBuffer;
+        this.tokenRefresher = _tokenRefresher;
+        this.sessionIdMapper = _idMapper;
+        this.tokenCookies = _tokenCookies;
+    }
+
+    /**
+     * Restore the account from the token cookies into the session, if the
+     * deployment keeps its tokens in cookies and the session has no account
+     * yet. The tokens are refreshed on restore, so that a session that was
+     * logged out at Keycloak is not restored.
+     */
+    public void restoreAccount()
+    {
+        final HttpSession session = request.getSession(false);
+        if (session != null) {
+            removeForeignAccount(session);
+        }
+        if (isCookieStore() && (session == null || session.getAttribute(KeycloakAccount.class.getName()) == null)) {
+            final String[] tokens = this.tokenCookies.read(request);
+            if (tokens != null) {
+                boolean restored = false;
+                try {
+                    final AccessToken token = new JWSInput(tokens[0]).readJsonContent(AccessToken.class);
+                    final IDToken idToken = tokens[1] == null ? null
+                                    : new JWSInput(tokens[1]).readJsonContent(IDToken.class);
+                    final RefreshableKeycloakSecurityContext securityContext = new RefreshableKeycloakSecurityContext(
+                                    deployment, this, tokens[0], token, tokens[1], idToken, tokens[2]);
+                    // the refresh callback saves the account into the session
+                    restored = securityContext.refreshExpiredToken(false);
+                    LOG.debug("Restored account from token cookie: {}", restored);
+                } catch (final JWSInputException e) {
+                    LOG.debug("Could not read the tokens of the cookie", e);
+                }
+                if (!restored) {
+                    this.tokenCookies.clear(request, facade.getResponse(), deployment);
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks if the tokens are kept in cookies.
+     *
+     * @return true, if cookie store
+     */
+    private boolean isCookieStore()
+    {
+        return this.tokenCookies != null && deployment.getTokenStore() == TokenStore.COOKIE;
+    }
+
+    /**
+     * Write the tokens to the cookies, if they are kept in cookies.
+     *
+     * @param _securityContext the security context
+     */
+    private void writeCookies(final RefreshableKeycloakSecurityContext _securityContext)
+    {
+        if (isCookieStore()) {
+            this.tokenCookies.write(request, facade.getResponse(), _securityContext);
+        }
+    }
+
+    @Override
+    public void logout()
+    {
+        super.logout();
+        if (isCookieStore()) {
+            this.tokenCookies.clear(request, facade.getResponse(), deployment);
+        }
+    }
+
+    @Override
+    public void saveRequest()
+    {
+        final HttpSession session = request.getSession(true);
+        session.setAttribute(REDIRECT_URI, facade.getRequest().getURI());
+        session.setAttribute(SAVED_METHOD, request.getMethod());
+        final MultivaluedHashMap<String, String> headers = new MultivaluedHashMap<>();
+        final Enumeration<String> names = request.getHeaderNames();
+        while (names.hasMoreElements()) {
+            final String name = names.nextElement();
+            final Enumeration<String> values = request.getHeaders(name);
+            while (values.hasMoreElements()) {
+                headers.add(name.toLowerCase(Locale.ENGLISH), values.nextElement());
+            }
+        }
+        session.setAttribute(SAVED_HEADERS, headers);
+        session.removeAttribute(SAVED_BODY);
+        session.removeAttribute(SavedRequestBuffer.SPILLEDBODY);
+        if (!"GET".equalsIgnoreCase(request.getMethod())) {
+            final Serializable body;
+            try {
+                body = this.savedRequestBuffer.read(request.getInputStream());
+            } catch (final IOException e) {
+                throw new IllegalStateException(e);
+            }
+            if (body instanceof SpilledBody) {
+                session.setAttribute(SavedRequestBuffer.SPILLEDBODY, body);
+            } else if (body != null) {
+                session.setAttribute(SAVED_BODY, body);
+            }
+        }
+    }
+
+    @Override
+    public HttpServletRequestWrapper buildWrapper(final HttpSession _session,
+                                                  final KeycloakAccount _account)
+    {
+        if (needRequestRestore) {
+            // the spilled body is only loaded for the replay of the request
+            final Object spilled = _session.getAttribute(SavedRequestBuffer.SPILLEDBODY);
+            if (spilled instanceof SpilledBody) {
+                try {
+                    _session.setAttribute(SAVED_BODY, ((SpilledBody) spilled).load());
+                } catch (final IOException e) {
+                    // replaying without the body would silently lose the data of the user
+                    LOG.error("Could not load the body of the saved request", e);
+                    clearSavedRequest(_session);
+                    throw new IllegalStateException("Could not replay the saved request", e);
+                }
+            }
+        }
+        return super.buildWrapper(_session, _account);
+    }
+
+    @Override
+    public void clearSavedRequest(final HttpSession _session)
+    {
+        super.clearSavedRequest(_session);
+        // unbinding deletes the file
+        _session.removeAttribute(SavedRequestBuffer.SPILLEDBODY);
+    }
+
+    @Override
+    public void checkCurrentToken()
+    {
+        final HttpSession session = request.getSession(false);
+        if (session != null) {
+            removeForeignAccount(session);
+        }
+        if (session == null) {
+            super.checkCurrentToken();
+        } else {
+            // the first request refreshes, the others wait for it and find
+            // the refreshed token without calling the token endpoint
+            this.tokenRefresher.coalesce(session.getId(), super::checkCurrentToken);
+        }
+    }
+
+    /**
+     * Remove the account of the session if it belongs to another realm than
+     * the deployment of the request. That is the case if tenants resolved
+     * by path share the session.
+     *
+     * @param _session the session
+     */
+    private void removeForeignAccount(final HttpSession _session)
+    {
+        final Object account = _session.getAttribute(KeycloakAccount.class.getName());
+        if (account instanceof OidcKeycloakAccount) {
+            final String realm = ((OidcKeycloakAccount) account).getKeycloakSecurityContext().getRealm();
+            if (realm != null && !realm.equals(deployment.getRealm())) {
+                LOG.debug("Removing account of realm {} for a request of realm {}", realm, deployment.getRealm());
+                _session.removeAttribute(KeycloakAccount.class.getName());
+                _session.removeAttribute(KeycloakSecurityContext.class.getName());
+            }
+        }
+    }
+
+    @Override
+    public void saveAccountInfo(final OidcKeycloakAccount _account)
+    {
+        super.saveAccountInfo(_account);
+        if (_account.getKeycloakSecurityContext() instanceof RefreshableKeycloakSecurityContext) {
+            final RefreshableKeycloakSecurityContext securityContext = (RefreshableKeycloakSecurityContext) _account
+                            .getKeycloakSecurityContext();
+            final HttpSession session = request.getSession(false);
+            if (session != null) {
+                extendSession(session, this.sessionIdMapper, securityContext.getRefreshToken());
+            }
+            writeCookies(securityContext);
+        }
+    }
+
+    @Override
+    public void refreshCallback(final RefreshableKeycloakSecurityContext _securityContext)
+    {
+        storeAccount(request.getSession(), deployment, this.sessionIdMapper, _securityContext);
+        writeCookies(_securityContext);
+    }
+
+    /**
+     * Store the account of a refreshed security context in a session: the
+     * roles are taken from the refreshed token, the session is mapped to
+     * the Keycloak session and its expiry extended to the refresh token.
+     * Used for the refresh of a request and for the refresh ahead in the
+     * background.
+     *
+     * @param _session the session
+     * @param _deployment the deployment
+     * @param _idMapper the session id mapper, may be null
+     * @param _securityContext the refreshed security context
+     */
+    static void storeAccount(final HttpSession _session,
+                             final KeycloakDeployment _deployment,
+                             final SessionIdMapper _idMapper,
+                             final RefreshableKeycloakSecurityContext _securityContext)
+    {
+        final String principalName = AdapterUtils.getPrincipalName(_deployment, _securityContext.getToken());
+        final SerializableKeycloakAccount account = new SerializableKeycloakAccount(
+                        AdapterUtils.getRolesFromSecurityContext(_securityContext),
+                        new KeycloakPrincipal<>(principalName, _securityContext), _securityContext);
+        _session.setAttribute(KeycloakAccount.class.getName(), account);
+        _session.setAttribute(KeycloakSecurityContext.class.getName(), _securityContext);
+        if (_idMapper != null) {
+            _idMapper.map(_securityContext.getToken().getSessionState(), principalName, _session.getId());
+        }
+        extendSession(_session, _idMapper, _securityContext.getRefreshToken());
+    }
+
+    /**
+     * Extend the expiry of the session in the mapper to the expiry of the
+     * refresh token.
+     *
+     * @param _session the session
+     * @param _idMapper the session id mapper, may be null
+     * @param _refreshToken the refresh token
+     */
+    private static void extendSession(final HttpSession _session,
+                                      final SessionIdMapper _idMapper,
+                                      final String _refreshToken)
+    {
+        if (_refreshToken != null && _idMapper instanceof IndexedSessionIdMapper) {
+            try {
+                final Long exp = TokenUtil.getRefreshToken(_refreshToken).getExp();
+                if (exp != null) {
+                    ((IndexedSessionIdMapper) _idMapper).extend(_session.getId(), exp * 1000L);
+                }
+            } catch (final JWSInputException e) {
+                LOG.debug("Could not read the refresh token", e);
+            }
+        }
+    }
+}
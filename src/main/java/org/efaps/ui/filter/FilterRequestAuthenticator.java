@@ -29,38 +29,66 @@ public class FilterRequestAuthenticator
     extends org.keycloak.adapters.servlet.FilterRequestAuthenticator
 {
 
+    private final RedirectUriResolver redirectUriResolver;
+
     public FilterRequestAuthenticator(final KeycloakDeployment deployment,
                                       final AdapterTokenStore tokenStore,
                                       final OIDCHttpFacade facade,
                                       final HttpServletRequest request,
                                       final int sslRedirectPort)
+    {
+        this(deployment, tokenStore, facade, request, sslRedirectPort, RedirectUriResolver.DEFAULT);
+    }
+
+    public FilterRequestAuthenticator(final KeycloakDeployment deployment,
+                                      final AdapterTokenStore tokenStore,
+                                      final OIDCHttpFacade facade,
+                                      final HttpServletRequest request,
+                                      final int sslRedirectPort,
+                                      final RedirectUriResolver redirectUriResolver)
     {
         super(deployment, tokenStore, facade, request, sslRedirectPort);
+        this.redirectUriResolver = redirectUriResolver;
     }
 
     @Override
     protected OAuthRequestAuthenticator createOAuthAuthenticator()
     {
-        return new StaticOAuthRequestAuthenticator(this, facade, deployment, sslRedirectPort, tokenStore);
+        return new StaticOAuthRequestAuthenticator(this, facade, deployment, sslRedirectPort, tokenStore,
+                        redirectUriResolver.resolve(request.getServerName()));
     }
 
     public static class StaticOAuthRequestAuthenticator
         extends OAuthRequestAuthenticator
     {
 
+        private final String redirectUri;
+
         public StaticOAuthRequestAuthenticator(final RequestAuthenticator requestAuthenticator,
                                                final HttpFacade facade,
                                                final KeycloakDeployment deployment,
                                                final int sslRedirectPort,
                                                final AdapterSessionStore tokenStore)
+        {
+            this(requestAuthenticator, facade, deployment, sslRedirectPort, tokenStore,
+                            RedirectUriResolver.DEFAULT.resolve(null));
+        }
+
+        public StaticOAuthRequestAuthenticator(final RequestAuthenticator requestAuthenticator,
+                                               final HttpFacade facade,
+                                               final KeycloakDeployment deployment,
+                                               final int sslRedirectPort,
+                                               final AdapterSessionStore tokenStore,
+                                               final String redirectUri)
         {
             super(requestAuthenticator, facade, deployment, sslRedirectPort, tokenStore);
+            this.redirectUri = redirectUri;
         }
 
         @Override
         protected String getRequestUrl()
         {
-            String redirect_uri = System.getenv("REDIRECT_URI");
+            String redirect_uri = this.redirectUri;
             if (redirect_uri == null) {
                 redirect_uri = super.getRequestUrl();
             }
@@ -0,0 +1,362 @@
+/*
+ * Copyright © 2003 - 2024 The eFaps Team (-)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.efaps.ui.filter;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.keycloak.adapters.spi.SessionIdMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * SessionIdMapper with concurrent indexes by http session id, Keycloak
+ * session id and principal. An entry expires if its session was not used
+ * within the idle time, or after the expiry of the refresh token if that
+ * is later. An expired entry is not found anymore. Expired entries are
+ * purged at most once per {@link #PURGEINTERVAL} by the next lookup or
+ * mapping, so the size of the mapper is bounded by the active sessions.
+ */
+public class IndexedSessionIdMapper
+    implements SessionIdMapper
+{
+
+    /** Init parameter for the idle time of an entry in minutes. */
+    public static final String IDLE = "org.efaps.keycloak.sessionIdle";
+
+    /** Default idle time in minutes. */
+    private static final int DEFAULTIDLE = 60;
+
+    /** Interval in which expired entries are purged. */
+    private static final long PURGEINTERVAL = TimeUnit.MINUTES.toMillis(1);
+
+    /**
+     * Logger for this class.
+     */
+    private static final Logger LOG = LoggerFactory.getLogger(IndexedSessionIdMapper.class);
+
+    /** Entries by http session id. */
+    private final Map<String, Entry> bySession = new ConcurrentHashMap<>();
+
+    /** Http session id by Keycloak session id. */
+    private final Map<String, String> bySso = new ConcurrentHashMap<>();
+
+    /** Http session ids by principal. */
+    private final Map<String, Set<String>> byPrincipal = new ConcurrentHashMap<>();
+
+    /** Time of the next purge. */
+    private final AtomicLong nextPurge = new AtomicLong(System.currentTimeMillis() + PURGEINTERVAL);
+
+    /** Idle time in milliseconds. */
+    private final long idle;
+
+    /**
+     * Instantiates a new indexed session id mapper.
+     *
+     * @param _idle idle time in minutes, null for the default
+     */
+    public IndexedSessionIdMapper(final String _idle)
+    {
+        this.idle = TimeUnit.MINUTES.toMillis(_idle == null ? DEFAULTIDLE : Integer.parseInt(_idle.trim()));
+    }
+
+    @Override
+    public boolean hasSession(final String _id)
+    {
+        return hasSession(_id, System.currentTimeMillis());
+    }
+
+    /**
+     * Checks if a session is mapped and not expired, and extends its
+     * expiry by the idle time.
+     *
+     * @param _id the http session id
+     * @param _now the current time
+     * @return true, if mapped
+     */
+    boolean hasSession(final String _id,
+                       final long _now)
+    {
+        purgeIfDue(_now);
+        Entry entry = this.bySession.get(_id);
+        if (entry != null) {
+            if (entry.expires < _now) {
+                expire(_id, entry);
+                entry = null;
+            } else {
+                entry.extend(_now + this.idle);
+            }
+        }
+        return entry != null;
+    }
+
+    @Override
+    public void clear()
+    {
+        this.bySession.clear();
+        this.bySso.clear();
+        this.byPrincipal.clear();
+    }
+
+    @Override
+    public Set<String> getUserSessions(final String _principal)
+    {
+        final Set<String> sessions = this.byPrincipal.get(_principal);
+        return sessions == null ? Collections.emptySet() : Set.copyOf(sessions);
+    }
+
+    @Override
+    public String getSessionFromSSO(final String _sso)
+    {
+        return this.bySso.get(_sso);
+    }
+
+    @Override
+    public void map(final String _sso,
+                    final String _principal,
+                    final String _session)
+    {
+        final Entry entry = new Entry(_sso, _principal, System.currentTimeMillis() + this.idle);
+        final Entry old = this.bySession.put(_session, entry);
+        if (old != null) {
+            unindex(_session, old);
+        }
+        if (_sso != null) {
+            this.bySso.put(_sso, _session);
+        }
+        if (_principal != null) {
+            // create and add within one compute, a concurrently emptied set is removed within compute too
+            this.byPrincipal.compute(_principal, (_key, _sessions) -> {
+                final Set<String> ret = _sessions == null ? ConcurrentHashMap.newKeySet() : _sessions;
+                ret.add(_session);
+                return ret;
+            });
+        }
+        purgeIfDue(System.currentTimeMillis());
+    }
+
+    @Override
+    public void removeSession(final String _session)
+    {
+        final Entry entry = this.bySession.remove(_session);
+        if (entry != null) {
+            unindex(_session, entry);
+        }
+    }
+
+    /**
+     * Remove several sessions. The index by principal is updated once per
+     * principal instead of once per session.
+     *
+     * @param _sessions the http session ids
+     */
+    public void removeSessions(final Collection<String> _sessions)
+    {
+        final Map<String, Set<String>> principals = new HashMap<>();
+        for (final String session : _sessions) {
+            final Entry entry = this.bySession.remove(session);
+            if (entry != null) {
+                if (entry.sso != null) {
+                    this.bySso.remove(entry.sso, session);
+                }
+                if (entry.principal != null) {
+                    principals.computeIfAbsent(entry.principal, _key -> new HashSet<>()).add(session);
+                }
+            }
+        }
+        for (final Map.Entry<String, Set<String>> principal : principals.entrySet()) {
+            this.byPrincipal.computeIfPresent(principal.getKey(), (_key, _sessions) -> {
+                _sessions.removeAll(principal.getValue());
+                return _sessions.isEmpty() ? null : _sessions;
+            });
+        }
+    }
+
+    /**
+     * Remove all sessions of a principal.
+     *
+     * @param _principal the principal
+     * @return the removed http session ids
+     */
+    public Set<String> removeUserSessions(final String _principal)
+    {
+        final Set<String> sessions = this.byPrincipal.remove(_principal);
+        final Set<String> ret = sessions == null ? Collections.emptySet() : Set.copyOf(sessions);
+        removeSessions(ret);
+        return ret;
+    }
+
+    /**
+     * Extend the expiry of a session, e.g. to the expiry of its refresh
+     * token.
+     *
+     * @param _session the http session id
+     * @param _expires the expiry in milliseconds
+     */
+    public void extend(final String _session,
+                       final long _expires)
+    {
+        final Entry entry = this.bySession.get(_session);
+        if (entry != null) {
+            entry.extend(_expires);
+        }
+    }
+
+    /**
+     * Checks if a session is mapped locally, without extending or expiring
+     * it.
+     *
+     * @param _session the http session id
+     * @return true, if mapped
+     */
+    protected boolean isMapped(final String _session)
+    {
+        return this.bySession.containsKey(_session);
+    }
+
+    /**
+     * Gets the number of mapped sessions.
+     *
+     * @return the size
+     */
+    public int size()
+    {
+        return this.bySession.size();
+    }
+
+    /**
+     * Remove all expired entries.
+     */
+    public void purge()
+    {
+        purge(System.currentTimeMillis());
+    }
+
+    /**
+     * Remove all entries expired at the given time.
+     *
+     * @param _now the current time
+     */
+    void purge(final long _now)
+    {
+        final int before = this.bySession.size();
+        for (final Map.Entry<String, Entry> mapEntry : this.bySession.entrySet()) {
+            if (mapEntry.getValue().expires < _now) {
+                expire(mapEntry.getKey(), mapEntry.getValue());
+            }
+        }
+        LOG.debug("Purged {} expired sessions", before - this.bySession.size());
+    }
+
+    /**
+     * Purge the expired entries if the purge interval passed. Only one of
+     * concurrent callers purges.
+     *
+     * @param _now the current time
+     */
+    private void purgeIfDue(final long _now)
+    {
+        final long next = this.nextPurge.get();
+        if (_now >= next && this.nextPurge.compareAndSet(next, _now + PURGEINTERVAL)) {
+            purge(_now);
+        }
+    }
+
+    /**
+     * Remove an expired entry, unless it was replaced meanwhile.
+     *
+     * @param _session the http session id
+     * @param _entry the entry
+     */
+    private void expire(final String _session,
+                        final Entry _entry)
+    {
+        if (this.bySession.remove(_session, _entry)) {
+            unindex(_session, _entry);
+        }
+    }
+
+    /**
+     * Remove a session from the indexes.
+     *
+     * @param _session the http session id
+     * @param _entry the entry
+     */
+    private void unindex(final String _session,
+                         final Entry _entry)
+    {
+        if (_entry.sso != null) {
+            this.bySso.remove(_entry.sso, _session);
+        }
+        if (_entry.principal != null) {
+            this.byPrincipal.computeIfPresent(_entry.principal, (_key, _sessions) -> {
+                _sessions.remove(_session);
+                return _sessions.isEmpty() ? null : _sessions;
+            });
+        }
+    }
+
+    /**
+     * A mapped session.
+     */
+    private static final class Entry
+    {
+
+        /** The Keycloak session id. */
+        private final String sso;
+
+        /** The principal. */
+        private final String principal;
+
+        /** Expiry in milliseconds. */
+        private volatile long expires;
+
+        /**
+         * Instantiates a new entry.
+         *
+         * @param _sso the Keycloak session id
+         * @param _principal the principal
+         * @param _expires the expiry
+         */
+        private Entry(final String _sso,
+                      final String _principal,
+                      final long _expires)
+        {
+            this.sso = _sso;
+            this.principal = _principal;
+            this.expires = _expires;
+        }
+
+        /**
+         * Extend the expiry.
+         *
+         * @param _expires the expiry
+         */
+        private void extend(final long _expires)
+        {
+            if (_expires > this.expires) {
+                this.expires = _expires;
+            }
+        }
+    }
+}
@@ -26,18 +26,32 @@ import javax.servlet.ServletResponse;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletRequestWrapper;
 import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
 
 import org.apache.commons.lang3.BooleanUtils;
-import org.apache.commons.text.StringEscapeUtils;
+import org.efaps.ui.AuditLog;
+import org.efaps.ui.AuthMetrics;
+import org.efaps.ui.AuthMetrics.Outcome;
+import org.efaps.ui.AuthMetrics.Phase;
+import org.efaps.ui.ClaimIndex;
+import org.efaps.ui.PersonProvisioning;
+import org.efaps.ui.SSOConfiguration;
+import org.efaps.ui.SyncExecutor;
+import org.keycloak.KeycloakSecurityContext;
+import org.keycloak.adapters.AdapterDeploymentContext;
 import org.keycloak.adapters.AuthenticatedActionsHandler;
 import org.keycloak.adapters.KeycloakDeployment;
 import org.keycloak.adapters.PreAuthActionsHandler;
+import org.keycloak.adapters.RefreshableKeycloakSecurityContext;
+import org.keycloak.adapters.servlet.FilterSessionStore;
 import org.keycloak.adapters.servlet.KeycloakOIDCFilter;
-import org.keycloak.adapters.servlet.OIDCFilterSessionStore;
+import org.keycloak.adapters.servlet.OIDCFilterSessionStore.SerializableKeycloakAccount;
 import org.keycloak.adapters.servlet.OIDCServletHttpFacade;
 import org.keycloak.adapters.spi.AuthChallenge;
 import org.keycloak.adapters.spi.AuthOutcome;
+import org.keycloak.adapters.spi.KeycloakAccount;
 import org.keycloak.adapters.spi.UserSessionManagement;
+import org.keycloak.enums.TokenStore;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -54,11 +68,138 @@ public class KeycloakFilter
      */
     private static final Logger LOG = LoggerFactory.getLogger(KeycloakFilter.class);
 
+    /** Init parameter for the port the OAuth redirect uses if SSL is required. */
+    public static final String SSLPORT = "org.efaps.keycloak.sslPort";
+
+    /** Default port used if SSL is required. */
+    private static final int DEFAULTSSLPORT = 8443;
+
+    /** Prefix of the authorization header for bearer tokens. */
+    private static final String BEARER = "Bearer ";
+
+    /** Matcher for the requests that bypass the authentication. */
+    private BypassMatcher bypassMatcher;
+
+    /** Resolver for the redirect uri. */
+    private RedirectUriResolver redirectUriResolver;
+
+    /** Registers the node once per deployment. */
+    private NodeRegistrar nodeRegistrar;
+
+    /** Coordinates the refresh of the tokens. */
+    private TokenRefresher tokenRefresher;
+
+    /** Buffer for the body of saved requests. */
+    private SavedRequestBuffer savedRequestBuffer;
+
+    /** Cookies for the tokens of deployments with the token store "cookie", null without a shared key. */
+    private TokenCookies tokenCookies;
+
+    /** Resolver of the tenants, null if a single deployment is used. */
+    private TenantConfigResolver tenantResolver;
+
+    /** Port the OAuth redirect uses if SSL is required. */
+    private int sslPort;
+
+    /** Cache for the decisions of Authorization Services, null if no path is protected. */
+    private AuthzDecisionCache authzDecisionCache;
+
+    /** Cache for verified bearer tokens, null if bearer mode is not active. */
+    private BearerTokenCache bearerTokenCache;
+
     @Override
     public void init(final FilterConfig _filterConfig)
         throws ServletException
     {
         super.init(_filterConfig);
+        final String tenantDirectory = _filterConfig.getInitParameter(TenantConfigResolver.DIRECTORY);
+        if (tenantDirectory != null) {
+            this.tenantResolver = new TenantConfigResolver(tenantDirectory,
+                            _filterConfig.getInitParameter(TenantConfigResolver.RESOLVEBY),
+                            _filterConfig.getInitParameter(TenantConfigResolver.CHECKINTERVAL));
+            deploymentContext = new AdapterDeploymentContext(this.tenantResolver);
+        }
+        final String sslPortParam = _filterConfig.getInitParameter(SSLPORT);
+        this.sslPort = sslPortParam == null ? DEFAULTSSLPORT : Integer.parseInt(sslPortParam.trim());
+        this.bypassMatcher = new BypassMatcher(_filterConfig.getInitParameter(BypassMatcher.PREFIXES),
+                        _filterConfig.getInitParameter(BypassMatcher.EXTENSIONS));
+        this.redirectUriResolver = RedirectUriResolver.of(_filterConfig);
+        this.nodeRegistrar = new NodeRegistrar(nodesRegistrationManagement);
+        if (BooleanUtils.toBoolean(_filterConfig.getInitParameter(ClusterSessionIdMapper.ACTIVATE))) {
+            final String scope = _filterConfig.getInitParameter(ClusterSessionIdMapper.SCOPE);
+            idMapper = new ClusterSessionIdMapper(_filterConfig.getInitParameter(IndexedSessionIdMapper.IDLE),
+                            _filterConfig.getInitParameter(ClusterSessionIdMapper.POLL),
+                            scope == null ? _filterConfig.getServletContext().getContextPath() : scope);
+        } else {
+            idMapper = new IndexedSessionIdMapper(_filterConfig.getInitParameter(IndexedSessionIdMapper.IDLE));
+        }
+        this.tokenRefresher = new TokenRefresher(_filterConfig.getInitParameter(TokenRefresher.REFRESHAHEAD),
+                        idMapper);
+        this.savedRequestBuffer = new SavedRequestBuffer(_filterConfig.getInitParameter(SavedRequestBuffer.MEMORY),
+                        _filterConfig.getInitParameter(SavedRequestBuffer.MAXBODY),
+                        _filterConfig.getInitParameter(SavedRequestBuffer.DIRECTORY));
+        this.tokenCookies = TokenCookies.of(_filterConfig.getInitParameter(TokenCookies.KEY),
+                        _filterConfig.getInitParameter(TokenCookies.SECURE),
+                        _filterConfig.getInitParameter(TokenCookies.SAMESITE));
+        final String authzPaths = _filterConfig.getInitParameter(AuthzDecisionCache.PATHS);
+        if (authzPaths != null) {
+            this.authzDecisionCache = new AuthzDecisionCache(authzPaths,
+                            _filterConfig.getInitParameter(AuthzDecisionCache.MAXTTL),
+                            _filterConfig.getInitParameter(AuthzDecisionCache.MAXENTRIES));
+        }
+        if (BooleanUtils.toBoolean(_filterConfig.getInitParameter(BearerTokenCache.ACTIVATE))) {
+            this.bearerTokenCache = new BearerTokenCache(_filterConfig.getInitParameter(
+                            BearerTokenCache.MAXENTRIES));
+        }
+        prefetchRealmKeys();
+        AuthMetrics.register();
+        PersonProvisioning.register();
+    }
+
+    /**
+     * Prefetch the keys of the realm, so that the first requests do not
+     * have to wait for the JWKS endpoint. Only possible if the deployment
+     * can be resolved without a request, else it is done on the first
+     * request.
+     */
+    protected void prefetchRealmKeys()
+    {
+        try {
+            final KeycloakDeployment deployment = deploymentContext.resolveDeployment(null);
+            if (deployment != null && deployment.isConfigured()) {
+                RealmKeyLocator.install(deployment);
+            }
+        } catch (final RuntimeException e) {
+            KeycloakFilter.LOG.debug("Deployment depends on the request, keys are fetched on first request");
+        }
+    }
+
+    @Override
+    public void destroy()
+    {
+        if (this.nodeRegistrar != null) {
+            this.nodeRegistrar.stop();
+        }
+        if (this.tokenRefresher != null) {
+            this.tokenRefresher.stop();
+        }
+        if (idMapper instanceof ClusterSessionIdMapper) {
+            ((ClusterSessionIdMapper) idMapper).stop();
+        }
+        if (this.savedRequestBuffer != null) {
+            this.savedRequestBuffer.stop();
+        }
+        if (this.authzDecisionCache != null) {
+            this.authzDecisionCache.stop();
+        }
+        RealmKeyLocator.stop();
+        SSOConfiguration.stop();
+        AuditLog.stop();
+        SyncExecutor.get().shutdown();
+        ClaimIndex.stop();
+        AuthMetrics.unregister();
+        PersonProvisioning.unregister();
+        super.destroy();
     }
 
     @SuppressWarnings("checkstyle:returncount")
@@ -69,12 +210,54 @@ public class KeycloakFilter
         KeycloakFilter.LOG.debug("Keycloak OIDC Filter");
         final HttpServletRequest request = (HttpServletRequest) _req;
         final HttpServletResponse response = (HttpServletResponse) _res;
+        final AuthMetrics metrics = AuthMetrics.get();
+
+        if (this.bypassMatcher.matches(request)) {
+            KeycloakFilter.LOG.debug("Bypassing: {}", request.getRequestURI());
+            metrics.count(Outcome.BYPASS);
+            _chain.doFilter(_req, _res);
+            return;
+        }
+
+        final long start = System.nanoTime();
+        if (this.bearerTokenCache != null) {
+            final String authorization = request.getHeader("Authorization");
+            if (authorization != null && authorization.regionMatches(true, 0, BEARER, 0, BEARER.length())) {
+                doFilterBearer(request, response, _chain, authorization.substring(BEARER.length()).trim(), start);
+                return;
+            }
+        }
+
+        final SerializableKeycloakAccount activeAccount = getActiveAccount(request);
+        if (activeAccount != null) {
+            KeycloakFilter.LOG.debug("AUTHENTICATED via session");
+            this.tokenRefresher.refreshAhead(request.getSession(false), activeAccount);
+            if (this.tokenCookies != null
+                            && activeAccount.getKeycloakSecurityContext().getDeployment()
+                                            .getTokenStore() == TokenStore.COOKIE) {
+                // a token refreshed ahead in the background is written with this response
+                this.tokenCookies.write(request, new OIDCServletHttpFacade(request, response).getResponse(),
+                                activeAccount.getKeycloakSecurityContext());
+            }
+            if (!isPermitted(request, response, activeAccount.getKeycloakSecurityContext().getDeployment(),
+                            activeAccount.getKeycloakSecurityContext())) {
+                metrics.record(Phase.FILTER, start);
+                return;
+            }
+            metrics.count(Outcome.SESSION);
+            chain(_chain, new AccountRequestWrapper(request, activeAccount,
+                            activeAccount.getKeycloakSecurityContext()), _res, metrics.record(Phase.FILTER, start));
+            return;
+        }
 
         final OIDCServletHttpFacade facade = new OIDCServletHttpFacade(request, response);
         final KeycloakDeployment deployment = deploymentContext.resolveDeployment(facade);
+        long time = metrics.record(Phase.FILTER_DEPLOYMENT, start);
         if (deployment == null || !deployment.isConfigured()) {
             response.sendError(403);
             KeycloakFilter.LOG.error("deployment not configured");
+            metrics.count(Outcome.FORBIDDEN);
+            metrics.record(Phase.FILTER, start);
             return;
         }
 
@@ -92,37 +275,58 @@ public class KeycloakFilter
             @Override
             public void logoutHttpSessions(final List<String> _ids)
             {
-                KeycloakFilter.LOG.debug("**************** logoutHttpSessions");
-                for (final String id : _ids) {
-                    KeycloakFilter.LOG.debug("removed idMapper: " + id);
-                    KeycloakFilter.this.idMapper.removeSession(id);
+                KeycloakFilter.LOG.debug("logoutHttpSessions: {}", _ids);
+                if (KeycloakFilter.this.idMapper instanceof IndexedSessionIdMapper) {
+                    ((IndexedSessionIdMapper) KeycloakFilter.this.idMapper).removeSessions(_ids);
+                } else {
+                    for (final String id : _ids) {
+                        KeycloakFilter.this.idMapper.removeSession(id);
+                    }
                 }
             }
         }, deploymentContext, facade);
 
-        if (preActions.handleRequest()) {
+        final boolean preHandled = preActions.handleRequest();
+        time = metrics.record(Phase.FILTER_PREAUTH, time);
+        if (preHandled) {
+            metrics.count(Outcome.PREAUTH);
+            metrics.record(Phase.FILTER, start);
             return;
         }
 
-        nodesRegistrationManagement.tryRegister(deployment);
-        final OIDCFilterSessionStore tokenStore = new OIDCFilterSessionStore(request, facade, 100000, deployment,
-                        idMapper);
+        this.nodeRegistrar.register(deployment);
+        RealmKeyLocator.install(deployment);
+        final EFapsFilterSessionStore tokenStore = new EFapsFilterSessionStore(request, facade,
+                        this.savedRequestBuffer, deployment, idMapper, this.tokenRefresher, this.tokenCookies);
+        tokenStore.restoreAccount();
         tokenStore.checkCurrentToken();
+        time = metrics.record(Phase.FILTER_CHECKTOKEN, time);
 
         final FilterRequestAuthenticator authenticator = new FilterRequestAuthenticator(deployment, tokenStore, facade,
-                        request, 8443);
+                        request, this.sslPort, this.redirectUriResolver);
         final AuthOutcome outcome = authenticator.authenticate();
+        time = metrics.record(Phase.FILTER_AUTHENTICATE, time);
         if (outcome == AuthOutcome.AUTHENTICATED) {
             KeycloakFilter.LOG.debug("AUTHENTICATED");
             if (facade.isEnded()) {
+                metrics.count(Outcome.AUTHENTICATED);
+                metrics.record(Phase.FILTER, start);
                 return;
             }
             final AuthenticatedActionsHandler actions = new AuthenticatedActionsHandler(deployment, facade);
-            if (actions.handledRequest()) {
+            final boolean handled = actions.handledRequest();
+            metrics.record(Phase.FILTER_ACTIONS, time);
+            if (handled) {
+                metrics.count(Outcome.ACTIONS);
+                metrics.record(Phase.FILTER, start);
+                return;
+            } else if (!isPermitted(request, response, deployment, facade.getSecurityContext())) {
+                metrics.record(Phase.FILTER, start);
                 return;
             } else {
+                metrics.count(Outcome.AUTHENTICATED);
                 final HttpServletRequestWrapper wrapper = tokenStore.buildWrapper();
-                _chain.doFilter(wrapper, _res);
+                chain(_chain, wrapper, _res, metrics.record(Phase.FILTER, start));
                 return;
             }
         }
@@ -130,42 +334,160 @@ public class KeycloakFilter
             KeycloakFilter.LOG.debug("Evaluating Query String");
             final boolean ajax = BooleanUtils.toBoolean(request.getHeader("Wicket-Ajax")) || BooleanUtils
                             .toBoolean(request.getParameter("wicket-ajax"));
-
-            final String uri = request.getScheme() + "://" + request.getServerName() + ":" + request.getServerPort()
-                            + request.getContextPath();
-            final StringBuilder html = new StringBuilder();
-            if (ajax) {
-                html.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>")
-                    .append("<ajax-response><evaluate>")
-                    .append("\n/*<![CDATA[*/\n")
-                    .append("  top.location = \"").append(StringEscapeUtils.escapeEcmaScript(uri)).append("\";")
-                    .append("\n/*]]>*/\n")
-                    .append("</evaluate></ajax-response>");
-                KeycloakFilter.LOG.debug("Responding Ajax: {}", html);
-            } else {
-                html.append("<html> <head>")
-                            .append("<script type=\"text/javascript\" >")
-                            .append("function test4top() {\n")
-                            .append("  if(top!=self) {\n")
-                            .append("    top.location = \"").append(StringEscapeUtils.escapeEcmaScript(uri))
-                                .append("\";")
-                            .append("  }\n")
-                            .append("}\n")
-                            .append("</script>\n</head>")
-                            .append("<body  onload=\"test4top()\"></body>")
-                            .append("</html> ");
-                KeycloakFilter.LOG.debug("Responding html: {}", html);
-            }
-            response.getOutputStream().print(html.toString());
+            KeycloakFilter.LOG.debug("Responding top location, ajax: {}", ajax);
+            TopLocationResponses.write(request, response, ajax);
+            metrics.count(Outcome.REDIRECT_HTML);
+            metrics.record(Phase.FILTER, start);
             return;
         } else {
             final AuthChallenge challenge = authenticator.getChallenge();
             if (challenge != null) {
                 KeycloakFilter.LOG.debug("challenge");
                 challenge.challenge(facade);
+                metrics.count(Outcome.CHALLENGE);
+                metrics.record(Phase.FILTER, start);
                 return;
             }
         }
         response.sendError(403);
+        metrics.count(Outcome.FORBIDDEN);
+        metrics.record(Phase.FILTER, start);
+    }
+
+    /**
+     * Check the permission for the request against Authorization Services,
+     * if its path is protected. A denied request is answered with 403.
+     *
+     * @param _request the request
+     * @param _response the response
+     * @param _deployment the deployment
+     * @param _securityContext the security context of the user
+     * @return true, if the request may pass
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    private boolean isPermitted(final HttpServletRequest _request,
+                                final HttpServletResponse _response,
+                                final KeycloakDeployment _deployment,
+                                final KeycloakSecurityContext _securityContext)
+        throws IOException
+    {
+        boolean ret = true;
+        if (this.authzDecisionCache != null) {
+            final long start = System.nanoTime();
+            ret = this.authzDecisionCache.isGranted(_request, _deployment, _securityContext);
+            AuthMetrics.get().record(Phase.FILTER_AUTHZ, start);
+            if (!ret) {
+                KeycloakFilter.LOG.debug("Permission denied for {}", _request.getRequestURI());
+                _response.sendError(403);
+                AuthMetrics.get().count(Outcome.AUTHZ_DENIED);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Pass the request on to the chain and record the time spent in it.
+     *
+     * @param _chain the chain
+     * @param _request the request
+     * @param _response the response
+     * @param _start the start as given by {@link System#nanoTime()}
+     * @throws IOException Signals that an I/O exception has occurred.
+     * @throws ServletException the servlet exception
+     */
+    private void chain(final FilterChain _chain,
+                       final ServletRequest _request,
+                       final ServletResponse _response,
+                       final long _start)
+        throws IOException, ServletException
+    {
+        try {
+            _chain.doFilter(_request, _response);
+        } finally {
+            AuthMetrics.get().record(Phase.FILTER_CHAIN, _start);
+        }
+    }
+
+    /**
+     * Gets the account of the session if the request can skip the adapter
+     * pipeline. That is the case if the session belongs to a known account
+     * whose token is still active, no saved request must be restored and
+     * no action of the AuthenticatedActionsHandler (CORS, policy
+     * enforcement) applies. With tenants the account must belong to the
+     * realm of the tenant of the request.
+     *
+     * @param _request the request
+     * @return the account, <code>null</code> if the full pipeline must run
+     */
+    protected SerializableKeycloakAccount getActiveAccount(final HttpServletRequest _request)
+    {
+        SerializableKeycloakAccount ret = null;
+        final HttpSession session = _request.getSession(false);
+        if (session != null && session.getAttribute(FilterSessionStore.REDIRECT_URI) == null) {
+            final Object account = session.getAttribute(KeycloakAccount.class.getName());
+            if (account instanceof SerializableKeycloakAccount) {
+                final RefreshableKeycloakSecurityContext securityContext = ((SerializableKeycloakAccount) account)
+                                .getKeycloakSecurityContext();
+                final KeycloakDeployment deployment = securityContext == null ? null
+                                : securityContext.getDeployment();
+                if (deployment != null && securityContext.isActive() && !deployment.isAlwaysRefreshToken()
+                                && !deployment.isCors() && deployment.getPolicyEnforcer() == null
+                                && (idMapper == null || idMapper.hasSession(session.getId()))
+                                && (this.tenantResolver == null || deployment.getRealm().equals(
+                                                this.tenantResolver.resolve(_request).getRealm()))) {
+                    ret = (SerializableKeycloakAccount) account;
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Stateless authentication of a request carrying a bearer token. No
+     * HttpSession is created.
+     *
+     * @param _request the request
+     * @param _response the response
+     * @param _chain the chain
+     * @param _tokenString the token string
+     * @param _start the start of the filter as given by {@link System#nanoTime()}
+     * @throws IOException Signals that an I/O exception has occurred.
+     * @throws ServletException the servlet exception
+     */
+    protected void doFilterBearer(final HttpServletRequest _request,
+                                  final HttpServletResponse _response,
+                                  final FilterChain _chain,
+                                  final String _tokenString,
+                                  final long _start)
+        throws IOException, ServletException
+    {
+        final AuthMetrics metrics = AuthMetrics.get();
+        final OIDCServletHttpFacade facade = new OIDCServletHttpFacade(_request, _response);
+        final KeycloakDeployment deployment = deploymentContext.resolveDeployment(facade);
+        metrics.record(Phase.FILTER_DEPLOYMENT, _start);
+        if (deployment == null || !deployment.isConfigured()) {
+            _response.sendError(403);
+            KeycloakFilter.LOG.error("deployment not configured");
+            metrics.count(Outcome.FORBIDDEN);
+            metrics.record(Phase.FILTER, _start);
+            return;
+        }
+        RealmKeyLocator.install(deployment);
+        final SerializableKeycloakAccount account = this.bearerTokenCache.getAccount(deployment, _tokenString);
+        if (account == null) {
+            KeycloakFilter.LOG.debug("Bearer token rejected");
+            _response.setHeader("WWW-Authenticate", "Bearer realm=\"" + deployment.getRealm()
+                            + "\", error=\"invalid_token\"");
+            _response.sendError(401);
+            metrics.count(Outcome.BEARER_REJECTED);
+            metrics.record(Phase.FILTER, _start);
+        } else if (isPermitted(_request, _response, deployment, account.getKeycloakSecurityContext())) {
+            KeycloakFilter.LOG.debug("AUTHENTICATED via bearer token");
+            metrics.count(Outcome.BEARER);
+            chain(_chain, new AccountRequestWrapper(_request, account, account.getKeycloakSecurityContext()),
+                            _response, metrics.record(Phase.FILTER, _start));
+        } else {
+            metrics.record(Phase.FILTER, _start);
+        }
     }
 }
@@ -0,0 +1,200 @@
+/*
+ * Copyright © 2003 - 2024 The eFaps Team (-)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.efaps.ui.filter;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.keycloak.adapters.KeycloakDeployment;
+import org.keycloak.adapters.NodesRegistrationManagement;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Registers the node for a deployment once and afterwards on a schedule,
+ * instead of calling {@link NodesRegistrationManagement#tryRegister} on
+ * every request. The scheduled calls also retry a failed registration.
+ * For a known deployment the check per request is a volatile read.
+ * Deployments are identified by realm, resource and auth server URL, so
+ * that a deployment that is rebuilt, e.g. after its configuration
+ * changed, replaces the registration of its predecessor and the scheduled
+ * calls of the predecessor are cancelled.
+ */
+public class NodeRegistrar
+{
+
+    /** Interval for the retry if no period is configured, in seconds. */
+    private static final int RETRYPERIOD = 60;
+
+    /**
+     * Logger for this class.
+     */
+    private static final Logger LOG = LoggerFactory.getLogger(NodeRegistrar.class);
+
+    /** The nodes registration management. */
+    private final NodesRegistrationManagement management;
+
+    /** The registrations by key of the deployment. */
+    private final Map<String, Registration> registrations = new ConcurrentHashMap<>();
+
+    /** The last handled deployment. */
+    private volatile KeycloakDeployment last;
+
+    /** The scheduler. */
+    private ScheduledThreadPoolExecutor scheduler;
+
+    /** Stopped, no registration is scheduled any more. */
+    private boolean stopped;
+
+    /**
+     * Instantiates a new node registrar.
+     *
+     * @param _management the nodes registration management
+     */
+    public NodeRegistrar(final NodesRegistrationManagement _management)
+    {
+        this.management = _management;
+    }
+
+    /**
+     * Register the node for the deployment if not done yet.
+     *
+     * @param _deployment the deployment
+     */
+    public void register(final KeycloakDeployment _deployment)
+    {
+        if (this.last != _deployment) {
+            final String key = getKey(_deployment);
+            final Registration current = this.registrations.get(key);
+            if (current == null || current.deployment != _deployment) {
+                replace(key, _deployment);
+            }
+            this.last = _deployment;
+        }
+    }
+
+    /**
+     * Register a deployment, replacing the registration of a former
+     * deployment with the same key.
+     *
+     * @param _key the key
+     * @param _deployment the deployment
+     */
+    private synchronized void replace(final String _key,
+                                      final KeycloakDeployment _deployment)
+    {
+        final Registration current = this.registrations.get(_key);
+        if (!this.stopped && (current == null || current.deployment != _deployment)) {
+            if (current != null && current.task != null) {
+                LOG.debug("Deployment {} was replaced, cancelling its registration", _key);
+                current.task.cancel(false);
+            }
+            ScheduledFuture<?> task = null;
+            if (_deployment.isRegisterNodeAtStartup() || _deployment.getRegisterNodePeriod() > 0) {
+                LOG.debug("Registering node for {}", _deployment.getResourceName());
+                this.management.tryRegister(_deployment);
+                final int period = _deployment.getRegisterNodePeriod() > 0
+                                ? Math.min(_deployment.getRegisterNodePeriod(), RETRYPERIOD) : RETRYPERIOD;
+                task = getScheduler().scheduleWithFixedDelay(() -> this.management.tryRegister(_deployment),
+                                period, period, TimeUnit.SECONDS);
+            }
+            this.registrations.put(_key, new Registration(_deployment, task));
+        }
+    }
+
+    /**
+     * Gets the key of a deployment.
+     *
+     * @param _deployment the deployment
+     * @return the key
+     */
+    private static String getKey(final KeycloakDeployment _deployment)
+    {
+        return _deployment.getRealm() + "\n" + _deployment.getResourceName() + "\n"
+                        + _deployment.getAuthServerBaseUrl();
+    }
+
+    /**
+     * Gets the scheduler. Must be called while holding the lock.
+     *
+     * @return the scheduler
+     */
+    private ScheduledThreadPoolExecutor getScheduler()
+    {
+        if (this.scheduler == null) {
+            this.scheduler = new ScheduledThreadPoolExecutor(1, _runnable -> {
+                final Thread thread = new Thread(_runnable, "eFaps-Keycloak-NodeRegistrar");
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.scheduler.setRemoveOnCancelPolicy(true);
+        }
+        return this.scheduler;
+    }
+
+    /**
+     * Gets the number of scheduled registrations.
+     *
+     * @return the number of scheduled registrations
+     */
+    synchronized int getScheduledCount()
+    {
+        return this.scheduler == null ? 0 : this.scheduler.getQueue().size();
+    }
+
+    /**
+     * Stop the scheduled registrations. Deployments registered afterwards
+     * are ignored.
+     */
+    public synchronized void stop()
+    {
+        this.stopped = true;
+        if (this.scheduler != null) {
+            this.scheduler.shutdownNow();
+            this.scheduler = null;
+        }
+        this.registrations.clear();
+    }
+
+    /**
+     * A registered deployment.
+     */
+    private static final class Registration
+    {
+
+        /** The deployment. */
+        private final KeycloakDeployment deployment;
+
+        /** The scheduled registration, null if the node is not registered. */
+        private final ScheduledFuture<?> task;
+
+        /**
+         * Instantiates a new registration.
+         *
+         * @param _deployment the deployment
+         * @param _task the scheduled registration, may be null
+         */
+        private Registration(final KeycloakDeployment _deployment,
+                             final ScheduledFuture<?> _task)
+        {
+            this.deployment = _deployment;
+            this.task = _task;
+        }
+    }
+}
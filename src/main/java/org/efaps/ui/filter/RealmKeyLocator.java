@@ -0,0 +1,306 @@
+/*
+ * Copyright © 2003 - 2024 The eFaps Team (-)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.efaps.ui.filter;
+
+import java.security.PublicKey;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+import org.apache.http.client.methods.HttpGet;
+import org.keycloak.adapters.HttpAdapterUtils;
+import org.keycloak.adapters.KeycloakDeployment;
+import org.keycloak.adapters.rotation.HardcodedPublicKeyLocator;
+import org.keycloak.adapters.rotation.PublicKeyLocator;
+import org.keycloak.crypto.KeyWrapper;
+import org.keycloak.jose.jwk.JSONWebKeySet;
+import org.keycloak.jose.jwk.JWK;
+import org.keycloak.util.JWKSUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * PublicKeyLocator that prefetches the signing keys of the realm and
+ * refreshes them in the background, so that no request has to wait for
+ * the JWKS endpoint. The keys are published as an immutable map and read
+ * without locking. A token with an unknown kid triggers one refresh that
+ * all concurrent requests share, limited by the min time between JWKS
+ * requests of the deployment. No lock is held while the keys are fetched,
+ * concurrent callers wait on the future of the running fetch.
+ */
+public final class RealmKeyLocator
+    implements PublicKeyLocator
+{
+
+    /** Min interval for the background refresh in seconds. */
+    private static final int MINREFRESH = 60;
+
+    /** Max seconds to wait for a fetch of another thread. */
+    private static final int MAXWAIT = 10;
+
+    /**
+     * Logger for this class.
+     */
+    private static final Logger LOG = LoggerFactory.getLogger(RealmKeyLocator.class);
+
+    /** Scheduler shared by all locators. */
+    private static ScheduledExecutorService SCHEDULER;
+
+    /** Stopped, the scheduler is not created again. */
+    private static boolean STOPPED;
+
+    /** The deployment. */
+    private final KeycloakDeployment deployment;
+
+    /** The keys by kid. */
+    private volatile Map<String, PublicKey> keys = Map.of();
+
+    /** Time the last request to the JWKS endpoint finished. */
+    private volatile long lastRequest;
+
+    /** The running fetch, null if none. */
+    private final AtomicReference<CompletableFuture<Void>> fetching = new AtomicReference<>();
+
+    /** Fetches the keys, null on error. */
+    private final Supplier<Map<String, PublicKey>> fetcher;
+
+    /**
+     * Instantiates a new realm key locator.
+     *
+     * @param _deployment the deployment
+     */
+    private RealmKeyLocator(final KeycloakDeployment _deployment)
+    {
+        this.deployment = _deployment;
+        this.fetcher = this::request;
+    }
+
+    /**
+     * Instantiates a new realm key locator.
+     *
+     * @param _deployment the deployment
+     * @param _fetcher fetches the keys, null on error
+     */
+    RealmKeyLocator(final KeycloakDeployment _deployment,
+                    final Supplier<Map<String, PublicKey>> _fetcher)
+    {
+        this.deployment = _deployment;
+        this.fetcher = _fetcher;
+    }
+
+    @Override
+    public PublicKey getPublicKey(final String _kid,
+                                  final KeycloakDeployment _deployment)
+    {
+        PublicKey ret = lookup(_kid);
+        if (ret == null && System.currentTimeMillis() - this.lastRequest > TimeUnit.SECONDS.toMillis(
+                        this.deployment.getMinTimeBetweenJwksRequests())) {
+            LOG.debug("Unknown kid {}, refreshing keys", _kid);
+            refresh();
+            ret = lookup(_kid);
+        }
+        return ret;
+    }
+
+    @Override
+    public void reset(final KeycloakDeployment _deployment)
+    {
+        refresh();
+    }
+
+    /**
+     * Lookup a key.
+     *
+     * @param _kid the kid, may be null
+     * @return the public key
+     */
+    private PublicKey lookup(final String _kid)
+    {
+        final Map<String, PublicKey> current = this.keys;
+        final PublicKey ret;
+        if (_kid == null) {
+            ret = current.size() == 1 ? current.values().iterator().next() : null;
+        } else {
+            ret = current.get(_kid);
+        }
+        return ret;
+    }
+
+    /**
+     * Refresh the keys. If a fetch is running already it is waited for
+     * instead of starting another one.
+     */
+    void refresh()
+    {
+        final CompletableFuture<Void> created = new CompletableFuture<>();
+        final CompletableFuture<Void> current = this.fetching.compareAndExchange(null, created);
+        if (current == null) {
+            try {
+                final Map<String, PublicKey> fetched = this.fetcher.get();
+                if (fetched != null) {
+                    this.keys = fetched;
+                }
+            } finally {
+                this.lastRequest = System.currentTimeMillis();
+                this.fetching.set(null);
+                created.complete(null);
+            }
+        } else {
+            try {
+                current.get(MAXWAIT, TimeUnit.SECONDS);
+            } catch (final TimeoutException e) {
+                LOG.warn("Fetch of the keys for realm {} did not finish within {}s", this.deployment.getRealm(),
+                                MAXWAIT);
+            } catch (final ExecutionException e) {
+                LOG.debug("Fetch of the keys for realm {} failed", this.deployment.getRealm(), e);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Request the keys from the JWKS endpoint.
+     *
+     * @return the keys by kid, null on error
+     */
+    private Map<String, PublicKey> request()
+    {
+        Map<String, PublicKey> ret = null;
+        try {
+            final JSONWebKeySet jwks = HttpAdapterUtils.sendJsonHttpRequest(this.deployment,
+                            new HttpGet(this.deployment.getJwksUrl()), JSONWebKeySet.class);
+            ret = parse(jwks);
+            LOG.debug("Fetched {} keys for realm {}", ret.size(), this.deployment.getRealm());
+        } catch (final Exception e) {
+            LOG.error("Could not fetch the keys for realm {}", this.deployment.getRealm(), e);
+        }
+        return ret;
+    }
+
+    /**
+     * Gets the number of known keys.
+     *
+     * @return the number of keys
+     */
+    int size()
+    {
+        return this.keys.size();
+    }
+
+    /**
+     * Get the signing keys of a JWKS.
+     *
+     * @param _jwks the JWKS
+     * @return the keys by kid
+     */
+    static Map<String, PublicKey> parse(final JSONWebKeySet _jwks)
+    {
+        final Map<String, PublicKey> ret = new HashMap<>();
+        for (final KeyWrapper key : JWKSUtils.getKeyWrappersForUse(_jwks, JWK.Use.SIG).getKeys()) {
+            if (key.getKid() != null && key.getPublicKey() instanceof PublicKey) {
+                ret.put(key.getKid(), (PublicKey) key.getPublicKey());
+            }
+        }
+        return Map.copyOf(ret);
+    }
+
+    /**
+     * Schedule the next background refresh with a jitter of up to ten
+     * percent, so that the nodes of a cluster do not refresh at once.
+     */
+    private void scheduleRefresh()
+    {
+        final int ttl = Math.max(this.deployment.getPublicKeyCacheTtl(), MINREFRESH);
+        final long delay = TimeUnit.SECONDS.toMillis(ttl) - ThreadLocalRandom.current().nextLong(
+                        TimeUnit.SECONDS.toMillis(ttl) / 10 + 1);
+        final ScheduledExecutorService scheduler = getScheduler();
+        if (scheduler != null) {
+            try {
+                scheduler.schedule(() -> {
+                    refresh();
+                    scheduleRefresh();
+                }, delay, TimeUnit.MILLISECONDS);
+            } catch (final RejectedExecutionException e) {
+                LOG.debug("Stopped, no refresh scheduled for realm {}", this.deployment.getRealm());
+            }
+        }
+    }
+
+    /**
+     * Install a locator for the deployment and prefetch its keys, if not
+     * done yet. The prefetch runs after the locator was installed, requests
+     * arriving meanwhile wait for it.
+     *
+     * @param _deployment the deployment
+     */
+    public static void install(final KeycloakDeployment _deployment)
+    {
+        if (!(_deployment.getPublicKeyLocator() instanceof RealmKeyLocator)
+                        && !(_deployment.getPublicKeyLocator() instanceof HardcodedPublicKeyLocator)) {
+            RealmKeyLocator locator = null;
+            synchronized (_deployment) {
+                if (!(_deployment.getPublicKeyLocator() instanceof RealmKeyLocator)) {
+                    locator = new RealmKeyLocator(_deployment);
+                    _deployment.setPublicKeyLocator(locator);
+                }
+            }
+            if (locator != null) {
+                locator.refresh();
+                locator.scheduleRefresh();
+            }
+        }
+    }
+
+    /**
+     * Gets the scheduler.
+     *
+     * @return the scheduler, null if stopped
+     */
+    private static synchronized ScheduledExecutorService getScheduler()
+    {
+        if (SCHEDULER == null && !STOPPED) {
+            SCHEDULER = Executors.newSingleThreadScheduledExecutor(_runnable -> {
+                final Thread thread = new Thread(_runnable, "eFaps-Keycloak-RealmKeys");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return SCHEDULER;
+    }
+
+    /**
+     * Stop the background refresh of all locators. Locators installed
+     * afterwards only fetch the keys on demand.
+     */
+    public static synchronized void stop()
+    {
+        STOPPED = true;
+        if (SCHEDULER != null) {
+            SCHEDULER.shutdownNow();
+            SCHEDULER = null;
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright © 2003 - 2024 The eFaps Team (-)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.efaps.ui.filter;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.servlet.FilterConfig;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * Resolves the redirect uri that overrules the request url during the
+ * OAuth redirect. The values are read once: the default one from the
+ * environment variable {@link #ENVVAR} or the init parameter
+ * {@link #DEFAULTPARAM}, per host overrides from the init parameter
+ * {@link #HOSTSPARAM} in the form "host1=uri1,host2=uri2".
+ */
+public final class RedirectUriResolver
+{
+
+    /** Environment variable for the default redirect uri. */
+    public static final String ENVVAR = "REDIRECT_URI";
+
+    /** Init parameter for the default redirect uri. */
+    public static final String DEFAULTPARAM = "org.efaps.keycloak.redirectUri";
+
+    /** Init parameter for the redirect uris per host. */
+    public static final String HOSTSPARAM = "org.efaps.keycloak.redirectUri.hosts";
+
+    /** Resolver using only the environment variable. */
+    public static final RedirectUriResolver DEFAULT = new RedirectUriResolver(System.getenv(ENVVAR), null);
+
+    /** The default redirect uri, may be null. */
+    private final String defaultUri;
+
+    /** The redirect uris by host in lower case. */
+    private final Map<String, String> hostUris;
+
+    /**
+     * Instantiates a new redirect uri resolver.
+     *
+     * @param _defaultUri the default uri, may be null
+     * @param _hostUris comma separated list of host=uri, may be null
+     */
+    private RedirectUriResolver(final String _defaultUri,
+                                final String _hostUris)
+    {
+        this.defaultUri = StringUtils.trimToNull(_defaultUri);
+        final Map<String, String> map = new HashMap<>();
+        for (final String entry : StringUtils.split(StringUtils.defaultString(_hostUris), ",")) {
+            final String host = StringUtils.substringBefore(entry, "=").trim().toLowerCase(Locale.ENGLISH);
+            final String uri = StringUtils.substringAfter(entry, "=").trim();
+            if (!host.isEmpty() && !uri.isEmpty()) {
+                map.put(host, uri);
+            }
+        }
+        this.hostUris = Map.copyOf(map);
+    }
+
+    /**
+     * Resolve the redirect uri for a host.
+     *
+     * @param _host the host of the request
+     * @return the redirect uri, null if the request url must be used
+     */
+    public String resolve(final String _host)
+    {
+        String ret = null;
+        if (!this.hostUris.isEmpty() && _host != null) {
+            ret = this.hostUris.get(_host.toLowerCase(Locale.ENGLISH));
+        }
+        return ret == null ? this.defaultUri : ret;
+    }
+
+    /**
+     * Create the resolver for a filter. The init parameter has priority
+     * over the environment variable.
+     *
+     * @param _filterConfig the filter config
+     * @return the redirect uri resolver
+     */
+    public static RedirectUriResolver of(final FilterConfig _filterConfig)
+    {
+        final String defaultUri = _filterConfig.getInitParameter(DEFAULTPARAM);
+        return new RedirectUriResolver(defaultUri == null ? System.getenv(ENVVAR) : defaultUri,
+                        _filterConfig.getInitParameter(HOSTSPARAM));
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright © 2003 - 2024 The eFaps Team (-)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.efaps.ui.filter;
+
+import java.util.Locale;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * Path of a request as used to decide on its authentication and
+ * authorization. The path is the one normalized by the container, servlet
+ * path plus path info, so that path parameters, percent-encoding and dot
+ * segments of the request URI can not be used to pass a different path
+ * than the one that is served. Requests whose URI contains encoded
+ * separators or dots, or whose path still contains dot segments, have no
+ * path and must be treated as not matching any rule.
+ */
+final class RequestPath
+{
+
+    /** Encoded characters that must not appear in the request URI. */
+    private static final String[] ENCODED = { "%2f", "%5c", "%2e", "%25", "%3b", "%00" };
+
+    /**
+     * Utility class.
+     */
+    private RequestPath()
+    {
+    }
+
+    /**
+     * Gets the path of a request relative to the context.
+     *
+     * @param _request the request
+     * @return the path, null if the request must not be matched
+     */
+    static String of(final HttpServletRequest _request)
+    {
+        String ret = null;
+        final String uri = StringUtils.defaultString(_request.getRequestURI()).toLowerCase(Locale.ENGLISH);
+        if (!StringUtils.containsAny(uri, '\\') && !containsEncoded(uri)) {
+            final String path = StringUtils.defaultString(_request.getServletPath())
+                            + StringUtils.defaultString(_request.getPathInfo());
+            if (isNormalized(path)) {
+                ret = path;
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Checks if a path starts with a prefix on a segment boundary, so that
+     * "/admin" matches "/admin" and "/admin/user" but not "/administration".
+     *
+     * @param _path the path
+     * @param _prefix the prefix
+     * @return true, if the path starts with the prefix
+     */
+    static boolean startsWith(final String _path,
+                              final String _prefix)
+    {
+        return _path.startsWith(_prefix) && (_path.length() == _prefix.length() || _prefix.endsWith("/")
+                        || _path.charAt(_prefix.length()) == '/');
+    }
+
+    /**
+     * Checks if the URI contains an encoded character that the container
+     * might decode into a separator or dot segment.
+     *
+     * @param _uri the URI in lower case
+     * @return true, if an encoded character is contained
+     */
+    private static boolean containsEncoded(final String _uri)
+    {
+        boolean ret = false;
+        for (final String encoded : ENCODED) {
+            if (_uri.contains(encoded)) {
+                ret = true;
+                break;
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Checks if a path is free of dot segments, backslashes, path
+     * parameters and control characters.
+     *
+     * @param _path the path
+     * @return true, if normalized
+     */
+    private static boolean isNormalized(final String _path)
+    {
+        boolean ret = StringUtils.containsNone(_path, '\\', ';', '\0');
+        if (ret) {
+            for (final String segment : StringUtils.splitPreserveAllTokens(_path, '/')) {
+                if (".".equals(segment) || "..".equals(segment)) {
+                    ret = false;
+                    break;
+                }
+            }
+        }
+        return ret;
+    }
+}
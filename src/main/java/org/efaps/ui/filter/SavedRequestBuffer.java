@@ -0,0 +1,300 @@
+/*
+ * Copyright © 2003 - 2024 The eFaps Team (-)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.efaps.ui.filter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpSessionBindingEvent;
+import javax.servlet.http.HttpSessionBindingListener;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Buffers the body of a request that is saved until the authentication is
+ * done. Bodies up to the memory limit are kept in the session as they are,
+ * larger ones are streamed to a temporary file and only a
+ * {@link SpilledBody} referencing it is kept in the session. The file is
+ * deleted as soon as the reference leaves the session, that is on replay
+ * of the request, on a new saved request or on expiry of the session.
+ * Files that were missed, e.g. of sessions lost on a restart, are swept
+ * periodically. Without sticky sessions the replay might run on another
+ * node than the save, so the {@link #DIRECTORY} must then be shared by
+ * all nodes; a replay that does not find the file fails.
+ */
+public class SavedRequestBuffer
+{
+
+    /** Init parameter for the size in bytes up to which a body is kept in memory. */
+    public static final String MEMORY = "org.efaps.keycloak.savedRequestMemory";
+
+    /** Init parameter for the max size of a saved body in bytes. */
+    public static final String MAXBODY = "org.efaps.keycloak.savedRequestMaxBody";
+
+    /** Init parameter for the directory of the spilled bodies, to be shared by the nodes of a cluster. */
+    public static final String DIRECTORY = "org.efaps.keycloak.savedRequestDirectory";
+
+    /** Session attribute for a spilled body. */
+    public static final String SPILLEDBODY = "__EFAPS_SAVED_BODY_FILE";
+
+    /** Default size up to which a body is kept in memory. */
+    private static final int DEFAULTMEMORY = 100000;
+
+    /** Default max size of a saved body. */
+    private static final long DEFAULTMAXBODY = 50L * 1024 * 1024;
+
+    /** Prefix of the spilled files. */
+    private static final String PREFIX = "saved-request-";
+
+    /** Age after which a spilled file left over is deleted. */
+    private static final long MAXAGE = TimeUnit.DAYS.toMillis(1);
+
+    /** Interval of the sweeps in minutes. */
+    private static final long SWEEPINTERVAL = 60;
+
+    /**
+     * Logger for this class.
+     */
+    private static final Logger LOG = LoggerFactory.getLogger(SavedRequestBuffer.class);
+
+    /** Size up to which a body is kept in memory. */
+    private final int memory;
+
+    /** Max size of a saved body. */
+    private final long maxBody;
+
+    /** Directory of the spilled bodies. */
+    private final Path directory;
+
+    /** Scheduler of the sweeps. */
+    private final ScheduledExecutorService sweeper;
+
+    /**
+     * Instantiates a new saved request buffer.
+     *
+     * @param _memory size in bytes up to which a body is kept in memory,
+     *            null for the default
+     * @param _maxBody max size of a saved body in bytes, null for the
+     *            default
+     * @param _directory directory of the spilled bodies, null for a
+     *            directory in the temp directory
+     */
+    public SavedRequestBuffer(final String _memory,
+                              final String _maxBody,
+                              final String _directory)
+    {
+        this.memory = _memory == null ? DEFAULTMEMORY : Integer.parseInt(_memory.trim());
+        this.maxBody = _maxBody == null ? DEFAULTMAXBODY : Long.parseLong(_maxBody.trim());
+        this.directory = _directory == null ? Paths.get(System.getProperty("java.io.tmpdir"), "efaps-keycloak")
+                        : Paths.get(_directory.trim());
+        this.sweeper = Executors.newSingleThreadScheduledExecutor(_runnable -> {
+            final Thread thread = new Thread(_runnable, "eFaps-Keycloak-SavedRequestSweep");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.sweeper.scheduleWithFixedDelay(() -> sweep(System.currentTimeMillis()), 0, SWEEPINTERVAL,
+                        TimeUnit.MINUTES);
+    }
+
+    /**
+     * Gets the size up to which a body is kept in memory.
+     *
+     * @return the memory
+     */
+    public int getMemory()
+    {
+        return this.memory;
+    }
+
+    /**
+     * Read a body. The body is returned as byte array if it fits into the
+     * memory limit, else it is spilled to a file.
+     *
+     * @param _body the body
+     * @return the body as byte array, a {@link SpilledBody} or null if empty
+     * @throws IOException on error or if the max size is exceeded
+     */
+    public Serializable read(final InputStream _body)
+        throws IOException
+    {
+        final ByteArrayOutputStream inMemory = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[8192];
+        long total = 0;
+        int read = _body.read(buffer);
+        while (read >= 0 && total + read <= this.memory) {
+            inMemory.write(buffer, 0, read);
+            total += read;
+            read = _body.read(buffer);
+        }
+        final Serializable ret;
+        if (read < 0) {
+            ret = total == 0 ? null : inMemory.toByteArray();
+        } else {
+            Files.createDirectories(this.directory);
+            final Path file = Files.createTempFile(this.directory, PREFIX, ".body");
+            boolean done = false;
+            try (OutputStream out = Files.newOutputStream(file)) {
+                inMemory.writeTo(out);
+                while (read >= 0) {
+                    total += read;
+                    if (total > this.maxBody) {
+                        throw new IOException("max size of " + this.maxBody + " bytes reached on a saved request");
+                    }
+                    out.write(buffer, 0, read);
+                    read = _body.read(buffer);
+                }
+                done = true;
+            } finally {
+                if (!done) {
+                    Files.deleteIfExists(file);
+                }
+            }
+            LOG.debug("Spilled saved request body of {} bytes to {}", total, file);
+            ret = new SpilledBody(file, total);
+        }
+        return ret;
+    }
+
+    /**
+     * Delete spilled files that were left over, e.g. by a former run or a
+     * session that was lost without being unbound.
+     *
+     * @param _now the current time
+     * @return the number of deleted files
+     */
+    int sweep(final long _now)
+    {
+        int ret = 0;
+        if (Files.isDirectory(this.directory)) {
+            final long limit = _now - MAXAGE;
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(this.directory, PREFIX + "*")) {
+                for (final Path file : files) {
+                    if (Files.getLastModifiedTime(file).toMillis() < limit && Files.deleteIfExists(file)) {
+                        ret++;
+                    }
+                }
+            } catch (final IOException e) {
+                LOG.warn("Could not sweep the saved request directory {}", this.directory, e);
+            }
+            if (ret > 0) {
+                LOG.info("Deleted {} left over saved request bodies", ret);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Stop the periodic sweeps.
+     */
+    public void stop()
+    {
+        this.sweeper.shutdownNow();
+    }
+
+    /**
+     * Reference to a body spilled to a file. The file is deleted when the
+     * reference is removed from the session or the session expires.
+     */
+    public static final class SpilledBody
+        implements Serializable, HttpSessionBindingListener
+    {
+
+        /** Needed for serialization. */
+        private static final long serialVersionUID = 1L;
+
+        /** Path of the file. */
+        private final String path;
+
+        /** Size of the body. */
+        private final long size;
+
+        /**
+         * Instantiates a new spilled body.
+         *
+         * @param _file the file
+         * @param _size the size
+         */
+        private SpilledBody(final Path _file,
+                            final long _size)
+        {
+            this.path = _file.toString();
+            this.size = _size;
+        }
+
+        /**
+         * Gets the size of the body.
+         *
+         * @return the size
+         */
+        public long getSize()
+        {
+            return this.size;
+        }
+
+        /**
+         * Load the body.
+         *
+         * @return the body
+         * @throws IOException on error, if the file does not exist, e.g. as
+         *             it was spilled on another node, or is incomplete
+         */
+        public byte[] load()
+            throws IOException
+        {
+            final Path file = Paths.get(this.path);
+            if (!Files.exists(file)) {
+                throw new NoSuchFileException(this.path, null,
+                                "saved request body not found, the directory must be shared without sticky sessions");
+            }
+            final byte[] ret = Files.readAllBytes(file);
+            if (ret.length != this.size) {
+                throw new IOException("saved request body " + this.path + " has " + ret.length + " instead of "
+                                + this.size + " bytes");
+            }
+            return ret;
+        }
+
+        /**
+         * Delete the file.
+         */
+        public void delete()
+        {
+            try {
+                Files.deleteIfExists(Paths.get(this.path));
+            } catch (final IOException e) {
+                LOG.warn("Could not delete the saved request body {}", this.path, e);
+            }
+        }
+
+        @Override
+        public void valueUnbound(final HttpSessionBindingEvent _event)
+        {
+            delete();
+        }
+    }
+}
@@ -0,0 +1,291 @@
+/*
+ * Copyright © 2003 - 2024 The eFaps Team (-)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.efaps.ui.filter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.commons.lang3.StringUtils;
+import org.keycloak.adapters.KeycloakConfigResolver;
+import org.keycloak.adapters.KeycloakDeployment;
+import org.keycloak.adapters.KeycloakDeploymentBuilder;
+import org.keycloak.adapters.OIDCHttpFacade;
+import org.keycloak.common.util.KeycloakUriBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Resolves the deployment of a tenant, so that several realms can be
+ * served by one web application. The tenant is given by the host of the
+ * request or by the first segment of its path. The configuration of a
+ * tenant is the keycloak.json file "&lt;tenant&gt;.json" in the tenant
+ * directory, "default.json" is used for requests without a tenant of
+ * their own. A deployment is built on the first request of its tenant and
+ * cached. The file is checked for changes at most once per check interval
+ * and the deployment rebuilt if it was modified. A name without a
+ * configuration is remembered for the check interval as well, so requests
+ * for unknown hosts do not hit the file system. As all realms share the
+ * Persons of eFaps, a configuration is only accepted if the principal is
+ * the id of the user ("principal-attribute" absent or "sub"), which is
+ * unique across realms, while user names of different realms collide.
+ */
+public class TenantConfigResolver
+    implements KeycloakConfigResolver
+{
+
+    /** Init parameter for the directory of the tenant configurations. */
+    public static final String DIRECTORY = "org.efaps.keycloak.tenantDirectory";
+
+    /** Init parameter for the part of the request giving the tenant, "host" or "path". */
+    public static final String RESOLVEBY = "org.efaps.keycloak.tenantBy";
+
+    /** Init parameter for the interval in seconds the configurations are checked for changes. */
+    public static final String CHECKINTERVAL = "org.efaps.keycloak.tenantCheck";
+
+    /** Tenant for requests without a tenant of their own. */
+    private static final String DEFAULTTENANT = "default";
+
+    /** Default check interval in seconds. */
+    private static final int DEFAULTCHECKINTERVAL = 30;
+
+    /** Valid tenant names, prevents leaving the directory. */
+    private static final Pattern VALIDNAME = Pattern.compile("[a-z0-9][a-z0-9_.-]{0,127}");
+
+    /** Max number of remembered names without a configuration. */
+    private static final int MAXMISSES = 1000;
+
+    /** Principal attribute giving the id of the user. */
+    private static final String SUBJECT = "sub";
+
+    /** Deployment for requests without a configured tenant. */
+    private static final KeycloakDeployment UNCONFIGURED = new KeycloakDeployment();
+
+    /**
+     * Logger for this class.
+     */
+    private static final Logger LOG = LoggerFactory.getLogger(TenantConfigResolver.class);
+
+    /** The cached tenants. */
+    private final Map<String, Tenant> tenants = new ConcurrentHashMap<>();
+
+    /** Names without a configuration by the time of their check. */
+    private final Map<String, Long> misses = new ConcurrentHashMap<>();
+
+    /** The directory of the configurations. */
+    private final Path directory;
+
+    /** Resolve the tenant by path instead of by host. */
+    private final boolean byPath;
+
+    /** Check interval in milliseconds. */
+    private final long checkInterval;
+
+    /**
+     * Instantiates a new tenant config resolver.
+     *
+     * @param _directory the directory of the configurations
+     * @param _resolveBy "host" or "path", null for host
+     * @param _checkInterval check interval in seconds, null for the default
+     */
+    public TenantConfigResolver(final String _directory,
+                                final String _resolveBy,
+                                final String _checkInterval)
+    {
+        this.directory = Paths.get(_directory.trim());
+        this.byPath = "path".equalsIgnoreCase(StringUtils.trim(_resolveBy));
+        this.checkInterval = TimeUnit.SECONDS.toMillis(_checkInterval == null ? DEFAULTCHECKINTERVAL
+                        : Integer.parseInt(_checkInterval.trim()));
+    }
+
+    @Override
+    public KeycloakDeployment resolve(final OIDCHttpFacade.Request _request)
+    {
+        return resolve(this.byPath ? _request.getRelativePath()
+                        : KeycloakUriBuilder.fromUri(_request.getURI()).getHost());
+    }
+
+    /**
+     * Resolve the deployment for a servlet request, without the facade
+     * needed by the adapter.
+     *
+     * @param _request the request
+     * @return the deployment
+     */
+    public KeycloakDeployment resolve(final HttpServletRequest _request)
+    {
+        return resolve(this.byPath ? StringUtils.removeStart(_request.getRequestURI(), _request.getContextPath())
+                        : _request.getServerName());
+    }
+
+    /**
+     * Resolve the deployment for the host or the relative path of a
+     * request.
+     *
+     * @param _hostOrPath the host or the path relative to the context
+     * @return the deployment
+     */
+    private KeycloakDeployment resolve(final String _hostOrPath)
+    {
+        String name = _hostOrPath;
+        if (this.byPath) {
+            name = StringUtils.substringBefore(StringUtils.removeStart(name, "/"), "/");
+        }
+        Tenant tenant = StringUtils.isEmpty(name) ? null : get(name.toLowerCase(Locale.ENGLISH));
+        if (tenant == null) {
+            tenant = get(DEFAULTTENANT);
+        }
+        return tenant == null ? UNCONFIGURED : tenant.deployment;
+    }
+
+    /**
+     * Gets a tenant, loading or reloading its deployment if needed.
+     *
+     * @param _name the name of the tenant
+     * @return the tenant, null if not configured
+     */
+    private Tenant get(final String _name)
+    {
+        Tenant ret = null;
+        if (_name != null && VALIDNAME.matcher(_name).matches()) {
+            final long now = System.currentTimeMillis();
+            ret = this.tenants.get(_name);
+            if (ret == null ? isMissDue(_name, now) : ret.isDue(now)) {
+                ret = this.tenants.compute(_name, (_key, _current) -> _current == null
+                                || _current.isDue(System.currentTimeMillis()) ? load(_key, _current) : _current);
+                if (ret == null) {
+                    if (this.misses.size() >= MAXMISSES) {
+                        this.misses.clear();
+                    }
+                    this.misses.put(_name, now);
+                } else {
+                    this.misses.remove(_name);
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Checks if a name without a configuration must be checked again.
+     *
+     * @param _name the name of the tenant
+     * @param _now the current time
+     * @return true, if due or not checked yet
+     */
+    private boolean isMissDue(final String _name,
+                              final long _now)
+    {
+        final Long checked = this.misses.get(_name);
+        return checked == null || _now - checked > this.checkInterval;
+    }
+
+    /**
+     * Load the deployment of a tenant if it is new or its configuration
+     * was modified.
+     *
+     * @param _name the name of the tenant
+     * @param _current the current tenant, may be null
+     * @return the tenant, null if not configured
+     */
+    private Tenant load(final String _name,
+                        final Tenant _current)
+    {
+        Tenant ret = _current;
+        final Path file = this.directory.resolve(_name + ".json");
+        try {
+            if (Files.isRegularFile(file)) {
+                final long modified = Files.getLastModifiedTime(file).toMillis();
+                if (_current == null || _current.modified != modified) {
+                    final KeycloakDeployment deployment;
+                    try (InputStream in = Files.newInputStream(file)) {
+                        deployment = KeycloakDeploymentBuilder.build(in);
+                    }
+                    if (deployment.getPrincipalAttribute() == null
+                                    || SUBJECT.equals(deployment.getPrincipalAttribute())) {
+                        ret = new Tenant(deployment, modified);
+                        LOG.info("{} deployment of tenant {}", _current == null ? "Loaded" : "Reloaded", _name);
+                    } else {
+                        LOG.error("Refused deployment of tenant {}: principal-attribute {} is not unique across "
+                                        + "realms, only \"sub\" is permitted", _name,
+                                        deployment.getPrincipalAttribute());
+                        ret = null;
+                    }
+                }
+            } else {
+                if (_current != null) {
+                    LOG.info("Removed deployment of tenant {}", _name);
+                }
+                ret = null;
+            }
+        } catch (final IOException | RuntimeException e) {
+            LOG.error("Could not load the deployment of tenant {}", _name, e);
+        }
+        if (ret != null) {
+            ret.checked = System.currentTimeMillis();
+        }
+        return ret;
+    }
+
+    /**
+     * A tenant with its deployment.
+     */
+    private final class Tenant
+    {
+
+        /** The deployment. */
+        private final KeycloakDeployment deployment;
+
+        /** Last modification of the configuration. */
+        private final long modified;
+
+        /** Last check of the configuration. */
+        private volatile long checked;
+
+        /**
+         * Instantiates a new tenant.
+         *
+         * @param _deployment the deployment
+         * @param _modified the last modification of the configuration
+         */
+        private Tenant(final KeycloakDeployment _deployment,
+                       final long _modified)
+        {
+            this.deployment = _deployment;
+            this.modified = _modified;
+        }
+
+        /**
+         * Checks if the configuration must be checked for changes.
+         *
+         * @param _now the current time
+         * @return true, if due
+         */
+        private boolean isDue(final long _now)
+        {
+            return _now - this.checked > TenantConfigResolver.this.checkInterval;
+        }
+    }
+}
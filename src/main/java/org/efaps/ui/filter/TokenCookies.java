@@ -0,0 +1,420 @@
+/*
+ * Copyright © 2003 - 2024 The eFaps Team (-)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.efaps.ui.filter;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpSession;
+
+import org.apache.commons.lang3.StringUtils;
+import org.keycloak.adapters.KeycloakDeployment;
+import org.keycloak.adapters.RefreshableKeycloakSecurityContext;
+import org.keycloak.adapters.spi.HttpFacade;
+import org.keycloak.common.enums.SslRequired;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the tokens of an account in cookies of the browser, so that any
+ * node can rebuild the account without a replicated HttpSession. Access,
+ * id and refresh token are deflated and encrypted with AES-GCM, so the
+ * cookies can neither be read nor altered by the client. The result is
+ * split into chunks that fit into the size limit of a cookie. The cookies
+ * are HttpOnly, carry a SameSite attribute and are Secure unless the
+ * deployment does not require SSL or {@link #SECURE} says otherwise, as a
+ * proxy terminating TLS hides the scheme from the request. A key shared
+ * by all nodes is required.
+ */
+public class TokenCookies
+{
+
+    /** Init parameter for the base64 encoded AES key shared by all nodes. */
+    public static final String KEY = "org.efaps.keycloak.tokenCookieKey";
+
+    /** Init parameter to force the Secure attribute on or off, default is the SSL requirement of the deployment. */
+    public static final String SECURE = "org.efaps.keycloak.tokenCookieSecure";
+
+    /** Init parameter for the SameSite attribute. */
+    public static final String SAMESITE = "org.efaps.keycloak.tokenCookieSameSite";
+
+    /** Default SameSite attribute, the redirect back from Keycloak is a top level navigation. */
+    private static final String DEFAULTSAMESITE = "Lax";
+
+    /** Name of the first cookie, the further chunks get a suffix. */
+    public static final String NAME = "EFAPS_KC_TOKENS";
+
+    /** Session attribute for the hash of the access token last written. */
+    private static final String WRITTEN = TokenCookies.class.getName() + ".written";
+
+    /** Name of the header to set a cookie. */
+    private static final String SETCOOKIE = "Set-Cookie";
+
+    /** Max length of the value of one cookie. */
+    private static final int CHUNKSIZE = 3800;
+
+    /** Max number of cookies. */
+    private static final int MAXCHUNKS = 8;
+
+    /** Length of the initialization vector. */
+    private static final int IVLENGTH = 12;
+
+    /** Length of the authentication tag in bits. */
+    private static final int TAGLENGTH = 128;
+
+    /** Additional authenticated data, binds the ciphertext to its use. */
+    private static final byte[] AAD = NAME.getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * Logger for this class.
+     */
+    private static final Logger LOG = LoggerFactory.getLogger(TokenCookies.class);
+
+    /** The key. */
+    private final SecretKey key;
+
+    /** Source of the initialization vectors. */
+    private final SecureRandom random = new SecureRandom();
+
+    /** Secure attribute, null to follow the SSL requirement of the deployment. */
+    private final Boolean secure;
+
+    /** SameSite attribute. */
+    private final String sameSite;
+
+    /**
+     * Instantiates new token cookies.
+     *
+     * @param _key base64 encoded AES key
+     * @param _secure "true" or "false" to force the Secure attribute, null
+     *            to follow the SSL requirement of the deployment
+     * @param _sameSite SameSite attribute, null for the default
+     */
+    public TokenCookies(final String _key,
+                        final String _secure,
+                        final String _sameSite)
+    {
+        this.key = new SecretKeySpec(Base64.getDecoder().decode(_key.trim()), "AES");
+        this.secure = _secure == null ? null : Boolean.valueOf(_secure.trim());
+        this.sameSite = _sameSite == null ? DEFAULTSAMESITE : _sameSite.trim();
+    }
+
+    /**
+     * Create the token cookies if a key is given. Without a key shared by
+     * all nodes the cookies could only be read by the node that wrote them,
+     * so the tokens are kept in the session instead.
+     *
+     * @param _key base64 encoded AES key, might be null
+     * @param _secure "true" or "false" to force the Secure attribute, null
+     *            to follow the SSL requirement of the deployment
+     * @param _sameSite SameSite attribute, null for the default
+     * @return the token cookies, null if no key is given
+     */
+    public static TokenCookies of(final String _key,
+                                  final String _secure,
+                                  final String _sameSite)
+    {
+        TokenCookies ret = null;
+        if (StringUtils.isBlank(_key)) {
+            LOG.warn("No {} given, deployments with token-store cookie keep their tokens in the session", KEY);
+        } else {
+            ret = new TokenCookies(_key, _secure, _sameSite);
+        }
+        return ret;
+    }
+
+    /**
+     * Read the tokens from the cookies of a request.
+     *
+     * @param _request the request
+     * @return access, id and refresh token (id and refresh token might be
+     *         null), null if no valid cookie is present
+     */
+    public String[] read(final HttpServletRequest _request)
+    {
+        String[] ret = null;
+        final Map<String, String> cookies = getCookies(_request);
+        final StringBuilder value = new StringBuilder();
+        for (int i = 0; i < MAXCHUNKS && cookies.containsKey(chunkName(i)); i++) {
+            value.append(cookies.get(chunkName(i)));
+        }
+        if (value.length() > 0) {
+            try {
+                final String[] tokens = new String(inflate(decrypt(Base64.getUrlDecoder().decode(value.toString()))),
+                                StandardCharsets.UTF_8).split("\n", -1);
+                if (tokens.length == 3 && !tokens[0].isEmpty()) {
+                    ret = new String[] { tokens[0], tokens[1].isEmpty() ? null : tokens[1],
+                                    tokens[2].isEmpty() ? null : tokens[2] };
+                }
+            } catch (final GeneralSecurityException | IOException | IllegalArgumentException e) {
+                LOG.debug("Invalid token cookie", e);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Write the tokens of a security context to the cookies of the response,
+     * if they changed since the last write within the session.
+     *
+     * @param _request the request
+     * @param _response the response
+     * @param _securityContext the security context
+     */
+    public void write(final HttpServletRequest _request,
+                      final HttpFacade.Response _response,
+                      final RefreshableKeycloakSecurityContext _securityContext)
+    {
+        final HttpSession session = _request.getSession(false);
+        final Integer hash = _securityContext.getTokenString().hashCode();
+        if (session == null || !hash.equals(session.getAttribute(WRITTEN))) {
+            try {
+                final String payload = _securityContext.getTokenString() + "\n"
+                                + StringUtils.defaultString(_securityContext.getIdTokenString()) + "\n"
+                                + StringUtils.defaultString(_securityContext.getRefreshToken());
+                final String value = Base64.getUrlEncoder().withoutPadding().encodeToString(encrypt(deflate(
+                                payload.getBytes(StandardCharsets.UTF_8))));
+                final int count = (value.length() + CHUNKSIZE - 1) / CHUNKSIZE;
+                if (count > MAXCHUNKS) {
+                    LOG.warn("Tokens too large for {} cookies, not written", MAXCHUNKS);
+                    clear(_request, _response);
+                } else {
+                    final String path = getPath(_request);
+                    final boolean secureCookie = isSecure(_securityContext.getDeployment());
+                    for (int i = 0; i < count; i++) {
+                        _response.addHeader(SETCOOKIE, header(chunkName(i), value.substring(i * CHUNKSIZE,
+                                        Math.min(value.length(), (i + 1) * CHUNKSIZE)), path, -1, secureCookie,
+                                        this.sameSite));
+                    }
+                    resetChunks(_request, _response, count, secureCookie);
+                    if (session != null) {
+                        session.setAttribute(WRITTEN, hash);
+                    }
+                }
+            } catch (final GeneralSecurityException | IOException e) {
+                LOG.error("Could not write the token cookie", e);
+            }
+        }
+    }
+
+    /**
+     * Remove the cookies.
+     *
+     * @param _request the request
+     * @param _response the response
+     * @param _deployment the deployment
+     */
+    public void clear(final HttpServletRequest _request,
+                      final HttpFacade.Response _response,
+                      final KeycloakDeployment _deployment)
+    {
+        resetChunks(_request, _response, 0, isSecure(_deployment));
+        final HttpSession session = _request.getSession(false);
+        if (session != null) {
+            session.removeAttribute(WRITTEN);
+        }
+    }
+
+    /**
+     * Reset the chunks sent by the browser starting with the given index.
+     *
+     * @param _request the request
+     * @param _response the response
+     * @param _from index of the first chunk to reset
+     * @param _secure the Secure attribute
+     */
+    private void resetChunks(final HttpServletRequest _request,
+                             final HttpFacade.Response _response,
+                             final int _from,
+                             final boolean _secure)
+    {
+        final Map<String, String> cookies = getCookies(_request);
+        for (int i = _from; i < MAXCHUNKS && cookies.containsKey(chunkName(i)); i++) {
+            _response.addHeader(SETCOOKIE, header(chunkName(i), "", getPath(_request), 0, _secure, this.sameSite));
+        }
+    }
+
+    /**
+     * Checks if the cookies get the Secure attribute.
+     *
+     * @param _deployment the deployment
+     * @return true, if secure
+     */
+    private boolean isSecure(final KeycloakDeployment _deployment)
+    {
+        return this.secure == null ? _deployment.getSslRequired() != SslRequired.NONE : this.secure;
+    }
+
+    /**
+     * Build the value of a Set-Cookie header. The servlet api has no
+     * SameSite attribute, so the header is written directly.
+     *
+     * @param _name the name
+     * @param _value the value
+     * @param _path the path
+     * @param _maxAge max age in seconds, negative for a session cookie
+     * @param _secure the Secure attribute
+     * @param _sameSite the SameSite attribute
+     * @return the header value
+     */
+    static String header(final String _name,
+                         final String _value,
+                         final String _path,
+                         final int _maxAge,
+                         final boolean _secure,
+                         final String _sameSite)
+    {
+        final StringBuilder ret = new StringBuilder().append(_name).append('=').append(_value)
+                        .append("; Path=").append(_path);
+        if (_maxAge >= 0) {
+            ret.append("; Max-Age=").append(_maxAge);
+        }
+        if (_secure) {
+            ret.append("; Secure");
+        }
+        ret.append("; HttpOnly; SameSite=").append(_sameSite);
+        return ret.toString();
+    }
+
+    /**
+     * Encrypt data. The initialization vector is prepended to the result.
+     *
+     * @param _data the data
+     * @return the encrypted data
+     * @throws GeneralSecurityException on error
+     */
+    private byte[] encrypt(final byte[] _data)
+        throws GeneralSecurityException
+    {
+        final byte[] iv = new byte[IVLENGTH];
+        this.random.nextBytes(iv);
+        final Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        cipher.init(Cipher.ENCRYPT_MODE, this.key, new GCMParameterSpec(TAGLENGTH, iv));
+        cipher.updateAAD(AAD);
+        final byte[] encrypted = cipher.doFinal(_data);
+        return ByteBuffer.allocate(IVLENGTH + encrypted.length).put(iv).put(encrypted).array();
+    }
+
+    /**
+     * Decrypt data encrypted by {@link #encrypt(byte[])}.
+     *
+     * @param _data the data
+     * @return the decrypted data
+     * @throws GeneralSecurityException on error or if the data was altered
+     */
+    private byte[] decrypt(final byte[] _data)
+        throws GeneralSecurityException
+    {
+        if (_data.length <= IVLENGTH) {
+            throw new GeneralSecurityException("Token cookie too short");
+        }
+        final Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        cipher.init(Cipher.DECRYPT_MODE, this.key, new GCMParameterSpec(TAGLENGTH, _data, 0, IVLENGTH));
+        cipher.updateAAD(AAD);
+        return cipher.doFinal(_data, IVLENGTH, _data.length - IVLENGTH);
+    }
+
+    /**
+     * Deflate data.
+     *
+     * @param _data the data
+     * @return the deflated data
+     * @throws IOException on error
+     */
+    private static byte[] deflate(final byte[] _data)
+        throws IOException
+    {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(_data.length / 2);
+        try (DeflaterOutputStream deflater = new DeflaterOutputStream(out)) {
+            deflater.write(_data);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Inflate data.
+     *
+     * @param _data the data
+     * @return the inflated data
+     * @throws IOException on error
+     */
+    private static byte[] inflate(final byte[] _data)
+        throws IOException
+    {
+        try (InflaterInputStream inflater = new InflaterInputStream(new ByteArrayInputStream(_data))) {
+            return inflater.readAllBytes();
+        }
+    }
+
+    /**
+     * Gets the cookies of a request by name.
+     *
+     * @param _request the request
+     * @return the cookies
+     */
+    private static Map<String, String> getCookies(final HttpServletRequest _request)
+    {
+        final Map<String, String> ret = new HashMap<>();
+        final Cookie[] cookies = _request.getCookies();
+        if (cookies != null) {
+            for (final Cookie cookie : cookies) {
+                if (cookie.getName().startsWith(NAME)) {
+                    ret.put(cookie.getName(), cookie.getValue());
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Gets the path of the cookies.
+     *
+     * @param _request the request
+     * @return the path
+     */
+    private static String getPath(final HttpServletRequest _request)
+    {
+        final String contextPath = _request.getContextPath();
+        return contextPath == null || contextPath.isEmpty() ? "/" : contextPath;
+    }
+
+    /**
+     * Gets the name of a chunk.
+     *
+     * @param _index the index
+     * @return the name
+     */
+    private static String chunkName(final int _index)
+    {
+        return _index == 0 ? NAME : NAME + "_" + _index;
+    }
+}
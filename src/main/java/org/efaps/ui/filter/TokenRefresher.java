@@ -0,0 +1,328 @@
+/*
+ * Copyright © 2003 - 2024 The eFaps Team (-)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.efaps.ui.filter;
+
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.servlet.http.HttpSession;
+
+import org.keycloak.adapters.AdapterTokenStore;
+import org.keycloak.adapters.KeycloakDeployment;
+import org.keycloak.adapters.OidcKeycloakAccount;
+import org.keycloak.adapters.RefreshableKeycloakSecurityContext;
+import org.keycloak.adapters.RequestAuthenticator;
+import org.keycloak.adapters.servlet.OIDCFilterSessionStore.SerializableKeycloakAccount;
+import org.keycloak.adapters.spi.KeycloakAccount;
+import org.keycloak.adapters.spi.SessionIdMapper;
+import org.keycloak.representations.AccessToken;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Coordinates the refresh of the tokens of a session. Of several
+ * concurrent refreshes of a session only the first one calls the token
+ * endpoint, the others wait for it and find the refreshed token. No lock
+ * is held while the token endpoint is called, so refreshes of different
+ * sessions never wait for each other. Additionally a token that is about
+ * to expire is refreshed ahead in the background, off the request thread.
+ */
+public class TokenRefresher
+{
+
+    /** Init parameter for the seconds before expiry a token is refreshed ahead, 0 to deactivate. */
+    public static final String REFRESHAHEAD = "org.efaps.keycloak.refreshAhead";
+
+    /** Default seconds before expiry. */
+    private static final int DEFAULTREFRESHAHEAD = 30;
+
+    /**
+     * A token is refreshed ahead at the earliest after this part of its
+     * lifetime has passed, so that short-lived tokens are not refreshed on
+     * every request.
+     */
+    private static final int LIFETIMEDIVISOR = 4;
+
+    /** Max seconds a request waits for the refresh of another request. */
+    private static final int MAXWAIT = 10;
+
+    /**
+     * Logger for this class.
+     */
+    private static final Logger LOG = LoggerFactory.getLogger(TokenRefresher.class);
+
+    /** The running refreshes by session id. */
+    private final Map<String, CompletableFuture<Void>> running = new ConcurrentHashMap<>();
+
+    /** Seconds before expiry. */
+    private final int refreshAhead;
+
+    /** The session id mapper, may be null. */
+    private final SessionIdMapper idMapper;
+
+    /** The executor for the refresh ahead. */
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * Instantiates a new token refresher.
+     *
+     * @param _refreshAhead seconds before expiry, null for default
+     * @param _idMapper the session id mapper, may be null
+     */
+    public TokenRefresher(final String _refreshAhead,
+                          final SessionIdMapper _idMapper)
+    {
+        this.refreshAhead = _refreshAhead == null ? DEFAULTREFRESHAHEAD : Integer.parseInt(_refreshAhead.trim());
+        this.idMapper = _idMapper;
+        this.executor = new ThreadPoolExecutor(1, 2, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(1000),
+                        _runnable -> {
+                            final Thread thread = new Thread(_runnable, "eFaps-Keycloak-TokenRefresher");
+                            thread.setDaemon(true);
+                            return thread;
+                        });
+    }
+
+    /**
+     * Run a refresh for a session, or if a refresh of the session is
+     * already running wait for it instead.
+     *
+     * @param _sessionId the id of the session
+     * @param _refresh the refresh
+     * @return true, if the refresh was run by this call
+     */
+    public boolean coalesce(final String _sessionId,
+                            final Runnable _refresh)
+    {
+        final CompletableFuture<Void> created = new CompletableFuture<>();
+        final CompletableFuture<Void> current = this.running.putIfAbsent(_sessionId, created);
+        if (current == null) {
+            try {
+                _refresh.run();
+            } finally {
+                end(_sessionId, created);
+            }
+        } else {
+            try {
+                current.get(MAXWAIT, TimeUnit.SECONDS);
+            } catch (final TimeoutException e) {
+                LOG.warn("Refresh of session {} did not finish within {}s", _sessionId, MAXWAIT);
+            } catch (final ExecutionException e) {
+                LOG.debug("Refresh of session {} failed", _sessionId, e);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return current == null;
+    }
+
+    /**
+     * Mark the refresh of a session as finished.
+     *
+     * @param _sessionId the id of the session
+     * @param _refresh the refresh
+     */
+    private void end(final String _sessionId,
+                     final CompletableFuture<Void> _refresh)
+    {
+        this.running.remove(_sessionId, _refresh);
+        _refresh.complete(null);
+    }
+
+    /**
+     * Refresh the token of the session in the background if it expires
+     * soon. Nothing is done if a refresh of the session is already running.
+     *
+     * @param _session the session
+     * @param _account the account
+     */
+    public void refreshAhead(final HttpSession _session,
+                             final SerializableKeycloakAccount _account)
+    {
+        final RefreshableKeycloakSecurityContext securityContext = _account.getKeycloakSecurityContext();
+        if (this.refreshAhead > 0 && securityContext.getRefreshToken() != null && expiresSoon(securityContext)) {
+            final String sessionId = _session.getId();
+            final CompletableFuture<Void> created = new CompletableFuture<>();
+            if (this.running.putIfAbsent(sessionId, created) == null) {
+                try {
+                    this.executor.execute(() -> {
+                        try {
+                            refresh(_session, _account);
+                        } catch (final IllegalStateException e) {
+                            LOG.debug("Session {} was invalidated", sessionId);
+                        } finally {
+                            end(sessionId, created);
+                        }
+                    });
+                } catch (final RejectedExecutionException e) {
+                    end(sessionId, created);
+                }
+            }
+        }
+    }
+
+    /**
+     * Refresh the tokens of an account of a session. A copy of the security
+     * context is refreshed and stored with a new account, the context that
+     * requests of the session may be reading is never changed.
+     *
+     * @param _session the session
+     * @param _account the account
+     */
+    private void refresh(final HttpSession _session,
+                         final SerializableKeycloakAccount _account)
+    {
+        final RefreshableKeycloakSecurityContext current = _account.getKeycloakSecurityContext();
+        // the account might have been replaced meanwhile by a request
+        if (_session.getAttribute(KeycloakAccount.class.getName()) == _account && expiresSoon(current)) {
+            LOG.debug("Refreshing token ahead for session {}", _session.getId());
+            final RefreshableKeycloakSecurityContext copy = new RefreshableKeycloakSecurityContext(
+                            current.getDeployment(), null, current.getTokenString(), current.getToken(),
+                            current.getIdTokenString(), current.getIdToken(), current.getRefreshToken());
+            copy.setCurrentRequestInfo(current.getDeployment(), new SessionTokenStore(_session,
+                            current.getDeployment(), this.idMapper));
+            copy.refreshExpiredToken(false);
+        }
+    }
+
+    /**
+     * Checks if the token of a security context expires soon.
+     *
+     * @param _securityContext the security context
+     * @return true, if it expires soon
+     */
+    private boolean expiresSoon(final RefreshableKeycloakSecurityContext _securityContext)
+    {
+        final AccessToken token = _securityContext.getToken();
+        return token.getExp() != null && expiresSoon(token.getExp(), token.getIat() == null ? 0 : token.getIat(),
+                        System.currentTimeMillis() / 1000, this.refreshAhead);
+    }
+
+    /**
+     * Checks if a token expires within the given seconds, but at most
+     * within the last part of its lifetime given by
+     * {@link #LIFETIMEDIVISOR}.
+     *
+     * @param _exp expiry of the token in seconds
+     * @param _iat issue time of the token in seconds, 0 if unknown
+     * @param _now the current time in seconds
+     * @param _refreshAhead seconds before expiry
+     * @return true, if it expires soon
+     */
+    static boolean expiresSoon(final long _exp,
+                               final long _iat,
+                               final long _now,
+                               final int _refreshAhead)
+    {
+        long threshold = _refreshAhead;
+        if (_iat > 0 && _exp > _iat) {
+            threshold = Math.min(threshold, (_exp - _iat) / LIFETIMEDIVISOR);
+        }
+        return _exp - _now < threshold;
+    }
+
+    /**
+     * Stop the background refresh.
+     */
+    public void stop()
+    {
+        this.executor.shutdownNow();
+    }
+
+    /**
+     * Token store used for the refresh in the background. It stores the
+     * refreshed account in the session the same way as the
+     * {@link EFapsFilterSessionStore} does. As there is no response, a
+     * token cookie is written by the next request of the session.
+     */
+    private static final class SessionTokenStore
+        implements AdapterTokenStore
+    {
+
+        /** The session. */
+        private final HttpSession session;
+
+        /** The deployment. */
+        private final KeycloakDeployment deployment;
+
+        /** The session id mapper, may be null. */
+        private final SessionIdMapper idMapper;
+
+        /**
+         * Instantiates a new session token store.
+         *
+         * @param _session the session
+         * @param _deployment the deployment
+         * @param _idMapper the session id mapper, may be null
+         */
+        private SessionTokenStore(final HttpSession _session,
+                                  final KeycloakDeployment _deployment,
+                                  final SessionIdMapper _idMapper)
+        {
+            this.session = _session;
+            this.deployment = _deployment;
+            this.idMapper = _idMapper;
+        }
+
+        @Override
+        public void refreshCallback(final RefreshableKeycloakSecurityContext _securityContext)
+        {
+            EFapsFilterSessionStore.storeAccount(this.session, this.deployment, this.idMapper, _securityContext);
+        }
+
+        @Override
+        public void checkCurrentToken()
+        {
+            // not used in the background
+        }
+
+        @Override
+        public boolean isCached(final RequestAuthenticator _authenticator)
+        {
+            return false;
+        }
+
+        @Override
+        public void saveAccountInfo(final OidcKeycloakAccount _account)
+        {
+            // not used in the background
+        }
+
+        @Override
+        public void logout()
+        {
+            // not used in the background
+        }
+
+        @Override
+        public void saveRequest()
+        {
+            // not used in the background
+        }
+
+        @Override
+        public boolean restoreRequest()
+        {
+            return false;
+        }
+    }
+}
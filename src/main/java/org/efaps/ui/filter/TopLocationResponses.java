@@ -0,0 +1,112 @@
+/*
+ * Copyright © 2003 - 2024 The eFaps Team (-)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.efaps.ui.filter;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.text.StringEscapeUtils;
+
+/**
+ * Pre rendered responses that set the top location of the browser to the
+ * base uri of the application. They are used for unauthenticated requests
+ * from within a frame or an ajax call, e.g. after the session expired.
+ * The responses are cached per scheme, host, port and context path.
+ */
+public final class TopLocationResponses
+{
+
+    /** Max number of cached base uris. */
+    private static final int MAXENTRIES = 256;
+
+    /** Content type of the ajax response. */
+    private static final String AJAXCONTENTTYPE = "text/xml;charset=UTF-8";
+
+    /** Content type of the html response. */
+    private static final String HTMLCONTENTTYPE = "text/html;charset=UTF-8";
+
+    /** Cached responses by base uri. */
+    private static final Map<String, TopLocationResponses> CACHE = new ConcurrentHashMap<>();
+
+    /** The ajax response. */
+    private final byte[] ajax;
+
+    /** The html response. */
+    private final byte[] html;
+
+    /**
+     * Render the responses for a base uri.
+     *
+     * @param _uri the base uri
+     */
+    private TopLocationResponses(final String _uri)
+    {
+        final String escaped = StringEscapeUtils.escapeEcmaScript(_uri);
+        this.ajax = new StringBuilder()
+                        .append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>")
+                        .append("<ajax-response><evaluate>")
+                        .append("\n/*<![CDATA[*/\n")
+                        .append("  top.location = \"").append(escaped).append("\";")
+                        .append("\n/*]]>*/\n")
+                        .append("</evaluate></ajax-response>")
+                        .toString().getBytes(StandardCharsets.UTF_8);
+        this.html = new StringBuilder()
+                        .append("<html> <head>")
+                        .append("<script type=\"text/javascript\" >")
+                        .append("function test4top() {\n")
+                        .append("  if(top!=self) {\n")
+                        .append("    top.location = \"").append(escaped).append("\";")
+                        .append("  }\n")
+                        .append("}\n")
+                        .append("</script>\n</head>")
+                        .append("<body  onload=\"test4top()\"></body>")
+                        .append("</html> ")
+                        .toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Write the response for the request.
+     *
+     * @param _request the request
+     * @param _response the response
+     * @param _ajax write the ajax response
+     * @throws IOException on error
+     */
+    public static void write(final HttpServletRequest _request,
+                             final HttpServletResponse _response,
+                             final boolean _ajax)
+        throws IOException
+    {
+        final String uri = _request.getScheme() + "://" + _request.getServerName() + ":" + _request.getServerPort()
+                        + _request.getContextPath();
+        TopLocationResponses responses = CACHE.get(uri);
+        if (responses == null) {
+            if (CACHE.size() >= MAXENTRIES) {
+                CACHE.clear();
+            }
+            responses = CACHE.computeIfAbsent(uri, TopLocationResponses::new);
+        }
+        final byte[] body = _ajax ? responses.ajax : responses.html;
+        _response.setContentType(_ajax ? AJAXCONTENTTYPE : HTMLCONTENTTYPE);
+        _response.setContentLength(body.length);
+        _response.getOutputStream().write(body);
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright © 2003 - 2024 The eFaps Team (-)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.efaps.ui;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.testng.annotations.Test;
+
+/**
+ * Tests for the {@link AuditLog}.
+ */
+public class AuditLogTest
+{
+
+    /**
+     * Published events are polled in order and only once.
+     */
+    @Test
+    public void testPublishPoll()
+    {
+        final AuditLog auditLog = new AuditLog("unused", false);
+        final AuditEvent first = new AuditEvent(AuditEvent.Type.LOGIN_SUCCESS, "jane", null);
+        final AuditEvent second = new AuditEvent(AuditEvent.Type.LOGIN_FAILURE, "john", "rejected");
+        assertTrue(auditLog.publish(first));
+        assertTrue(auditLog.publish(second));
+        final List<AuditEvent> batch = new ArrayList<>();
+        auditLog.poll(batch);
+        assertEquals(batch.size(), 2);
+        assertSame(batch.get(0), first);
+        assertSame(batch.get(1), second);
+        batch.clear();
+        auditLog.poll(batch);
+        assertTrue(batch.isEmpty());
+    }
+
+    /**
+     * A full buffer drops and counts the events, polling frees the slots
+     * again.
+     */
+    @Test
+    public void testFullBuffer()
+    {
+        final AuditLog auditLog = new AuditLog("unused", false);
+        for (int i = 0; i < AuditLog.CAPACITY; i++) {
+            assertTrue(auditLog.publish(new AuditEvent(AuditEvent.Type.LOGIN_SUCCESS, "user" + i, null)));
+        }
+        assertFalse(auditLog.publish(new AuditEvent(AuditEvent.Type.LOGIN_SUCCESS, "dropped", null)));
+        assertFalse(auditLog.publish(new AuditEvent(AuditEvent.Type.LOGIN_SUCCESS, "dropped", null)));
+        assertEquals(auditLog.getDropped(), 2);
+        final List<AuditEvent> batch = new ArrayList<>();
+        auditLog.poll(batch);
+        assertEquals(batch.get(0).getUser(), "user0");
+        assertTrue(auditLog.publish(new AuditEvent(AuditEvent.Type.LOGIN_SUCCESS, "again", null)));
+        assertEquals(auditLog.getDropped(), 2);
+    }
+
+    /**
+     * Draining writes one line per event to the file of the day.
+     *
+     * @throws IOException on error
+     */
+    @Test
+    public void testDrain()
+        throws IOException
+    {
+        final Path directory = Files.createTempDirectory("audit");
+        final AuditLog auditLog = new AuditLog(directory.toString(), false);
+        auditLog.publish(new AuditEvent(AuditEvent.Type.LOGIN_SUCCESS, "jane", null));
+        auditLog.publish(new AuditEvent(AuditEvent.Type.LOGIN_FAILURE, "john", "rejected"));
+        auditLog.drain();
+        final Path file = directory.resolve("sso-audit-" + LocalDate.now() + ".log");
+        final List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        assertEquals(lines.size(), 2);
+        assertTrue(lines.get(0).contains("\"jane\""));
+        assertTrue(lines.get(1).contains("\"rejected\""));
+        Files.delete(file);
+        Files.delete(directory);
+    }
+
+    /**
+     * After stop no new audit log is created.
+     */
+    @Test
+    public void testStop()
+    {
+        final String directory = System.getProperty("java.io.tmpdir");
+        assertNotNull(AuditLog.get(directory));
+        AuditLog.stop();
+        assertNull(AuditLog.get(directory));
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright © 2003 - 2024 The eFaps Team (-)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.efaps.ui;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.efaps.ui.AuthMetrics.Outcome;
+import org.efaps.ui.AuthMetrics.Phase;
+import org.efaps.ui.AuthMetrics.PhaseStats;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests for the {@link AuthMetrics}.
+ */
+public class AuthMetricsTest
+{
+
+    /**
+     * Reset the metrics.
+     */
+    @BeforeMethod
+    public void setUp()
+    {
+        AuthMetrics.get().reset();
+    }
+
+    /**
+     * A recorded phase returns its end and is reported in milliseconds.
+     */
+    @Test
+    public void testRecord()
+    {
+        final AuthMetrics metrics = AuthMetrics.get();
+        final long start = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(20);
+        final long end = metrics.record(Phase.FILTER, start);
+        assertTrue(end - start >= TimeUnit.MILLISECONDS.toNanos(20));
+        metrics.record(Phase.FILTER, System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(40));
+        final PhaseStats stats = metrics.getPhases().get(Phase.FILTER.name());
+        assertEquals(stats.getCount(), 2);
+        assertTrue(stats.getP50() >= 20 && stats.getP50() < 40, "p50 " + stats.getP50());
+        assertTrue(stats.getMax() >= 40, "max " + stats.getMax());
+        assertEquals(metrics.getFilterP99(), stats.getMax());
+        assertEquals(metrics.getPhases().get(Phase.LOGIN.name()).getCount(), 0);
+    }
+
+    /**
+     * Outcomes are counted separately.
+     */
+    @Test
+    public void testCount()
+    {
+        final AuthMetrics metrics = AuthMetrics.get();
+        metrics.count(Outcome.SESSION);
+        metrics.count(Outcome.SESSION);
+        metrics.count(Outcome.AUTHZ_DENIED);
+        assertEquals(metrics.getOutcomes().get(Outcome.SESSION.name()).longValue(), 2);
+        assertEquals(metrics.getOutcomes().get(Outcome.AUTHZ_DENIED.name()).longValue(), 1);
+        assertEquals(metrics.getOutcomes().get(Outcome.BEARER.name()).longValue(), 0);
+        assertEquals(metrics.getOutcomes().size(), Outcome.values().length);
+    }
+
+    /**
+     * A reset drops all counts and durations.
+     */
+    @Test
+    public void testReset()
+    {
+        final AuthMetrics metrics = AuthMetrics.get();
+        metrics.count(Outcome.BEARER);
+        metrics.record(Phase.LOGIN, System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(5));
+        metrics.reset();
+        assertEquals(metrics.getOutcomes().get(Outcome.BEARER.name()).longValue(), 0);
+        assertEquals(metrics.getPhases().get(Phase.LOGIN.name()).getCount(), 0);
+        assertEquals(metrics.getLoginP99(), 0d);
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright © 2003 - 2024 The eFaps Team (-)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.efaps.ui;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.keycloak.representations.IDToken;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests for the {@link ClaimFingerprint}.
+ */
+public class ClaimFingerprintTest
+{
+
+    /**
+     * Start with an empty store.
+     */
+    @BeforeMethod
+    public void setUp()
+    {
+        ClaimFingerprint.clear();
+    }
+
+    /**
+     * The order of the role claims does not change the fingerprint, their
+     * content does.
+     */
+    @Test
+    public void testOf()
+    {
+        final IDToken token1 = new IDToken();
+        token1.setGivenName("Jane");
+        token1.getOtherClaims().put(KeycloakLoginProvider.ROLEKEY, Arrays.asList("a", "b"));
+        final IDToken token2 = new IDToken();
+        token2.setGivenName("Jane");
+        token2.getOtherClaims().put(KeycloakLoginProvider.ROLEKEY, Arrays.asList("b", "a"));
+        final IDToken token3 = new IDToken();
+        token3.setGivenName("Jane");
+        token3.getOtherClaims().put(KeycloakLoginProvider.ROLEKEY, Arrays.asList("a", "c"));
+        final Set<String> roles = Collections.singleton("user");
+        assertEquals(ClaimFingerprint.of(roles, token1), ClaimFingerprint.of(roles, token2));
+        assertNotEquals(ClaimFingerprint.of(roles, token1), ClaimFingerprint.of(roles, token3));
+    }
+
+    /**
+     * A stored fingerprint is unchanged until it expires.
+     */
+    @Test
+    public void testExpiry()
+    {
+        final long now = 1000000L;
+        ClaimFingerprint.store("jane", "fp", now);
+        assertTrue(ClaimFingerprint.isUnchanged("jane", "fp", now + 1));
+        assertFalse(ClaimFingerprint.isUnchanged("jane", "other", now + 1));
+        assertFalse(ClaimFingerprint.isUnchanged("john", "fp", now + 1));
+        // a login on the next working day or after a weekend skips the sync
+        assertTrue(ClaimFingerprint.isUnchanged("jane", "fp", now + TimeUnit.HOURS.toMillis(73)));
+        assertFalse(ClaimFingerprint.isUnchanged("jane", "fp", now + TimeUnit.DAYS.toMillis(5)));
+        assertEquals(ClaimFingerprint.size(), 0);
+    }
+
+    /**
+     * The number of fingerprints is bounded, only the least recently used
+     * ones are evicted.
+     */
+    @Test
+    public void testBounded()
+    {
+        final long now = 1000000L;
+        for (int i = 0; i < ClaimFingerprint.MAXENTRIES; i++) {
+            ClaimFingerprint.store("user" + i, "fp", now);
+        }
+        assertTrue(ClaimFingerprint.isUnchanged("user0", "fp", now));
+        for (int i = 0; i < 10; i++) {
+            ClaimFingerprint.store("new" + i, "fp", now);
+        }
+        assertEquals(ClaimFingerprint.size(), ClaimFingerprint.MAXENTRIES);
+        assertTrue(ClaimFingerprint.isUnchanged("user0", "fp", now));
+        assertFalse(ClaimFingerprint.isUnchanged("user1", "fp", now));
+        assertFalse(ClaimFingerprint.isUnchanged("user10", "fp", now));
+        assertTrue(ClaimFingerprint.isUnchanged("user11", "fp", now));
+        assertTrue(ClaimFingerprint.isUnchanged("new9", "fp", now));
+    }
+
+    /**
+     * Invalidate and clear remove the fingerprints.
+     */
+    @Test
+    public void testInvalidate()
+    {
+        ClaimFingerprint.store("jane", "fp");
+        ClaimFingerprint.store("john", "fp");
+        ClaimFingerprint.invalidate("jane");
+        assertFalse(ClaimFingerprint.isUnchanged("jane", "fp"));
+        assertTrue(ClaimFingerprint.isUnchanged("john", "fp"));
+        ClaimFingerprint.clear();
+        assertFalse(ClaimFingerprint.isUnchanged("john", "fp"));
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright © 2003 - 2024 The eFaps Team (-)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.efaps.ui;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.testng.annotations.Test;
+
+/**
+ * Tests for the {@link ClaimIndex}.
+ */
+public class ClaimIndexTest
+{
+
+    /**
+     * The misses are bounded, further claims are not remembered.
+     */
+    @Test
+    public void testMissesBounded()
+    {
+        final Set<String> misses = ConcurrentHashMap.newKeySet();
+        for (int i = 0; i < ClaimIndex.MAXMISSES + 10; i++) {
+            ClaimIndex.addMiss(misses, "claim" + i);
+        }
+        assertEquals(misses.size(), ClaimIndex.MAXMISSES);
+        assertTrue(misses.contains("claim0"));
+        assertFalse(misses.contains("claim" + ClaimIndex.MAXMISSES));
+    }
+}
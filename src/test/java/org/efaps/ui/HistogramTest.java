@@ -0,0 +1,98 @@
+/*
+ * Copyright © 2003 - 2024 The eFaps Team (-)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.efaps.ui;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import org.testng.annotations.Test;
+
+/**
+ * Tests for the {@link Histogram}.
+ */
+public class HistogramTest
+{
+
+    /**
+     * Small values have a bucket of their own.
+     */
+    @Test
+    public void testSmallValues()
+    {
+        for (int i = 0; i < 16; i++) {
+            assertEquals(Histogram.index(i), i);
+            assertEquals(Histogram.upperBound(i), i);
+        }
+        assertEquals(Histogram.index(16), 16);
+        assertEquals(Histogram.index(17), 16);
+        assertEquals(Histogram.upperBound(16), 17);
+    }
+
+    /**
+     * The buckets are contiguous: every value lies within its bucket and
+     * the value after the upper bound of a bucket starts the next one.
+     */
+    @Test
+    public void testBucketBounds()
+    {
+        int index = 0;
+        while (Histogram.upperBound(index) < Long.MAX_VALUE / 2) {
+            final long upper = Histogram.upperBound(index);
+            assertEquals(Histogram.index(upper), index);
+            assertEquals(Histogram.index(upper + 1), index + 1);
+            index++;
+        }
+        assertEquals(Histogram.index(Long.MAX_VALUE), 487);
+        assertEquals(Histogram.upperBound(487), Long.MAX_VALUE);
+    }
+
+    /**
+     * The upper bound of a bucket is at most 12.5 percent above any value
+     * of the bucket.
+     */
+    @Test
+    public void testPrecision()
+    {
+        for (long value = 1; value < 10_000_000; value = value * 3 / 2 + 1) {
+            final long upper = Histogram.upperBound(Histogram.index(value));
+            assertTrue(upper >= value);
+            assertTrue(upper <= value * 1.125, "value " + value + " upper " + upper);
+        }
+    }
+
+    /**
+     * Percentiles, mean and max are reported in milliseconds.
+     */
+    @Test
+    public void testPercentile()
+    {
+        final Histogram histogram = new Histogram();
+        assertEquals(histogram.getPercentile(0.99), 0d);
+        assertEquals(histogram.getMean(), 0d);
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i * 1000L);
+        }
+        histogram.record(-5);
+        assertEquals(histogram.getCount(), 101);
+        assertEquals(histogram.getMax(), 100d);
+        assertEquals(histogram.getMean(), 5050d / 101, 0.001);
+        final double p50 = histogram.getPercentile(0.5);
+        assertTrue(p50 >= 50 && p50 <= 50 * 1.125, "p50 " + p50);
+        final double p99 = histogram.getPercentile(0.99);
+        assertTrue(p99 >= 99 && p99 <= 100, "p99 " + p99);
+        assertEquals(histogram.getPercentile(1), 100d);
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright © 2003 - 2024 The eFaps Team (-)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.efaps.ui;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.efaps.admin.user.Person;
+import org.efaps.util.EFapsException;
+import org.keycloak.representations.IDToken;
+import org.mockito.MockedStatic;
+import org.mockito.Mockito;
+import org.testng.annotations.Test;
+
+/**
+ * Tests for the {@link LoginContext}.
+ */
+public class LoginContextTest
+{
+
+    /**
+     * The difference is calculated in both directions by id.
+     */
+    @Test
+    public void testMissing()
+    {
+        final List<Long> current = Arrays.asList(1L, 2L, 3L);
+        final List<Long> target = Arrays.asList(2L, 3L, 4L, 5L);
+        assertEquals(LoginContext.missing(target, current, Long::longValue), Arrays.asList(4L, 5L));
+        assertEquals(LoginContext.missing(current, target, Long::longValue), Collections.singletonList(1L));
+    }
+
+    /**
+     * Unchanged assignments give no difference.
+     */
+    @Test
+    public void testMissingUnchanged()
+    {
+        final List<Long> current = Arrays.asList(1L, 2L);
+        assertTrue(LoginContext.missing(Arrays.asList(2L, 1L), current, Long::longValue).isEmpty());
+        assertTrue(LoginContext.missing(current, Arrays.asList(2L, 1L), Long::longValue).isEmpty());
+    }
+
+    /**
+     * Objects that are not in the cache any more are ignored.
+     */
+    @Test
+    public void testMissingIgnoresNull()
+    {
+        final List<Long> current = Arrays.asList(1L, null);
+        final List<Long> target = Arrays.asList(null, 2L);
+        assertEquals(LoginContext.missing(target, current, Long::longValue), Collections.singletonList(2L));
+        assertEquals(LoginContext.missing(current, target, Long::longValue), Collections.singletonList(1L));
+    }
+
+    /**
+     * A login holds the creation lock until it is released, a provisioning
+     * takes none.
+     *
+     * @throws EFapsException on error
+     */
+    @Test
+    public void testCreationLock()
+        throws EFapsException
+    {
+        try (MockedStatic<Person> person = Mockito.mockStatic(Person.class)) {
+            final LoginContext login = new LoginContext("jane", Collections.emptySet(), new IDToken());
+            assertNull(login.lockCreation());
+            assertEquals(PersonCreationLocks.size(), 1);
+            login.releaseCreationLock();
+            assertEquals(PersonCreationLocks.size(), 0);
+
+            final LoginContext provisioning = new LoginContext("jane", Collections.emptySet(), new IDToken());
+            provisioning.setProvisioning(true);
+            assertNull(provisioning.lockCreation());
+            assertEquals(PersonCreationLocks.size(), 0);
+        }
+    }
+}
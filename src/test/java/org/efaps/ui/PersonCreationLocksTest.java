@@ -0,0 +1,104 @@
+/*
+ * Copyright © 2003 - 2024 The eFaps Team (-)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.efaps.ui;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotNull;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.efaps.util.EFapsException;
+import org.testng.annotations.Test;
+
+/**
+ * Tests for the {@link PersonCreationLocks}.
+ */
+public class PersonCreationLocksTest
+{
+
+    /**
+     * Locks of different users do not block each other and are removed on
+     * release.
+     *
+     * @throws EFapsException on error
+     */
+    @Test
+    public void testDifferentUsers()
+        throws EFapsException
+    {
+        final PersonCreationLocks.UserLock jane = PersonCreationLocks.acquire("jane", 1, TimeUnit.SECONDS);
+        final PersonCreationLocks.UserLock john = PersonCreationLocks.acquire("john", 1, TimeUnit.SECONDS);
+        assertNotNull(jane);
+        assertNotNull(john);
+        assertEquals(PersonCreationLocks.size(), 2);
+        jane.release();
+        john.release();
+        assertEquals(PersonCreationLocks.size(), 0);
+    }
+
+    /**
+     * A second login of the same user fails on timeout while the lock is
+     * held by another thread.
+     *
+     * @throws Exception on error
+     */
+    @Test
+    public void testTimeout()
+        throws Exception
+    {
+        final PersonCreationLocks.UserLock lock = PersonCreationLocks.acquire("jane", 1, TimeUnit.SECONDS);
+        final CompletableFuture<Void> other = CompletableFuture.runAsync(() -> {
+            try {
+                PersonCreationLocks.acquire("jane", 50, TimeUnit.MILLISECONDS).release();
+            } catch (final EFapsException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        try {
+            other.get();
+            throw new AssertionError("timeout expected");
+        } catch (final ExecutionException e) {
+            assertEquals(e.getCause().getCause().getClass(), EFapsException.class);
+        }
+        assertEquals(PersonCreationLocks.size(), 1);
+        lock.release();
+        assertEquals(PersonCreationLocks.size(), 0);
+    }
+
+    /**
+     * A waiting login gets the lock once it is released.
+     *
+     * @throws Exception on error
+     */
+    @Test
+    public void testWait()
+        throws Exception
+    {
+        final PersonCreationLocks.UserLock lock = PersonCreationLocks.acquire("jane", 1, TimeUnit.SECONDS);
+        final CompletableFuture<Void> other = CompletableFuture.runAsync(() -> {
+            try {
+                PersonCreationLocks.acquire("jane", 10, TimeUnit.SECONDS).release();
+            } catch (final EFapsException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        lock.release();
+        other.get(10, TimeUnit.SECONDS);
+        assertEquals(PersonCreationLocks.size(), 0);
+    }
+}
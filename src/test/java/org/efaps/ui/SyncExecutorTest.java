@@ -0,0 +1,226 @@
+/*
+ * Copyright © 2003 - 2024 The eFaps Team (-)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.efaps.ui;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests for the {@link SyncExecutor}.
+ */
+public class SyncExecutorTest
+{
+
+    /** Coalescing window used by the tests in milliseconds. */
+    private static final long WINDOW = 50;
+
+    /** The executor. */
+    private SyncExecutor executor;
+
+    /**
+     * Create the executor.
+     */
+    @BeforeMethod
+    public void setUp()
+    {
+        this.executor = new SyncExecutor(WINDOW, 2);
+    }
+
+    /**
+     * Stop the executor.
+     */
+    @AfterMethod
+    public void tearDown()
+    {
+        this.executor.shutdown();
+    }
+
+    /**
+     * Requests for a user within the window are coalesced, only the last
+     * one is executed.
+     *
+     * @throws Exception on error
+     */
+    @Test
+    public void testCoalesce()
+        throws Exception
+    {
+        final AtomicInteger first = new AtomicInteger();
+        final AtomicInteger last = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(1);
+        assertTrue(this.executor.submit("user", first::incrementAndGet));
+        assertTrue(this.executor.submit("user", first::incrementAndGet));
+        assertTrue(this.executor.submit("user", () -> {
+            last.incrementAndGet();
+            done.countDown();
+        }));
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        waitForIdle();
+        assertEquals(first.get(), 0);
+        assertEquals(last.get(), 1);
+        assertEquals(this.executor.getSubmitted(), 1);
+        assertEquals(this.executor.getCoalesced(), 2);
+        assertEquals(this.executor.getExecuted(), 1);
+    }
+
+    /**
+     * A request arriving while the sync of the user runs is executed after
+     * it and not in parallel.
+     *
+     * @throws Exception on error
+     */
+    @Test
+    public void testNoParallelSync()
+        throws Exception
+    {
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        final AtomicInteger calls = new AtomicInteger();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(2);
+        final Runnable sync = () -> {
+            maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+            calls.incrementAndGet();
+            started.countDown();
+            awaitQuietly(release);
+            running.decrementAndGet();
+            done.countDown();
+        };
+        assertTrue(this.executor.submit("user", sync));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        assertTrue(this.executor.submit("user", sync));
+        Thread.sleep(WINDOW * 3);
+        assertEquals(calls.get(), 1);
+        release.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        waitForIdle();
+        assertEquals(calls.get(), 2);
+        assertEquals(maxRunning.get(), 1);
+        assertEquals(this.executor.getExecuted(), 2);
+    }
+
+    /**
+     * If the capacity is reached the caller must sync by itself.
+     */
+    @Test
+    public void testCapacity()
+    {
+        assertTrue(this.executor.submit("user1", () -> { }));
+        assertTrue(this.executor.submit("user2", () -> { }));
+        assertFalse(this.executor.submit("user3", () -> { }));
+        assertTrue(this.executor.submit("user1", () -> { }));
+        assertEquals(this.executor.getRejected(), 1);
+        assertEquals(this.executor.getQueueDepth(), 2);
+    }
+
+    /**
+     * The lag between the first request and the execution covers the window.
+     *
+     * @throws Exception on error
+     */
+    @Test
+    public void testLag()
+        throws Exception
+    {
+        final CountDownLatch done = new CountDownLatch(1);
+        assertTrue(this.executor.submit("user", done::countDown));
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertTrue(this.executor.getLastLag() >= WINDOW);
+        assertTrue(this.executor.getMaxLag() >= this.executor.getLastLag());
+    }
+
+    /**
+     * A failing sync is counted and does not block later requests.
+     *
+     * @throws Exception on error
+     */
+    @Test
+    public void testFailed()
+        throws Exception
+    {
+        final CountDownLatch done = new CountDownLatch(1);
+        assertTrue(this.executor.submit("user", () -> {
+            throw new IllegalStateException("test");
+        }));
+        waitFor(() -> this.executor.getFailed() == 1);
+        waitForIdle();
+        assertTrue(this.executor.submit("user", done::countDown));
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+    }
+
+    /**
+     * After the shutdown the caller must sync by itself.
+     */
+    @Test
+    public void testShutdown()
+    {
+        this.executor.shutdown();
+        assertFalse(this.executor.submit("user", () -> { }));
+        assertEquals(this.executor.getQueueDepth(), 0);
+    }
+
+    /**
+     * Wait until no sync is pending or running.
+     *
+     * @throws InterruptedException on interrupt
+     */
+    private void waitForIdle()
+        throws InterruptedException
+    {
+        waitFor(() -> this.executor.getQueueDepth() == 0);
+    }
+
+    /**
+     * Wait at most five seconds for a condition.
+     *
+     * @param _condition the condition
+     * @throws InterruptedException on interrupt
+     */
+    private static void waitFor(final BooleanSupplier _condition)
+        throws InterruptedException
+    {
+        final long end = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(5);
+        while (!_condition.getAsBoolean() && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+        assertTrue(_condition.getAsBoolean());
+    }
+
+    /**
+     * Await a latch, at most five seconds.
+     *
+     * @param _latch the latch
+     */
+    private static void awaitQuietly(final CountDownLatch _latch)
+    {
+        try {
+            _latch.await(5, TimeUnit.SECONDS);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
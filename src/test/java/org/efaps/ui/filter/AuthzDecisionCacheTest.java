@@ -0,0 +1,237 @@
+/*
+ * Copyright © 2003 - 2024 The eFaps Team (-)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.efaps.ui.filter;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.keycloak.KeycloakSecurityContext;
+import org.keycloak.adapters.KeycloakDeployment;
+import org.keycloak.representations.AccessToken;
+import org.testng.annotations.Test;
+
+/**
+ * Tests for the {@link AuthzDecisionCache}.
+ */
+public class AuthzDecisionCacheTest
+{
+
+    /** The protected paths. */
+    private static final String PATHS = "/servlet/admin=admin, /servlet/admin/user=user#view, /api/=api";
+
+    /**
+     * Paths match on segment boundaries and the longest path wins.
+     */
+    @Test
+    public void testGetRule()
+    {
+        final AuthzDecisionCache cache = new AuthzDecisionCache(PATHS, null, null);
+        assertEquals(cache.getRule("/servlet/admin").getResource(), "admin");
+        assertNull(cache.getRule("/servlet/admin").getScope());
+        assertEquals(cache.getRule("/servlet/admin/other").getResource(), "admin");
+        assertEquals(cache.getRule("/servlet/admin/user/1").getResource(), "user");
+        assertEquals(cache.getRule("/servlet/admin/user/1").getScope(), "view");
+        assertEquals(cache.getRule("/servlet/admin/username").getResource(), "admin");
+        assertNull(cache.getRule("/servlet/administration"));
+        assertEquals(cache.getRule("/api/x").getResource(), "api");
+        assertNull(cache.getRule("/apix"));
+        assertNull(cache.getRule("/servlet/other"));
+    }
+
+    /**
+     * Requests outside of the protected paths are granted without asking
+     * Keycloak, requests without a normalized path are denied.
+     */
+    @Test
+    public void testIsGranted()
+    {
+        final AuthzDecisionCache cache = new AuthzDecisionCache(PATHS, null, null);
+        final KeycloakDeployment deployment = mock(KeycloakDeployment.class);
+        final KeycloakSecurityContext securityContext = mock(KeycloakSecurityContext.class);
+        assertTrue(cache.isGranted(request("/efaps/servlet/administration", "/servlet", "/administration"),
+                        deployment, securityContext));
+        assertFalse(cache.isGranted(request("/efaps/servlet/x/%2e%2e/admin", "/servlet", "/admin"),
+                        deployment, securityContext));
+        assertFalse(cache.isGranted(request("/efaps/servlet/admin;x=1", "/servlet", "/admin;x=1"),
+                        deployment, securityContext));
+    }
+
+    /**
+     * A decision not made in time denies, as does a failed one.
+     */
+    @Test
+    public void testAwait()
+    {
+        assertTrue(AuthzDecisionCache.await(CompletableFuture.completedFuture(true), 10));
+        assertFalse(AuthzDecisionCache.await(CompletableFuture.completedFuture(false), 10));
+        assertFalse(AuthzDecisionCache.await(new CompletableFuture<>(), 10));
+        final CompletableFuture<Boolean> failed = new CompletableFuture<>();
+        failed.completeExceptionally(new IllegalStateException());
+        assertFalse(AuthzDecisionCache.await(failed, 10));
+    }
+
+    /**
+     * The first request for a decision waits for it no longer than the
+     * timeout, like all others. The late decision is cached.
+     *
+     * @throws Exception on error
+     */
+    @Test
+    public void testTimeout()
+        throws Exception
+    {
+        final AtomicInteger calls = new AtomicInteger();
+        final CountDownLatch release = new CountDownLatch(1);
+        final AuthzDecisionCache cache = new AuthzDecisionCache(PATHS, null, null, 50)
+        {
+
+            @Override
+            long authorize(final KeycloakDeployment _deployment,
+                           final KeycloakSecurityContext _securityContext,
+                           final Rule _rule)
+            {
+                calls.incrementAndGet();
+                awaitQuietly(release);
+                return 0;
+            }
+        };
+        try {
+            final HttpServletRequest request = request("/efaps/servlet/admin", "/servlet", "/admin");
+            final KeycloakDeployment deployment = deployment();
+            final long start = System.nanoTime();
+            assertFalse(cache.isGranted(request, deployment, securityContext("jane")));
+            assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(4));
+            release.countDown();
+            Thread.sleep(100);
+            assertTrue(cache.isGranted(request, deployment, securityContext("jane")));
+            assertEquals(calls.get(), 1);
+        } finally {
+            release.countDown();
+            cache.stop();
+        }
+    }
+
+    /**
+     * If the cache is full the decisions expiring first are evicted, the
+     * others stay cached.
+     */
+    @Test
+    public void testEvictEarliestExpiry()
+    {
+        final AtomicInteger calls = new AtomicInteger();
+        final AuthzDecisionCache cache = new AuthzDecisionCache(PATHS, null, "10", 5000)
+        {
+
+            @Override
+            long authorize(final KeycloakDeployment _deployment,
+                           final KeycloakSecurityContext _securityContext,
+                           final Rule _rule)
+            {
+                calls.incrementAndGet();
+                return Integer.parseInt(_securityContext.getToken().getSubject()) * 10;
+            }
+        };
+        try {
+            final HttpServletRequest request = request("/efaps/servlet/admin", "/servlet", "/admin");
+            final KeycloakDeployment deployment = deployment();
+            for (int i = 1; i <= 11; i++) {
+                assertTrue(cache.isGranted(request, deployment, securityContext(String.valueOf(i))));
+            }
+            assertEquals(cache.size(), 10);
+            assertEquals(calls.get(), 11);
+            assertTrue(cache.isGranted(request, deployment, securityContext("3")));
+            assertEquals(calls.get(), 11);
+            assertTrue(cache.isGranted(request, deployment, securityContext("1")));
+            assertEquals(calls.get(), 12);
+        } finally {
+            cache.stop();
+        }
+    }
+
+    /**
+     * Mock a deployment.
+     *
+     * @return the deployment
+     */
+    private static KeycloakDeployment deployment()
+    {
+        final KeycloakDeployment ret = mock(KeycloakDeployment.class);
+        when(ret.getRealm()).thenReturn("realm");
+        return ret;
+    }
+
+    /**
+     * Mock the security context of a user with a token valid for an hour.
+     *
+     * @param _subject the subject of the token
+     * @return the security context
+     */
+    private static KeycloakSecurityContext securityContext(final String _subject)
+    {
+        final AccessToken token = new AccessToken();
+        token.subject(_subject);
+        token.exp(System.currentTimeMillis() / 1000 + TimeUnit.HOURS.toSeconds(1));
+        final KeycloakSecurityContext ret = mock(KeycloakSecurityContext.class);
+        when(ret.getToken()).thenReturn(token);
+        when(ret.getTokenString()).thenReturn("token-" + _subject);
+        return ret;
+    }
+
+    /**
+     * Await a latch, at most five seconds.
+     *
+     * @param _latch the latch
+     */
+    private static void awaitQuietly(final CountDownLatch _latch)
+    {
+        try {
+            _latch.await(5, TimeUnit.SECONDS);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Mock a request.
+     *
+     * @param _uri the request uri
+     * @param _servletPath the servlet path
+     * @param _pathInfo the path info
+     * @return the request
+     */
+    private static HttpServletRequest request(final String _uri,
+                                              final String _servletPath,
+                                              final String _pathInfo)
+    {
+        final HttpServletRequest ret = mock(HttpServletRequest.class);
+        when(ret.getRequestURI()).thenReturn(_uri);
+        when(ret.getContextPath()).thenReturn("/efaps");
+        when(ret.getServletPath()).thenReturn(_servletPath);
+        when(ret.getPathInfo()).thenReturn(_pathInfo);
+        return ret;
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright © 2003 - 2024 The eFaps Team (-)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.efaps.ui.filter;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotEquals;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+
+import org.testng.annotations.Test;
+
+/**
+ * Tests for the {@link BearerTokenCache}.
+ */
+public class BearerTokenCacheTest
+{
+
+    /**
+     * The token is cached by its hash, not by the token itself.
+     */
+    @Test
+    public void testHash()
+    {
+        final String hash = BearerTokenCache.hash("header.payload.signature");
+        assertEquals(BearerTokenCache.hash("header.payload.signature"), hash);
+        assertNotEquals(BearerTokenCache.hash("header.payload.signaturf"), hash);
+        assertEquals(hash.length(), 44);
+        assertEquals(hash.indexOf("payload"), -1);
+    }
+
+    /**
+     * An entry lives until the token expires.
+     */
+    @Test
+    public void testExpiry()
+    {
+        final BearerTokenCache cache = new BearerTokenCache(null);
+        cache.put("key", new BearerTokenCache.Entry(null, 1000), 0);
+        assertNotNull(cache.get("key", 999));
+        assertNull(cache.get("key", 1000));
+        assertEquals(cache.size(), 0);
+    }
+
+    /**
+     * If the cache is full the expired entries are removed first.
+     */
+    @Test
+    public void testEvictExpired()
+    {
+        final BearerTokenCache cache = new BearerTokenCache("3");
+        cache.put("expired", new BearerTokenCache.Entry(null, 100), 0);
+        cache.put("key1", new BearerTokenCache.Entry(null, 1000), 0);
+        cache.put("key2", new BearerTokenCache.Entry(null, 2000), 0);
+        cache.put("key3", new BearerTokenCache.Entry(null, 3000), 500);
+        assertEquals(cache.size(), 3);
+        assertNotNull(cache.get("key1", 500));
+        assertNotNull(cache.get("key2", 500));
+        assertNotNull(cache.get("key3", 500));
+    }
+
+    /**
+     * If the cache is full and nothing is expired, the entries expiring
+     * first are evicted instead of clearing the cache.
+     */
+    @Test
+    public void testEvictEarliestExpiry()
+    {
+        final BearerTokenCache cache = new BearerTokenCache("20");
+        for (int i = 0; i < 20; i++) {
+            cache.put("key" + i, new BearerTokenCache.Entry(null, 1000 + (i + 7) % 20 * 100), 0);
+        }
+        cache.put("new", new BearerTokenCache.Entry(null, 5000), 0);
+        assertEquals(cache.size(), 19);
+        assertNotNull(cache.get("new", 0));
+        assertNull(cache.get("key13", 0));
+        assertNull(cache.get("key14", 0));
+        assertNotNull(cache.get("key15", 0));
+        assertNotNull(cache.get("key12", 0));
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright © 2003 - 2024 The eFaps Team (-)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.efaps.ui.filter;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.testng.annotations.Test;
+
+/**
+ * Tests for the {@link BypassMatcher}.
+ */
+public class BypassMatcherTest
+{
+
+    /** The matcher. */
+    private final BypassMatcher matcher = new BypassMatcher("/static/, /favicon.ico", "css, .js");
+
+    /**
+     * Build a request as the container would pass it.
+     *
+     * @param _uri the raw request URI
+     * @param _servletPath the decoded and normalized servlet path
+     * @param _pathInfo the decoded and normalized path info
+     * @return the request
+     */
+    static HttpServletRequest request(final String _uri,
+                                      final String _servletPath,
+                                      final String _pathInfo)
+    {
+        final HttpServletRequest ret = mock(HttpServletRequest.class);
+        when(ret.getContextPath()).thenReturn("/efaps");
+        when(ret.getRequestURI()).thenReturn(_uri);
+        when(ret.getServletPath()).thenReturn(_servletPath);
+        when(ret.getPathInfo()).thenReturn(_pathInfo);
+        return ret;
+    }
+
+    /**
+     * Prefixes and extensions match.
+     */
+    @Test
+    public void testMatches()
+    {
+        assertTrue(this.matcher.matches(request("/efaps/static/app.png", "/static", "/app.png")));
+        assertTrue(this.matcher.matches(request("/efaps/favicon.ico", "/favicon.ico", null)));
+        assertTrue(this.matcher.matches(request("/efaps/servlet/theme.CSS", "/servlet", "/theme.CSS")));
+        assertTrue(this.matcher.matches(request("/efaps/app/main.js", "/app", "/main.js")));
+        assertFalse(this.matcher.matches(request("/efaps/servlet/app", "/servlet", "/app")));
+        assertFalse(this.matcher.matches(request("/efaps/app/main.js/", "/app", "/main.js/")));
+    }
+
+    /**
+     * A prefix only matches on a segment boundary.
+     */
+    @Test
+    public void testSegmentBoundary()
+    {
+        assertFalse(this.matcher.matches(request("/efaps/favicon.icox", "/favicon.icox", null)));
+        assertFalse(this.matcher.matches(request("/efaps/staticx/app", "/staticx", "/app")));
+    }
+
+    /**
+     * Dot segments in the raw URI are matched on the path the container
+     * serves, not on the raw URI.
+     */
+    @Test
+    public void testTraversal()
+    {
+        // the container normalizes to the protected servlet
+        assertFalse(this.matcher.matches(request("/efaps/static/../servlet/app", "/servlet", "/app")));
+        // a container that does not normalize
+        assertFalse(this.matcher.matches(request("/efaps/static/../servlet/app", "/static", "/../servlet/app")));
+        assertFalse(this.matcher.matches(request("/efaps/static/./x.css", "/static", "/./x.css")));
+        assertFalse(this.matcher.matches(request("/efaps/static\\..\\servlet", "/static\\..\\servlet", null)));
+    }
+
+    /**
+     * Encoded separators and dots never bypass.
+     */
+    @Test
+    public void testEncoding()
+    {
+        assertFalse(this.matcher.matches(request("/efaps/static/%2e%2e/servlet/app", "/static", "/../servlet/app")));
+        assertFalse(this.matcher.matches(request("/efaps/static%2F..%2Fservlet/app", "/static/../servlet", "/app")));
+        assertFalse(this.matcher.matches(request("/efaps/static/%252e%252e/servlet", "/static", "/%2e%2e/servlet")));
+        assertFalse(this.matcher.matches(request("/efaps/servlet/app%3b.css", "/servlet", "/app;.css")));
+    }
+
+    /**
+     * Path parameters do not change the match.
+     */
+    @Test
+    public void testPathParameters()
+    {
+        // ;jsessionid is removed by the container
+        assertTrue(this.matcher.matches(request("/efaps/static/a.png;jsessionid=1", "/static", "/a.png")));
+        // ";.css" must not make the servlet a static resource
+        assertFalse(this.matcher.matches(request("/efaps/servlet/app;x.css", "/servlet", "/app")));
+        assertFalse(this.matcher.matches(request("/efaps/servlet/app;x.css", "/servlet", "/app;x.css")));
+    }
+}
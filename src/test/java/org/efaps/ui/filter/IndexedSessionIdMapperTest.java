@@ -0,0 +1,167 @@
+/*
+ * Copyright © 2003 - 2024 The eFaps Team (-)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.efaps.ui.filter;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.annotations.Test;
+
+/**
+ * Tests for the {@link IndexedSessionIdMapper}.
+ */
+public class IndexedSessionIdMapperTest
+{
+
+    /**
+     * Mapped sessions are found by all indexes.
+     */
+    @Test
+    public void testMap()
+    {
+        final IndexedSessionIdMapper mapper = new IndexedSessionIdMapper("60");
+        mapper.map("sso1", "jane", "s1");
+        mapper.map("sso2", "jane", "s2");
+        assertTrue(mapper.hasSession("s1"));
+        assertEquals(mapper.getSessionFromSSO("sso2"), "s2");
+        assertEquals(mapper.getUserSessions("jane"), Set.of("s1", "s2"));
+        mapper.removeSession("s1");
+        assertFalse(mapper.hasSession("s1"));
+        assertNull(mapper.getSessionFromSSO("sso1"));
+        assertEquals(mapper.getUserSessions("jane"), Set.of("s2"));
+    }
+
+    /**
+     * An expired session is not found and removed from all indexes, a
+     * session extended to its refresh token lives on.
+     */
+    @Test
+    public void testExpiry()
+    {
+        final IndexedSessionIdMapper mapper = new IndexedSessionIdMapper("1");
+        mapper.map("sso1", "jane", "s1");
+        mapper.map("sso2", "jane", "s2");
+        final long later = System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(2);
+        mapper.extend("s2", later + TimeUnit.MINUTES.toMillis(10));
+        assertFalse(mapper.hasSession("s1", later));
+        assertTrue(mapper.hasSession("s2", later));
+        assertNull(mapper.getSessionFromSSO("sso1"));
+        assertEquals(mapper.getUserSessions("jane"), Set.of("s2"));
+        assertEquals(mapper.size(), 1);
+    }
+
+    /**
+     * A lookup after the purge interval purges all expired sessions.
+     */
+    @Test
+    public void testPurgeOnLookup()
+    {
+        final IndexedSessionIdMapper mapper = new IndexedSessionIdMapper("1");
+        for (int i = 0; i < 10; i++) {
+            mapper.map("sso" + i, "user" + i, "s" + i);
+        }
+        mapper.hasSession("other", System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(5));
+        assertEquals(mapper.size(), 0);
+        assertTrue(mapper.getUserSessions("user1").isEmpty());
+    }
+
+    /**
+     * Several sessions are removed at once from all indexes.
+     */
+    @Test
+    public void testRemoveSessions()
+    {
+        final IndexedSessionIdMapper mapper = new IndexedSessionIdMapper("60");
+        mapper.map("sso1", "jane", "s1");
+        mapper.map("sso2", "jane", "s2");
+        mapper.map("sso3", "jane", "s3");
+        mapper.map("sso4", "john", "s4");
+        mapper.removeSessions(Arrays.asList("s1", "s2", "s4", "unknown"));
+        assertEquals(mapper.size(), 1);
+        assertEquals(mapper.getUserSessions("jane"), Set.of("s3"));
+        assertTrue(mapper.getUserSessions("john").isEmpty());
+        assertNull(mapper.getSessionFromSSO("sso1"));
+        assertEquals(mapper.getSessionFromSSO("sso3"), "s3");
+    }
+
+    /**
+     * All sessions of a principal are removed.
+     */
+    @Test
+    public void testRemoveUserSessions()
+    {
+        final IndexedSessionIdMapper mapper = new IndexedSessionIdMapper("60");
+        mapper.map("sso1", "jane", "s1");
+        mapper.map("sso2", "jane", "s2");
+        assertEquals(mapper.removeUserSessions("jane"), Set.of("s1", "s2"));
+        assertEquals(mapper.size(), 0);
+    }
+
+    /**
+     * Sessions mapped while other sessions of the principal are removed are
+     * not lost from the principal index.
+     *
+     * @throws Exception on error
+     */
+    @Test
+    public void testConcurrentMapAndRemove()
+        throws Exception
+    {
+        final IndexedSessionIdMapper mapper = new IndexedSessionIdMapper("60");
+        final int threads = 4;
+        final CountDownLatch start = new CountDownLatch(1);
+        final ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            final List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                final int thread = i;
+                futures.add(pool.submit(() -> {
+                    start.await();
+                    for (int j = 0; j < 10000; j++) {
+                        mapper.map(null, "jane", "s" + thread + "-" + j);
+                        mapper.removeSession("s" + thread + "-" + j);
+                    }
+                    mapper.map(null, "jane", "s" + thread);
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (final Future<?> future : futures) {
+                future.get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        final Set<String> expected = new HashSet<>();
+        for (int i = 0; i < threads; i++) {
+            expected.add("s" + i);
+        }
+        assertEquals(mapper.getUserSessions("jane"), expected);
+    }
+}
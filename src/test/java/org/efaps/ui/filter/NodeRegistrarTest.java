@@ -0,0 +1,130 @@
+/*
+ * Copyright © 2003 - 2024 The eFaps Team (-)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.efaps.ui.filter;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+
+import org.keycloak.adapters.KeycloakDeployment;
+import org.keycloak.adapters.NodesRegistrationManagement;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests for the {@link NodeRegistrar}.
+ */
+public class NodeRegistrarTest
+{
+
+    /** The management. */
+    private NodesRegistrationManagement management;
+
+    /** The registrar. */
+    private NodeRegistrar registrar;
+
+    /**
+     * Create the registrar.
+     */
+    @BeforeMethod
+    public void setUp()
+    {
+        this.management = mock(NodesRegistrationManagement.class);
+        this.registrar = new NodeRegistrar(this.management);
+    }
+
+    /**
+     * Stop the registrar.
+     */
+    @AfterMethod
+    public void tearDown()
+    {
+        this.registrar.stop();
+    }
+
+    /**
+     * Build a deployment that registers the node.
+     *
+     * @param _realm the realm
+     * @return the deployment
+     */
+    private static KeycloakDeployment deployment(final String _realm)
+    {
+        final KeycloakDeployment ret = mock(KeycloakDeployment.class);
+        when(ret.getRealm()).thenReturn(_realm);
+        when(ret.getResourceName()).thenReturn("efaps");
+        when(ret.getAuthServerBaseUrl()).thenReturn("http://localhost:8180");
+        when(ret.isRegisterNodeAtStartup()).thenReturn(true);
+        return ret;
+    }
+
+    /**
+     * A deployment is registered once.
+     */
+    @Test
+    public void testRegisterOnce()
+    {
+        final KeycloakDeployment deployment = deployment("realm");
+        this.registrar.register(deployment);
+        this.registrar.register(deployment);
+        verify(this.management, times(1)).tryRegister(deployment);
+        assertEquals(this.registrar.getScheduledCount(), 1);
+    }
+
+    /**
+     * A rebuilt deployment replaces the registration of its predecessor.
+     */
+    @Test
+    public void testReplace()
+    {
+        final KeycloakDeployment first = deployment("realm");
+        final KeycloakDeployment second = deployment("realm");
+        this.registrar.register(first);
+        this.registrar.register(second);
+        this.registrar.register(first);
+        verify(this.management, times(2)).tryRegister(first);
+        verify(this.management, times(1)).tryRegister(second);
+        assertEquals(this.registrar.getScheduledCount(), 1);
+    }
+
+    /**
+     * Deployments of different realms are registered each.
+     */
+    @Test
+    public void testDifferentRealms()
+    {
+        this.registrar.register(deployment("realm1"));
+        this.registrar.register(deployment("realm2"));
+        assertEquals(this.registrar.getScheduledCount(), 2);
+    }
+
+    /**
+     * Nothing is scheduled after stop.
+     */
+    @Test
+    public void testStopped()
+    {
+        this.registrar.stop();
+        final KeycloakDeployment deployment = deployment("realm");
+        this.registrar.register(deployment);
+        verify(this.management, never()).tryRegister(deployment);
+        assertEquals(this.registrar.getScheduledCount(), 0);
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright © 2003 - 2024 The eFaps Team (-)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.efaps.ui.filter;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+import java.math.BigInteger;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.security.interfaces.RSAPublicKey;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.keycloak.adapters.KeycloakDeployment;
+import org.keycloak.jose.jwk.JSONWebKeySet;
+import org.keycloak.util.JsonSerialization;
+import org.testng.annotations.Test;
+
+/**
+ * Tests for the {@link RealmKeyLocator}.
+ */
+public class RealmKeyLocatorTest
+{
+
+    /**
+     * Only the signing keys with a kid are taken from the JWKS.
+     *
+     * @throws Exception on error
+     */
+    @Test
+    public void testParse()
+        throws Exception
+    {
+        final KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        final RSAPublicKey sig = (RSAPublicKey) generator.generateKeyPair().getPublic();
+        final RSAPublicKey enc = (RSAPublicKey) generator.generateKeyPair().getPublic();
+        final String json = "{\"keys\":[" + jwk("sig1", "sig", sig) + "," + jwk("enc1", "enc", enc) + "]}";
+        final Map<String, PublicKey> keys = RealmKeyLocator.parse(JsonSerialization.readValue(json,
+                        JSONWebKeySet.class));
+        assertEquals(keys.size(), 1);
+        assertTrue(keys.containsKey("sig1"));
+        assertEquals(((RSAPublicKey) keys.get("sig1")).getModulus(), sig.getModulus());
+    }
+
+    /**
+     * An empty JWKS gives no keys.
+     *
+     * @throws Exception on error
+     */
+    @Test
+    public void testParseEmpty()
+        throws Exception
+    {
+        assertTrue(RealmKeyLocator.parse(JsonSerialization.readValue("{\"keys\":[]}", JSONWebKeySet.class))
+                        .isEmpty());
+    }
+
+    /**
+     * Concurrent refreshes share one fetch, no lock is held while it runs.
+     *
+     * @throws Exception on error
+     */
+    @Test
+    public void testRefreshCoalesce()
+        throws Exception
+    {
+        final PublicKey key = mock(PublicKey.class);
+        final AtomicInteger calls = new AtomicInteger();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final RealmKeyLocator locator = new RealmKeyLocator(deployment(0), () -> {
+            calls.incrementAndGet();
+            started.countDown();
+            awaitQuietly(release);
+            return Map.of("kid1", key);
+        });
+        final ExecutorService pool = Executors.newFixedThreadPool(3);
+        try {
+            final Future<?> first = pool.submit(locator::refresh);
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+            final Future<PublicKey> second = pool.submit(() -> locator.getPublicKey("kid1", null));
+            final Future<PublicKey> third = pool.submit(() -> locator.getPublicKey("kid1", null));
+            Thread.sleep(100);
+            release.countDown();
+            first.get(5, TimeUnit.SECONDS);
+            assertSame(second.get(5, TimeUnit.SECONDS), key);
+            assertSame(third.get(5, TimeUnit.SECONDS), key);
+            assertEquals(calls.get(), 1);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * An unknown kid triggers no fetch within the min time between
+     * requests, a failed fetch keeps the known keys.
+     */
+    @Test
+    public void testUnknownKid()
+    {
+        final PublicKey key = mock(PublicKey.class);
+        final AtomicInteger calls = new AtomicInteger();
+        final RealmKeyLocator locator = new RealmKeyLocator(deployment(60),
+                        () -> calls.incrementAndGet() == 1 ? Map.of("kid1", key) : null);
+        locator.refresh();
+        assertNull(locator.getPublicKey("kid2", null));
+        assertEquals(calls.get(), 1);
+        locator.refresh();
+        assertEquals(calls.get(), 2);
+        assertEquals(locator.size(), 1);
+        assertSame(locator.getPublicKey(null, null), key);
+    }
+
+    /**
+     * Mock a deployment.
+     *
+     * @param _minTime min time between JWKS requests in seconds
+     * @return the deployment
+     */
+    private static KeycloakDeployment deployment(final int _minTime)
+    {
+        final KeycloakDeployment ret = mock(KeycloakDeployment.class);
+        when(ret.getRealm()).thenReturn("realm");
+        when(ret.getMinTimeBetweenJwksRequests()).thenReturn(_minTime);
+        return ret;
+    }
+
+    /**
+     * Await a latch, at most five seconds.
+     *
+     * @param _latch the latch
+     */
+    private static void awaitQuietly(final CountDownLatch _latch)
+    {
+        try {
+            _latch.await(5, TimeUnit.SECONDS);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Render a RSA key as JWK.
+     *
+     * @param _kid the kid
+     * @param _use the use
+     * @param _key the key
+     * @return the JSON
+     */
+    private static String jwk(final String _kid,
+                              final String _use,
+                              final RSAPublicKey _key)
+    {
+        return "{\"kid\":\"" + _kid + "\",\"kty\":\"RSA\",\"alg\":\"RS256\",\"use\":\"" + _use + "\",\"n\":\""
+                        + base64(_key.getModulus()) + "\",\"e\":\"" + base64(_key.getPublicExponent()) + "\"}";
+    }
+
+    /**
+     * Base64url encode an unsigned integer.
+     *
+     * @param _value the value
+     * @return the encoded value
+     */
+    private static String base64(final BigInteger _value)
+    {
+        byte[] bytes = _value.toByteArray();
+        if (bytes.length > 1 && bytes[0] == 0) {
+            final byte[] unsigned = new byte[bytes.length - 1];
+            System.arraycopy(bytes, 1, unsigned, 0, unsigned.length);
+            bytes = unsigned;
+        }
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright © 2003 - 2024 The eFaps Team (-)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.efaps.ui.filter;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.expectThrows;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.efaps.ui.filter.SavedRequestBuffer.SpilledBody;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests for the {@link SavedRequestBuffer}.
+ */
+public class SavedRequestBufferTest
+{
+
+    /** Directory of the spilled bodies. */
+    private Path directory;
+
+    /** The buffer. */
+    private SavedRequestBuffer buffer;
+
+    /**
+     * Create a buffer that spills bodies larger than 10 bytes up to 100
+     * bytes into an empty directory.
+     *
+     * @throws IOException on error
+     */
+    @BeforeMethod
+    public void setUp()
+        throws IOException
+    {
+        this.directory = Files.createTempDirectory("savedrequest");
+        this.buffer = new SavedRequestBuffer("10", "100", this.directory.toString());
+    }
+
+    /**
+     * Stop the buffer and delete the directory.
+     *
+     * @throws IOException on error
+     */
+    @AfterMethod
+    public void tearDown()
+        throws IOException
+    {
+        this.buffer.stop();
+        try (Stream<Path> files = Files.list(this.directory)) {
+            for (final Path file : (Iterable<Path>) files::iterator) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(this.directory);
+    }
+
+    /**
+     * Small bodies stay in memory, empty bodies are not saved.
+     *
+     * @throws IOException on error
+     */
+    @Test
+    public void testInMemory()
+        throws IOException
+    {
+        assertEquals(this.buffer.read(new ByteArrayInputStream(bytes(10))), bytes(10));
+        assertNull(this.buffer.read(new ByteArrayInputStream(new byte[0])));
+        assertEquals(count(), 0);
+    }
+
+    /**
+     * Large bodies are spilled and loaded again, the file is deleted with
+     * the reference.
+     *
+     * @throws IOException on error
+     */
+    @Test
+    public void testSpilled()
+        throws IOException
+    {
+        final Serializable body = this.buffer.read(new ByteArrayInputStream(bytes(50)));
+        assertTrue(body instanceof SpilledBody);
+        assertEquals(((SpilledBody) body).getSize(), 50);
+        assertEquals(count(), 1);
+        assertEquals(((SpilledBody) body).load(), bytes(50));
+        ((SpilledBody) body).delete();
+        assertEquals(count(), 0);
+    }
+
+    /**
+     * A body over the max size fails and leaves no file.
+     */
+    @Test
+    public void testMaxBody()
+    {
+        expectThrows(IOException.class, () -> this.buffer.read(new ByteArrayInputStream(bytes(101))));
+        assertEquals(count(), 0);
+    }
+
+    /**
+     * A replay that does not find the file fails instead of replaying an
+     * empty body.
+     *
+     * @throws IOException on error
+     */
+    @Test
+    public void testMissingFile()
+        throws IOException
+    {
+        final SpilledBody body = (SpilledBody) this.buffer.read(new ByteArrayInputStream(bytes(50)));
+        body.delete();
+        expectThrows(NoSuchFileException.class, body::load);
+    }
+
+    /**
+     * Only files older than the max age are swept.
+     *
+     * @throws IOException on error
+     */
+    @Test
+    public void testSweep()
+        throws IOException
+    {
+        this.buffer.read(new ByteArrayInputStream(bytes(50)));
+        final long now = System.currentTimeMillis();
+        assertEquals(this.buffer.sweep(now), 0);
+        try (Stream<Path> files = Files.list(this.directory)) {
+            final Path file = files.findFirst().get();
+            Files.setLastModifiedTime(file, FileTime.fromMillis(now - TimeUnit.DAYS.toMillis(2)));
+        }
+        final Path other = Files.createFile(this.directory.resolve("other.txt"));
+        Files.setLastModifiedTime(other, FileTime.fromMillis(now - TimeUnit.DAYS.toMillis(2)));
+        assertEquals(this.buffer.sweep(now), 1);
+        assertEquals(count(), 1);
+        assertFalse(Files.notExists(other));
+    }
+
+    /**
+     * Create a body.
+     *
+     * @param _length the length
+     * @return the body
+     */
+    private static byte[] bytes(final int _length)
+    {
+        final byte[] ret = new byte[_length];
+        Arrays.fill(ret, (byte) 'x');
+        return ret;
+    }
+
+    /**
+     * Count the files in the directory.
+     *
+     * @return the number of files
+     */
+    private long count()
+    {
+        try (Stream<Path> files = Files.list(this.directory)) {
+            return files.count();
+        } catch (final IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
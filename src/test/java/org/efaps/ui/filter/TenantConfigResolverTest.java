@@ -0,0 +1,187 @@
+/*
+ * Copyright © 2003 - 2024 The eFaps Team (-)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.efaps.ui.filter;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests for the {@link TenantConfigResolver}.
+ */
+public class TenantConfigResolverTest
+{
+
+    /** Directory of the tenant configurations. */
+    private Path directory;
+
+    /**
+     * Create a directory with a default and an "acme" tenant.
+     *
+     * @throws IOException on error
+     */
+    @BeforeMethod
+    public void setUp()
+        throws IOException
+    {
+        this.directory = Files.createTempDirectory("tenants");
+        config("default", "main", null);
+        config("acme", "acme", null);
+    }
+
+    /**
+     * Delete the directory.
+     *
+     * @throws IOException on error
+     */
+    @AfterMethod
+    public void tearDown()
+        throws IOException
+    {
+        try (Stream<Path> files = Files.list(this.directory)) {
+            for (final Path file : (Iterable<Path>) files::iterator) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(this.directory);
+    }
+
+    /**
+     * The tenant is resolved by host, unknown hosts get the default.
+     */
+    @Test
+    public void testByHost()
+    {
+        final TenantConfigResolver resolver = new TenantConfigResolver(this.directory.toString(), null, "3600");
+        assertEquals(resolver.resolve(request("ACME", "/efaps/servlet/x")).getRealm(), "acme");
+        assertEquals(resolver.resolve(request("other.example.com", "/efaps/servlet/x")).getRealm(), "main");
+        assertEquals(resolver.resolve(request("../default", "/efaps/servlet/x")).getRealm(), "main");
+    }
+
+    /**
+     * The tenant is resolved by the first segment of the path.
+     */
+    @Test
+    public void testByPath()
+    {
+        final TenantConfigResolver resolver = new TenantConfigResolver(this.directory.toString(), "path", "3600");
+        assertEquals(resolver.resolve(request("host", "/efaps/acme/servlet/x")).getRealm(), "acme");
+        assertEquals(resolver.resolve(request("host", "/efaps/servlet/x")).getRealm(), "main");
+        assertEquals(resolver.resolve(request("host", "/efaps")).getRealm(), "main");
+    }
+
+    /**
+     * An unknown tenant is remembered for the check interval, a new
+     * configuration is only found after it.
+     *
+     * @throws Exception on error
+     */
+    @Test
+    public void testMissCached()
+        throws Exception
+    {
+        final TenantConfigResolver cached = new TenantConfigResolver(this.directory.toString(), null, "3600");
+        final TenantConfigResolver unCached = new TenantConfigResolver(this.directory.toString(), null, "0");
+        assertEquals(cached.resolve(request("newco", "/efaps")).getRealm(), "main");
+        assertEquals(unCached.resolve(request("newco", "/efaps")).getRealm(), "main");
+        config("newco", "newco", null);
+        Thread.sleep(5);
+        assertEquals(cached.resolve(request("newco", "/efaps")).getRealm(), "main");
+        assertEquals(unCached.resolve(request("newco", "/efaps")).getRealm(), "newco");
+    }
+
+    /**
+     * A configuration whose principal is not the id of the user is refused,
+     * as user names of different realms would share one person.
+     *
+     * @throws IOException on error
+     */
+    @Test
+    public void testPrincipalAttribute()
+        throws IOException
+    {
+        config("byname", "byname", "preferred_username");
+        config("bysub", "bysub", "sub");
+        final TenantConfigResolver resolver = new TenantConfigResolver(this.directory.toString(), null, "3600");
+        assertEquals(resolver.resolve(request("byname", "/efaps")).getRealm(), "main");
+        assertEquals(resolver.resolve(request("bysub", "/efaps")).getRealm(), "bysub");
+    }
+
+    /**
+     * Without any configuration the deployment is unconfigured.
+     *
+     * @throws IOException on error
+     */
+    @Test
+    public void testUnconfigured()
+        throws IOException
+    {
+        Files.delete(this.directory.resolve("default.json"));
+        final TenantConfigResolver resolver = new TenantConfigResolver(this.directory.toString(), null, "3600");
+        assertNull(resolver.resolve(request("other", "/efaps")).getRealm());
+    }
+
+    /**
+     * Write the configuration of a tenant.
+     *
+     * @param _tenant the tenant
+     * @param _realm the realm
+     * @param _principalAttribute the principal attribute, may be null
+     * @throws IOException on error
+     */
+    private void config(final String _tenant,
+                        final String _realm,
+                        final String _principalAttribute)
+        throws IOException
+    {
+        final String json = "{\"realm\": \"" + _realm + "\", \"auth-server-url\": \"http://localhost:8080\","
+                        + " \"resource\": \"efaps\", \"public-client\": true"
+                        + (_principalAttribute == null ? "" : ", \"principal-attribute\": \"" + _principalAttribute
+                                        + "\"")
+                        + "}";
+        Files.write(this.directory.resolve(_tenant + ".json"), json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Mock a request.
+     *
+     * @param _host the host
+     * @param _uri the uri
+     * @return the request
+     */
+    private static HttpServletRequest request(final String _host,
+                                              final String _uri)
+    {
+        final HttpServletRequest ret = mock(HttpServletRequest.class);
+        when(ret.getServerName()).thenReturn(_host);
+        when(ret.getRequestURI()).thenReturn(_uri);
+        when(ret.getContextPath()).thenReturn("/efaps");
+        return ret;
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright © 2003 - 2024 The eFaps Team (-)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.efaps.ui.filter;
+
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Random;
+
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+
+import org.keycloak.adapters.KeycloakDeployment;
+import org.keycloak.adapters.RefreshableKeycloakSecurityContext;
+import org.keycloak.adapters.spi.HttpFacade;
+import org.keycloak.common.enums.SslRequired;
+import org.mockito.ArgumentCaptor;
+import org.testng.annotations.Test;
+
+/**
+ * Tests for the {@link TokenCookies}.
+ */
+public class TokenCookiesTest
+{
+
+    /** A key shared by the nodes. */
+    private static final String KEY = Base64.getEncoder().encodeToString(new byte[32]);
+
+    /**
+     * The tokens written by one node are read by another node with the same
+     * key.
+     */
+    @Test
+    public void testRoundTrip()
+    {
+        final List<String> headers = write(new TokenCookies(KEY, null, null), "access", "id", "refresh",
+                        SslRequired.EXTERNAL);
+        final String[] tokens = new TokenCookies(KEY, null, null).read(request(headers));
+        assertEquals(tokens, new String[] { "access", "id", "refresh" });
+    }
+
+    /**
+     * Tokens too large for one cookie are split into chunks and joined on
+     * read, missing id and refresh tokens stay null.
+     */
+    @Test
+    public void testChunks()
+    {
+        final StringBuilder access = new StringBuilder();
+        final Random random = new Random(1);
+        while (access.length() < 12000) {
+            access.append(Integer.toHexString(random.nextInt()));
+        }
+        final List<String> headers = write(new TokenCookies(KEY, null, null), access.toString(), null, null,
+                        SslRequired.EXTERNAL);
+        assertTrue(headers.size() > 1);
+        final String[] tokens = new TokenCookies(KEY, null, null).read(request(headers));
+        assertEquals(tokens, new String[] { access.toString(), null, null });
+    }
+
+    /**
+     * An altered cookie or a cookie of another key is ignored.
+     */
+    @Test
+    public void testTamper()
+    {
+        final TokenCookies cookies = new TokenCookies(KEY, null, null);
+        final List<String> headers = write(cookies, "access", "id", "refresh", SslRequired.EXTERNAL);
+        final String header = headers.get(0);
+        final int pos = header.indexOf('=') + 10;
+        final char changed = header.charAt(pos) == 'A' ? 'B' : 'A';
+        final List<String> tampered = new ArrayList<>();
+        tampered.add(header.substring(0, pos) + changed + header.substring(pos + 1));
+        assertNull(cookies.read(request(tampered)));
+
+        final byte[] otherKey = new byte[32];
+        otherKey[0] = 1;
+        assertNull(new TokenCookies(Base64.getEncoder().encodeToString(otherKey), null, null)
+                        .read(request(headers)));
+    }
+
+    /**
+     * The Secure attribute follows the SSL requirement of the deployment
+     * unless forced, SameSite and HttpOnly are always set.
+     */
+    @Test
+    public void testAttributes()
+    {
+        final String secure = write(new TokenCookies(KEY, null, null), "a", null, null, SslRequired.EXTERNAL)
+                        .get(0);
+        assertTrue(secure.contains("; Secure"));
+        assertTrue(secure.contains("; HttpOnly"));
+        assertTrue(secure.endsWith("; SameSite=Lax"));
+        assertTrue(secure.contains("; Path=/efaps"));
+        assertFalse(write(new TokenCookies(KEY, null, null), "a", null, null, SslRequired.NONE).get(0)
+                        .contains("; Secure"));
+        assertTrue(write(new TokenCookies(KEY, "true", "Strict"), "a", null, null, SslRequired.NONE).get(0)
+                        .endsWith("; Secure; HttpOnly; SameSite=Strict"));
+    }
+
+    /**
+     * No token cookies without a shared key.
+     */
+    @Test
+    public void testWithoutKey()
+    {
+        assertNull(TokenCookies.of(null, null, null));
+        assertNull(TokenCookies.of(" ", null, null));
+    }
+
+    /**
+     * Write tokens and capture the Set-Cookie headers.
+     *
+     * @param _cookies the token cookies
+     * @param _access the access token
+     * @param _id the id token
+     * @param _refresh the refresh token
+     * @param _sslRequired the SSL requirement of the deployment
+     * @return the headers
+     */
+    private static List<String> write(final TokenCookies _cookies,
+                                      final String _access,
+                                      final String _id,
+                                      final String _refresh,
+                                      final SslRequired _sslRequired)
+    {
+        final KeycloakDeployment deployment = mock(KeycloakDeployment.class);
+        when(deployment.getSslRequired()).thenReturn(_sslRequired);
+        final RefreshableKeycloakSecurityContext securityContext = mock(RefreshableKeycloakSecurityContext.class);
+        when(securityContext.getDeployment()).thenReturn(deployment);
+        when(securityContext.getTokenString()).thenReturn(_access);
+        when(securityContext.getIdTokenString()).thenReturn(_id);
+        when(securityContext.getRefreshToken()).thenReturn(_refresh);
+        final HttpFacade.Response response = mock(HttpFacade.Response.class);
+        _cookies.write(request(new ArrayList<>()), response, securityContext);
+        final ArgumentCaptor<String> captor = ArgumentCaptor.forClass(String.class);
+        verify(response, atLeastOnce()).addHeader(eq("Set-Cookie"), captor.capture());
+        return captor.getAllValues();
+    }
+
+    /**
+     * Mock a request sending the cookies of the given Set-Cookie headers.
+     *
+     * @param _headers the headers
+     * @return the request
+     */
+    private static HttpServletRequest request(final List<String> _headers)
+    {
+        final HttpServletRequest ret = mock(HttpServletRequest.class);
+        when(ret.getContextPath()).thenReturn("/efaps");
+        final Cookie[] cookies = new Cookie[_headers.size()];
+        for (int i = 0; i < cookies.length; i++) {
+            final String pair = _headers.get(i).substring(0, _headers.get(i).indexOf(';'));
+            cookies[i] = new Cookie(pair.substring(0, pair.indexOf('=')), pair.substring(pair.indexOf('=') + 1));
+        }
+        when(ret.getCookies()).thenReturn(cookies);
+        return ret;
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright © 2003 - 2024 The eFaps Team (-)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.efaps.ui.filter;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests for the {@link TokenRefresher}.
+ */
+public class TokenRefresherTest
+{
+
+    /** The refresher. */
+    private TokenRefresher refresher;
+
+    /**
+     * Create the refresher.
+     */
+    @BeforeMethod
+    public void setUp()
+    {
+        this.refresher = new TokenRefresher(null, null);
+    }
+
+    /**
+     * Stop the refresher.
+     */
+    @AfterMethod
+    public void tearDown()
+    {
+        this.refresher.stop();
+    }
+
+    /**
+     * Concurrent refreshes of a session run once, the others wait for it.
+     *
+     * @throws Exception on error
+     */
+    @Test
+    public void testCoalesce()
+        throws Exception
+    {
+        final AtomicInteger calls = new AtomicInteger();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            final Future<Boolean> first = pool.submit(() -> this.refresher.coalesce("session", () -> {
+                calls.incrementAndGet();
+                started.countDown();
+                awaitQuietly(release);
+            }));
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+            final Future<Boolean> second = pool.submit(() -> this.refresher.coalesce("session",
+                            calls::incrementAndGet));
+            final Future<Boolean> third = pool.submit(() -> this.refresher.coalesce("session",
+                            calls::incrementAndGet));
+            Thread.sleep(100);
+            assertFalse(second.isDone());
+            release.countDown();
+            assertTrue(first.get(5, TimeUnit.SECONDS));
+            assertFalse(second.get(5, TimeUnit.SECONDS));
+            assertFalse(third.get(5, TimeUnit.SECONDS));
+            assertEquals(calls.get(), 1);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Refreshes of different sessions do not wait for each other.
+     *
+     * @throws Exception on error
+     */
+    @Test
+    public void testDifferentSessionsRunConcurrently()
+        throws Exception
+    {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final ExecutorService pool = Executors.newSingleThreadExecutor();
+        try {
+            final Future<Boolean> first = pool.submit(() -> this.refresher.coalesce("session1", () -> {
+                started.countDown();
+                awaitQuietly(release);
+            }));
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+            final AtomicInteger calls = new AtomicInteger();
+            assertTrue(this.refresher.coalesce("session2", calls::incrementAndGet));
+            assertEquals(calls.get(), 1);
+            release.countDown();
+            assertTrue(first.get(5, TimeUnit.SECONDS));
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * A session can be refreshed again after a failed refresh.
+     */
+    @Test
+    public void testRefreshAfterFailure()
+    {
+        try {
+            this.refresher.coalesce("session", () -> {
+                throw new IllegalStateException("failed");
+            });
+        } catch (final IllegalStateException e) {
+            // expected
+        }
+        final AtomicInteger calls = new AtomicInteger();
+        assertTrue(this.refresher.coalesce("session", calls::incrementAndGet));
+        assertEquals(calls.get(), 1);
+    }
+
+    /**
+     * A token with a long lifetime is refreshed within the configured
+     * seconds before its expiry.
+     */
+    @Test
+    public void testExpiresSoonLongLifetime()
+    {
+        assertFalse(TokenRefresher.expiresSoon(1300, 1000, 1260, 30));
+        assertTrue(TokenRefresher.expiresSoon(1300, 1000, 1275, 30));
+    }
+
+    /**
+     * A token with a lifetime shorter than the configured seconds is not
+     * refreshed on every request, only within the last quarter of its
+     * lifetime.
+     */
+    @Test
+    public void testExpiresSoonShortLifetime()
+    {
+        assertFalse(TokenRefresher.expiresSoon(1020, 1000, 1000, 30));
+        assertFalse(TokenRefresher.expiresSoon(1020, 1000, 1010, 30));
+        assertTrue(TokenRefresher.expiresSoon(1020, 1000, 1016, 30));
+    }
+
+    /**
+     * Without issue time the configured seconds apply.
+     */
+    @Test
+    public void testExpiresSoonWithoutIat()
+    {
+        assertTrue(TokenRefresher.expiresSoon(1020, 0, 1000, 30));
+        assertFalse(TokenRefresher.expiresSoon(1100, 0, 1000, 30));
+    }
+
+    /**
+     * Wait for a latch, ignoring an interrupt.
+     *
+     * @param _latch the latch
+     */
+    private static void awaitQuietly(final CountDownLatch _latch)
+    {
+        try {
+            _latch.await(5, TimeUnit.SECONDS);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}